@@ -39,6 +39,10 @@ import java.util.stream.Collectors;
 
 import edu.harvard.seas.pl.formulog.ast.Rule;
 import edu.harvard.seas.pl.formulog.db.IndexedFactDb;
+import edu.harvard.seas.pl.formulog.eval.EvaluationProfiler;
+import edu.harvard.seas.pl.formulog.smt.CounterexampleCache;
+import edu.harvard.seas.pl.formulog.smt.PortfolioSmtManager;
+import edu.harvard.seas.pl.formulog.smt.SmtMemo;
 import edu.harvard.seas.pl.formulog.smt.SmtStrategy;
 import edu.harvard.seas.pl.formulog.symbols.FunctionSymbol;
 import edu.harvard.seas.pl.formulog.symbols.RelationSymbol;
@@ -69,13 +73,31 @@ public final class Configuration {
 	public static final boolean printRelSizes = propIsSet("printRelSizes");
 	public static final boolean printFinalRules = propIsSet("printFinalRules");
 	public static final boolean debugRounds = propIsSet("debugRounds");
+	public static final String profileTrace = System.getProperty("profileTrace");
 
 	public static final int optimizationSetting = getIntProp("optimize", 0);
 
 	public static final int taskSize = getIntProp("taskSize", 128);
 	public static final int smtTaskSize = getIntProp("smtTaskSize", 8);
+	private static final boolean threadLocalFactBuffers = propIsSet("threadLocalFactBuffers");
 	public static final int smtCacheSize = getIntProp("smtCacheSize", 100);
+	public static final int smtMemoCapacity = getIntProp("smtMemoCapacity", 1 << 20);
+	public static final int smtSerialCacheSize = getIntProp("smtSerialCacheSize", 0);
+	public static final boolean smtShareSubterms = propIsSet("smtShareSubterms");
+	public static final boolean smtLazyDeclarations = propIsSet("smtLazyDeclarations");
+	public static final boolean smtLazyModels = propIsSet("smtLazyModels");
+	public static final boolean sliceSmt = propIsSet("sliceSmt");
+	public static final int smtModelCacheSize = getIntProp("smtModelCacheSize", 0);
+	public static final int smtUnsatCacheSize = getIntProp("smtUnsatCacheSize", 0);
 	public static final SmtStrategy smtStrategy = getSmtStrategy();
+	public static final String smtResultCache = System.getProperty("smtResultCache");
+	public static final boolean smtManagedBlocking = propIsSet("smtManagedBlocking");
+	public static final int smtRecycleAfter = getIntProp("smtRecycleAfter", 10000);
+	public static final int smtRecycleLatency = getIntProp("smtRecycleLatency", 60000);
+	public static final int smtPoolGrowWait = getIntProp("smtPoolGrowWait", 10);
+	public static final int smtPoolIdleTimeout = getIntProp("smtPoolIdleTimeout", 30000);
+	public static final List<String> smtPortfolio = getSmtPortfolio();
+	public static final int smtPortfolioGrace = getIntProp("smtPortfolioGrace", 100);
 
 	public static final int parallelism = getIntProp("parallelism", 4);
 
@@ -102,12 +124,29 @@ public final class Configuration {
 		return getIntProp("memoizeThreshold", 0);
 	}
 
+	/**
+	 * Returns whether worker threads should buffer the facts they derive during a
+	 * round. They do only if enabled and there is more than one.
+	 */
+	public static boolean threadLocalFactBuffers(int parallelism) {
+		return threadLocalFactBuffers && parallelism > 1;
+	}
+
 	public static final boolean genComparators = propIsSet("genComparators", true);
 
+	public static final boolean hashIndexes = propIsSet("hashIndexes");
+
+	public static final boolean encodeFacts = propIsSet("encodeFacts");
+
 	public static final boolean inlineInRules = propIsSet("inlineInRules", true);
 
 	public static final boolean eagerSemiNaive = propIsSet("eagerSemiNaive");
 
+	public static final boolean adaptiveJoinOrder = propIsSet("adaptiveJoinOrder");
+
+	public static final boolean server = propIsSet("server");
+	public static final int serverPort = getIntProp("serverPort", 0);
+
 	static {
 		if (recordFuncDiagnostics) {
 			Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -139,6 +178,16 @@ public final class Configuration {
 
 			});
 		}
+		if (profileTrace != null) {
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+
+				@Override
+				public void run() {
+					EvaluationProfiler.flush(profileTrace);
+				}
+
+			});
+		}
 		Runtime.getRuntime().addShutdownHook(new Thread() {
 
 			@Override
@@ -187,6 +236,16 @@ public final class Configuration {
 		out.println("[SMT SERIAL TIME] " + smtSerialTime.get() + "ms");
 		out.println("[SMT EVAL TIME] " + smtEvalTime.get() + "ms");
 		out.println("[SMT WAIT TIME] " + smtWaitTime.get() + "ms");
+		out.println("[SMT MEMO HITS] " + SmtMemo.getHits());
+		out.println("[SMT MEMO MISSES] " + SmtMemo.getMisses());
+		out.println("[SMT MEMO EVICTIONS] " + SmtMemo.getEvictions());
+		out.println("[SMT CEX SAT HITS] " + CounterexampleCache.getSatHits());
+		out.println("[SMT CEX UNSAT HITS] " + CounterexampleCache.getUnsatHits());
+		if (smtStrategy.getTag().equals(SmtStrategy.Tag.PORTFOLIO)) {
+			for (Map.Entry<String, Long> e : PortfolioSmtManager.getWins().entrySet()) {
+				out.println("[SMT PORTFOLIO WINS] " + e.getKey() + ": " + e.getValue());
+			}
+		}
 	}
 
 	public static void recordFuncTime(FunctionSymbol func, long time) {
@@ -347,6 +406,25 @@ public final class Configuration {
 			int size = Integer.parseInt(m.group(1));
 			return new SmtStrategy(SmtStrategy.Tag.BEST_MATCH, size);
 		}
+		p = Pattern.compile("pipelined-(\\d+)");
+		m = p.matcher(val);
+		if (m.matches()) {
+			int size = Integer.parseInt(m.group(1));
+			return new SmtStrategy(SmtStrategy.Tag.PIPELINED, size);
+		}
+		p = Pattern.compile("elastic-(\\d+)-(\\d+)");
+		m = p.matcher(val);
+		if (m.matches()) {
+			int min = Integer.parseInt(m.group(1));
+			int max = Integer.parseInt(m.group(2));
+			return new SmtStrategy(SmtStrategy.Tag.ELASTIC, new Pair<>(min, max));
+		}
+		p = Pattern.compile("portfolio-(\\d+)");
+		m = p.matcher(val);
+		if (m.matches()) {
+			int size = Integer.parseInt(m.group(1));
+			return new SmtStrategy(SmtStrategy.Tag.PORTFOLIO, size);
+		}
 		p = Pattern.compile("perThreadQueue-(\\d+)");
 		m = p.matcher(val);
 		if (m.matches()) {
@@ -362,6 +440,20 @@ public final class Configuration {
 		throw new IllegalArgumentException("Unrecognized SMT strategy: " + val);
 	}
 
+	private static List<String> getSmtPortfolio() {
+		String val = System.getProperty("smtPortfolio");
+		if (val == null) {
+			val = "z3 -in -smt2;z3 -in -smt2 smt.random_seed=1;z3 -in -smt2 smt.arith.solver=2";
+		}
+		List<String> configs = new ArrayList<>();
+		for (String config : val.split(";")) {
+			if (!config.trim().isEmpty()) {
+				configs.add(config.trim());
+			}
+		}
+		return Collections.unmodifiableList(configs);
+	}
+
 	private static Set<String> selectedRelsToPrint;
 
 	public static Set<String> getSelectedRelsToPrint() {
@@ -0,0 +1,238 @@
+package edu.harvard.seas.pl.formulog;
+
+/*-
+ * #%L
+ * FormuLog
+ * %%
+ * Copyright (C) 2018 - 2019 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.time.StopWatch;
+
+import edu.harvard.seas.pl.formulog.ast.Term;
+import edu.harvard.seas.pl.formulog.ast.Terms;
+import edu.harvard.seas.pl.formulog.ast.UserPredicate;
+import edu.harvard.seas.pl.formulog.eval.EvaluationException;
+import edu.harvard.seas.pl.formulog.eval.EvaluationResult;
+import edu.harvard.seas.pl.formulog.eval.SemiNaiveEvaluation;
+import edu.harvard.seas.pl.formulog.parsing.ParseException;
+import edu.harvard.seas.pl.formulog.parsing.Parser;
+import edu.harvard.seas.pl.formulog.symbols.RelationSymbol;
+import edu.harvard.seas.pl.formulog.types.TypeChecker;
+import edu.harvard.seas.pl.formulog.types.TypeException;
+import edu.harvard.seas.pl.formulog.util.Util;
+
+/**
+ * Keeps an evaluated program resident and answers requests about it, so that
+ * repeated questions do not pay for startup, setup and full evaluation each
+ * time. Requests are read one per line:
+ *
+ * <pre>
+ * add REL TERMS      queue the addition of a fact to an input relation
+ * retract REL TERMS  queue the retraction of a fact from an input relation
+ * commit             apply the queued changes (incrementally)
+ * get REL            print the facts in a relation
+ * count REL          print the number of facts in a relation
+ * query              print the answers to the query
+ * quit               end the session
+ * </pre>
+ *
+ * The terms of a fact are tab-separated, as in external fact files. Each
+ * response ends with a line starting with "ok" or "error".
+ *
+ * If evaluating a commit fails, the evaluation might be left part way through
+ * the update, so the server stops: the session ends after the error response,
+ * and no further sessions are accepted.
+ */
+public class EvaluationServer {
+
+	private final Parser parser;
+	private final TypeChecker typeChecker;
+	private final SemiNaiveEvaluation eval;
+	private final Map<RelationSymbol, List<Term[]>> additions = new HashMap<>();
+	private final Map<RelationSymbol, List<Term[]>> retractions = new HashMap<>();
+	private Exception failure;
+
+	/**
+	 * The parser and type checker should be the ones used for the program, and the
+	 * evaluation should be incremental and already run.
+	 */
+	public EvaluationServer(Parser parser, TypeChecker typeChecker, SemiNaiveEvaluation eval) {
+		this.parser = parser;
+		this.typeChecker = typeChecker;
+		this.eval = eval;
+	}
+
+	/**
+	 * Serves requests on a socket bound to the loopback address, one connection at
+	 * a time.
+	 */
+	public void serve(int port) throws IOException {
+		try (ServerSocket ss = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+			System.out.println("Listening on port " + ss.getLocalPort());
+			while (!hasFailed()) {
+				try (Socket s = ss.accept()) {
+					serve(new BufferedReader(new InputStreamReader(s.getInputStream())),
+							new PrintStream(s.getOutputStream(), true));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Serves requests until the input ends or a session is ended explicitly.
+	 */
+	public synchronized void serve(BufferedReader in, PrintStream out) throws IOException {
+		if (hasFailed()) {
+			out.println("error The evaluation failed earlier: " + oneLine(failure));
+			return;
+		}
+		String line;
+		while ((line = in.readLine()) != null) {
+			line = line.trim();
+			if (line.isEmpty()) {
+				continue;
+			}
+			String[] parts = line.split("\\s+", 3);
+			if (parts[0].equals("quit")) {
+				out.println("ok");
+				return;
+			}
+			try {
+				handle(parts, out);
+			} catch (IllegalArgumentException | ParseException | TypeException e) {
+				out.println("error " + oneLine(e));
+			} catch (EvaluationException | RuntimeException e) {
+				failure = e;
+				out.println("error " + oneLine(e));
+				out.flush();
+				return;
+			}
+			out.flush();
+		}
+	}
+
+	/**
+	 * Returns whether the server has stopped because evaluating a commit failed.
+	 */
+	public synchronized boolean hasFailed() {
+		return failure != null;
+	}
+
+	public synchronized Exception getFailure() {
+		return failure;
+	}
+
+	private static String oneLine(Exception e) {
+		return String.valueOf(e.getMessage()).replace('\n', ' ');
+	}
+
+	private void handle(String[] parts, PrintStream out)
+			throws ParseException, TypeException, EvaluationException {
+		switch (parts[0]) {
+		case "add":
+			queue(parts, additions);
+			out.println("ok");
+			break;
+		case "retract":
+			queue(parts, retractions);
+			out.println("ok");
+			break;
+		case "commit": {
+			StopWatch clock = new StopWatch();
+			clock.start();
+			try {
+				eval.update(additions, retractions);
+			} finally {
+				additions.clear();
+				retractions.clear();
+			}
+			clock.stop();
+			out.println("ok (" + clock.getTime() / 1000.0 + "s)");
+			break;
+		}
+		case "get": {
+			List<UserPredicate> facts = Util.iterableToList(eval.getResult().getAll(lookup(parts)));
+			Util.printSortedFacts(facts, out);
+			out.println("ok " + facts.size());
+			break;
+		}
+		case "count":
+			out.println("ok " + Util.iterableToList(eval.getResult().getAll(lookup(parts))).size());
+			break;
+		case "query": {
+			Iterable<UserPredicate> ans = eval.getResult().getQueryAnswer();
+			if (ans == null) {
+				throw new IllegalArgumentException("There is no query");
+			}
+			List<UserPredicate> facts = Util.iterableToList(ans);
+			Util.printSortedFacts(facts, out);
+			out.println("ok " + facts.size());
+			break;
+		}
+		default:
+			throw new IllegalArgumentException("Unrecognized request: " + parts[0]);
+		}
+	}
+
+	private RelationSymbol lookup(String[] parts) {
+		if (parts.length < 2) {
+			throw new IllegalArgumentException("Expected a relation name");
+		}
+		EvaluationResult res = eval.getResult();
+		for (RelationSymbol sym : res.getSymbols()) {
+			if (sym.toString().equals(parts[1])) {
+				return sym;
+			}
+		}
+		throw new IllegalArgumentException("Unrecognized relation: " + parts[1]);
+	}
+
+	private void queue(String[] parts, Map<RelationSymbol, List<Term[]>> changes)
+			throws ParseException, TypeException {
+		RelationSymbol sym = lookup(parts);
+		if (!sym.isEdbSymbol()) {
+			throw new IllegalArgumentException("Can only change input relations, not " + sym);
+		}
+		List<Term[]> facts = new ArrayList<>();
+		if (sym.getArity() == 0) {
+			facts.add(Terms.emptyArray());
+		} else {
+			String tsv = parts.length > 2 ? parts[2] : "";
+			for (Term[] args : parser.parseFacts(sym, new StringReader(tsv + "\n"))) {
+				facts.add(typeChecker.typeCheckFact(sym, args));
+			}
+		}
+		if (facts.size() != 1) {
+			throw new IllegalArgumentException("Expected a single fact");
+		}
+		Util.lookupOrCreate(changes, sym, () -> new ArrayList<>()).addAll(facts);
+	}
+
+}
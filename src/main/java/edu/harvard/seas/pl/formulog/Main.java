@@ -20,8 +20,11 @@ package edu.harvard.seas.pl.formulog;
  * #L%
  */
 
+import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -54,6 +57,8 @@ public final class Main {
 
 	private final String file;
 	private final StopWatch clock = new StopWatch();
+	private final Parser parser = new Parser();
+	private TypeChecker typeChecker;
 	private volatile boolean interrupted = true;
 
 	private static final boolean exnStackTrace = System.getProperty("exnStackTrace") != null;
@@ -80,7 +85,11 @@ public final class Main {
 		);
 		evaluate(eval);
 		interrupted = false;
-		printResults(eval);
+		if (Configuration.server) {
+			serve((SemiNaiveEvaluation) eval);
+		} else {
+			printResults(eval);
+		}
 	}
 
 	private Program<UserPredicate, BasicRule> parse() {
@@ -92,7 +101,7 @@ public final class Main {
 				factDirs = Collections.singletonList(Paths.get(""));
 			}
 			FileReader reader = new FileReader(file);
-			Program<UserPredicate, BasicRule> prog = new Parser().parse(reader, factDirs);
+			Program<UserPredicate, BasicRule> prog = parser.parse(reader, factDirs);
 			clock.stop();
 			System.out.println("Finished parsing (" + clock.getTime() / 1000.0 + "s)");
 			return prog;
@@ -107,7 +116,8 @@ public final class Main {
 		clock.reset();
 		clock.start();
 		try {
-			WellTypedProgram prog2 = new TypeChecker(prog).typeCheck();
+			typeChecker = new TypeChecker(prog);
+			WellTypedProgram prog2 = typeChecker.typeCheck();
 			clock.stop();
 			System.out.println("Finished type checking (" + clock.getTime() / 1000.0 + "s)");
 			return prog2;
@@ -122,7 +132,8 @@ public final class Main {
 		clock.reset();
 		clock.start();
 		try {
-			Evaluation eval = SemiNaiveEvaluation.setup(prog, Configuration.parallelism, Configuration.eagerSemiNaive);
+			Evaluation eval = SemiNaiveEvaluation.setup(prog, Configuration.parallelism, Configuration.eagerSemiNaive,
+					Configuration.server);
 			clock.stop();
 			System.out.println("Finished rewriting and validating (" + clock.getTime() / 1000.0 + "s)");
 			return eval;
@@ -145,6 +156,23 @@ public final class Main {
 		}
 	}
 
+	private void serve(SemiNaiveEvaluation eval) {
+		EvaluationServer server = new EvaluationServer(parser, typeChecker, eval);
+		try {
+			if (Configuration.serverPort > 0) {
+				server.serve(Configuration.serverPort);
+			} else {
+				System.out.println("Serving requests on standard input");
+				server.serve(new BufferedReader(new InputStreamReader(System.in)), System.out);
+			}
+		} catch (IOException e) {
+			handleException("Error while serving requests!", e, true);
+		}
+		if (server.hasFailed()) {
+			handleException("Error while evaluating an update!", server.getFailure(), true);
+		}
+	}
+
 	private void printResults(Evaluation eval) {
 		PrintStream out = System.out;
 		EvaluationResult res = eval.getResult();
@@ -603,7 +603,7 @@ public final class Constructors {
 
 			@Override
 			public void toSmtLib(SmtLibShim shim) {
-				((SmtLibTerm) args[0]).toSmtLib(shim);
+				shim.print((SmtLibTerm) args[0]);
 			}
 
 		});
@@ -620,14 +620,14 @@ public final class Constructors {
 				if (idx1 < idx2) {
 					shim.print("(");
 					shim.print("(_ sign_extend " + (idx2 - idx1) + ") ");
-					t.toSmtLib(shim);
+					shim.print(t);
 					shim.print(")");
 				} else if (idx1 == idx2) {
-					t.toSmtLib(shim);
+					shim.print(t);
 				} else {
 					shim.print("(");
 					shim.print("(_ extract " + (idx2 - 1) + " 0) ");
-					t.toSmtLib(shim);
+					shim.print(t);
 					shim.print(")");
 				}
 			}
@@ -646,14 +646,14 @@ public final class Constructors {
 				if (idx1 < idx2) {
 					shim.print("(");
 					shim.print("(_ zero_extend " + (idx2 - idx1) + ") ");
-					t.toSmtLib(shim);
+					shim.print(t);
 					shim.print(")");
 				} else if (idx1 == idx2) {
-					t.toSmtLib(shim);
+					shim.print(t);
 				} else {
 					shim.print("(");
 					shim.print("(_ extract " + (idx2 - 1) + " 0) ");
-					t.toSmtLib(shim);
+					shim.print(t);
 					shim.print(")");
 				}
 			}
@@ -670,7 +670,7 @@ public final class Constructors {
 				int exponent = nat(sym, 1);
 				int significand = nat(sym, 2);
 				shim.print("((_ to_fp " + exponent + " " + significand + ") RNE ");
-				((SmtLibTerm) args[0]).toSmtLib(shim);
+				shim.print((SmtLibTerm) args[0]);
 				shim.print(")");
 			}
 
@@ -685,7 +685,7 @@ public final class Constructors {
 				int exponent = nat(sym, 2);
 				int significand = nat(sym, 3);
 				shim.print("((_ to_fp " + exponent + " " + significand + ") RNE ");
-				((SmtLibTerm) args[0]).toSmtLib(shim);
+				shim.print((SmtLibTerm) args[0]);
 				shim.print(")");
 			}
 
@@ -700,7 +700,7 @@ public final class Constructors {
 			public void toSmtLib(SmtLibShim shim) {
 				int width = nat(sym, 2);
 				shim.print("((_ " + s + " " + width + ") RNE ");
-				((SmtLibTerm) args[0]).toSmtLib(shim);
+				shim.print((SmtLibTerm) args[0]);
 				shim.print(")");
 			}
 
@@ -893,7 +893,7 @@ public final class Constructors {
 				shim.print("(");
 				shim.print(s);
 				shim.print(" ");
-				((SmtLibTerm) args[0]).toSmtLib(shim);
+				shim.print((SmtLibTerm) args[0]);
 				shim.print(")");
 			}
 
@@ -909,7 +909,7 @@ public final class Constructors {
 				shim.print("(");
 				shim.print(s);
 				shim.print(" ");
-				((SmtLibTerm) args[0]).toSmtLib(shim);
+				shim.print((SmtLibTerm) args[0]);
 				shim.print(")");
 			}
 
@@ -1014,7 +1014,7 @@ public final class Constructors {
 		for (Term t : c.getArgs()) {
 			SmtLibTerm tt = (SmtLibTerm) t;
 			shim.print(" ");
-			tt.toSmtLib(shim);
+			shim.print(tt);
 		}
 		if (sym.getArity() > 0) {
 			shim.print(")");
@@ -61,6 +61,15 @@ public final class FunctionCallFactory {
 		return memo.lookupOrCreate(sym, args, () -> new FunctionCall(sym, args));
 	}
 
+	/**
+	 * Forgets the memoized results of function calls. Calls to predicate functions
+	 * (and functions that make them) depend on the contents of the database, so
+	 * their results go stale when it changes other than by evaluation.
+	 */
+	public void clearMemo() {
+		callMemo.clear();
+	}
+
 	public FunctionDefManager getDefManager() {
 		return defManager;
 	}
@@ -64,7 +64,8 @@ public class I32 extends AbstractTerm implements Primitive<Integer>, SmtLibTerm
 	
 	@Override
 	public void toSmtLib(SmtLibShim shim) {
-		shim.print("#x" + String.format("%08x", val));
+		String hex = Integer.toHexString(val);
+		shim.print("#x" + "00000000".substring(hex.length()) + hex);
 	}
 
 	@Override
@@ -64,7 +64,8 @@ public class I64 extends AbstractTerm implements Primitive<Long>, SmtLibTerm {
 	
 	@Override
 	public void toSmtLib(SmtLibShim shim) {
-		shim.print("#x" + String.format("%016x", val));
+		String hex = Long.toHexString(val);
+		shim.print("#x" + "0000000000000000".substring(hex.length()) + hex);
 	}
 
 	@Override
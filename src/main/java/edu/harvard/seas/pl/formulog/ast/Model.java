@@ -25,13 +25,14 @@ import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 import edu.harvard.seas.pl.formulog.ast.Constructors.SolverVariable;
+import edu.harvard.seas.pl.formulog.smt.LazyModel;
 import edu.harvard.seas.pl.formulog.types.BuiltInTypes;
 import edu.harvard.seas.pl.formulog.types.Types.Type;
 import edu.harvard.seas.pl.formulog.util.Util;
 
 public class Model extends AbstractTerm implements Primitive<Map<SolverVariable, Term>> {
 
-	private static final Map<Map<SolverVariable, Term>, Model> memo = new ConcurrentHashMap<>();
+	private static final Map<Object, Model> memo = new ConcurrentHashMap<>();
 	
 	private final Map<SolverVariable, Term> m;
 
@@ -40,7 +41,9 @@ public class Model extends AbstractTerm implements Primitive<Map<SolverVariable,
 	}
 
 	public static Model make(Map<SolverVariable, Term> m) {
-		return Util.lookupOrCreate(memo, m, () -> new Model(m));
+		// Hashing a lazy model would parse all of its values.
+		Object key = m instanceof LazyModel ? ((LazyModel) m).getKey() : m;
+		return Util.lookupOrCreate(memo, key, () -> new Model(m));
 	}
 
 	@Override
@@ -29,8 +29,8 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import edu.harvard.seas.pl.formulog.db.SortedIndexedFactDb;
-import edu.harvard.seas.pl.formulog.db.SortedIndexedFactDb.IndexInfo;
+import edu.harvard.seas.pl.formulog.db.IndexInfo;
+import edu.harvard.seas.pl.formulog.db.IndexedFactDb;
 import edu.harvard.seas.pl.formulog.eval.SemiNaiveEvaluation;
 import edu.harvard.seas.pl.formulog.eval.SemiNaiveRule.DeltaSymbol;
 import edu.harvard.seas.pl.formulog.symbols.BuiltInConstructorSymbol;
@@ -119,8 +119,8 @@ public class CodeGenContext {
 
 	private class Worker {
 
-		private final SortedIndexedFactDb db;
-		private final SortedIndexedFactDb deltaDb;
+		private final IndexedFactDb db;
+		private final IndexedFactDb deltaDb;
 
 		public Worker() {
 			this.db = eval.getDb();
@@ -136,13 +136,13 @@ public class CodeGenContext {
 			}
 		}
 
-		private void processRelations(SortedIndexedFactDb db) {
+		private void processRelations(IndexedFactDb db) {
 			for (Iterator<RelationSymbol> it = db.getSymbols().iterator(); it.hasNext();) {
 				processRelation(db, it.next());
 			}
 		}
 
-		private void processRelation(SortedIndexedFactDb db, RelationSymbol sym) {
+		private void processRelation(IndexedFactDb db, RelationSymbol sym) {
 			RelationStruct struct = new BTreeRelationStruct(sym.getArity(), db.getMasterIndex(sym),
 					mkIndexInfo(sym, db));
 			relStructs.add(struct);
@@ -159,7 +159,7 @@ public class CodeGenContext {
 			rels.put(sym, rel);
 		}
 
-		private Map<Integer, IndexInfo> mkIndexInfo(RelationSymbol sym, SortedIndexedFactDb db) {
+		private Map<Integer, IndexInfo> mkIndexInfo(RelationSymbol sym, IndexedFactDb db) {
 			Map<Integer, IndexInfo> m = new HashMap<>();
 			int n = db.numIndices(sym);
 			for (int i = 0; i < n; ++i) {
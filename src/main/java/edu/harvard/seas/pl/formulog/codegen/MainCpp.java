@@ -32,7 +32,7 @@ import java.util.Iterator;
 import java.util.List;
 
 import edu.harvard.seas.pl.formulog.ast.Term;
-import edu.harvard.seas.pl.formulog.db.SortedIndexedFactDb;
+import edu.harvard.seas.pl.formulog.db.IndexedFactDb;
 import edu.harvard.seas.pl.formulog.symbols.RelationSymbol;
 import edu.harvard.seas.pl.formulog.util.Pair;
 import edu.harvard.seas.pl.formulog.validating.Stratum;
@@ -70,7 +70,7 @@ public class MainCpp {
 
 	private class Worker {
 
-		private final SortedIndexedFactDb db = ctx.getEval().getDb();
+		private final IndexedFactDb db = ctx.getEval().getDb();
 		private final PrintWriter out;
 
 		public Worker(PrintWriter out) {
@@ -86,7 +86,7 @@ public class SmtHpp {
 		}
 
 		public void copyDeclarations() {
-			new SmtLibShim(null, out, ctx.getEval().getInputProgram());
+			out.print(SmtLibShim.getDeclarations(ctx.getEval().getInputProgram()));
 		}
 
 		public void genSolverVarCases() {
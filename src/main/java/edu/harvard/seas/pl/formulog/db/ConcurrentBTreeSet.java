@@ -0,0 +1,678 @@
+package edu.harvard.seas.pl.formulog.db;
+
+/*-
+ * #%L
+ * FormuLog
+ * %%
+ * Copyright (C) 2018 - 2019 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * A concurrent set backed by a B+-tree, in the style of the B-tree used by the
+ * generated C++ code. Leaves are linked (as in a B-link tree) and hold sorted,
+ * immutable arrays of elements that are replaced on each update; inner nodes
+ * are immutable and are path-copied when a leaf splits.
+ *
+ * Insertions into different leaves proceed in parallel; splits are serialized.
+ * Readers never block, and iterators are weakly consistent: they return every
+ * element that was in the set when they were created, each at most once, and
+ * may or may not return elements added afterwards. Spliterators split key
+ * ranges at the separators of inner nodes, so that a large range can be
+ * divided into roughly balanced parts without scanning it.
+ */
+public class ConcurrentBTreeSet<E> implements Iterable<E> {
+
+	private static final int leafCapacity = 32;
+	private static final int innerCapacity = 64;
+
+	private final Comparator<? super E> cmp;
+	private final Object splitLock = new Object();
+	private volatile Node root;
+	private volatile Leaf head;
+	// Removals can leave empty leaves behind, so emptiness is tracked separately.
+	private final LongAdder count = new LongAdder();
+
+	public ConcurrentBTreeSet(Comparator<? super E> cmp) {
+		this.cmp = cmp;
+		Leaf l = new Leaf(null);
+		root = l;
+		head = l;
+	}
+
+	public Comparator<? super E> comparator() {
+		return cmp;
+	}
+
+	public boolean isEmpty() {
+		return count.sum() == 0;
+	}
+
+	/**
+	 * Returns the number of elements in the set. This is only exact when there
+	 * are no concurrent updates.
+	 */
+	public int size() {
+		return count.intValue();
+	}
+
+	public void clear() {
+		synchronized (splitLock) {
+			Leaf l = new Leaf(null);
+			root = l;
+			head = l;
+			count.reset();
+		}
+	}
+
+	public boolean contains(E e) {
+		Leaf leaf = findLeaf(e);
+		while (true) {
+			Object[] keys = leaf.keys;
+			Object high = leaf.high;
+			if (high != null && compare(e, high) >= 0) {
+				leaf = leaf.next;
+			} else {
+				return search(keys, e) >= 0;
+			}
+		}
+	}
+
+	public boolean add(E e) {
+		Leaf leaf = lockLeaf(findLeaf(e), e);
+		try {
+			Object[] keys = leaf.keys;
+			int pos = search(keys, e);
+			if (pos >= 0) {
+				return false;
+			}
+			if (keys.length < leafCapacity) {
+				leaf.keys = insert(keys, -pos - 1, e);
+				count.increment();
+				return true;
+			}
+		} finally {
+			leaf.lock.unlock();
+		}
+		if (addAndSplit(e)) {
+			count.increment();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Removes the given element, returning whether it was in the set. Leaves are
+	 * not merged when they shrink, so they can end up empty.
+	 */
+	public boolean remove(E e) {
+		Leaf leaf = lockLeaf(findLeaf(e), e);
+		try {
+			Object[] keys = leaf.keys;
+			int pos = search(keys, e);
+			if (pos < 0) {
+				return false;
+			}
+			Object[] a = new Object[keys.length - 1];
+			System.arraycopy(keys, 0, a, 0, pos);
+			System.arraycopy(keys, pos + 1, a, pos, keys.length - pos - 1);
+			leaf.keys = a;
+			count.decrement();
+			return true;
+		} finally {
+			leaf.lock.unlock();
+		}
+	}
+
+	/**
+	 * Adds the given elements, returning the number of elements that were not
+	 * already in the set. The elements are sorted first, so that runs of elements
+	 * belonging to the same leaf can be added at once, and so that each leaf
+	 * serves as a hint for where to add the next run.
+	 */
+	@SuppressWarnings("unchecked")
+	public int addAll(Iterable<? extends E> es) {
+		List<E> l = new ArrayList<>();
+		es.forEach(l::add);
+		Object[] batch = l.toArray();
+		Arrays.sort(batch, (Comparator<Object>) cmp);
+		int added = 0;
+		Leaf hint = null;
+		int[] cursor = { 0 };
+		while (cursor[0] < batch.length) {
+			int i = cursor[0];
+			E e = (E) batch[i];
+			if (hint != null && hint.low != null && compare(e, hint.low) < 0) {
+				hint = null;
+			}
+			Leaf leaf = lockLeaf(hint == null ? findLeaf(e) : hint, e);
+			try {
+				added += addRun(leaf, batch, cursor);
+			} finally {
+				leaf.lock.unlock();
+			}
+			if (cursor[0] == i) {
+				// The leaf is full, and the next element is not in it.
+				if (addAndSplit(e)) {
+					added++;
+				}
+				cursor[0]++;
+				hint = null;
+			} else {
+				hint = leaf.next;
+			}
+		}
+		count.add(added);
+		return added;
+	}
+
+	/*
+	 * Adds elements from the batch (starting at the cursor) to the given locked
+	 * leaf, as long as they belong in it and fit in it. Advances the cursor past
+	 * the elements handled and returns the number of elements added.
+	 */
+	private int addRun(Leaf leaf, Object[] batch, int[] cursor) {
+		Object[] keys = leaf.keys;
+		Object high = leaf.high;
+		int from = cursor[0];
+		Object[] fresh = new Object[Math.min(leafCapacity - keys.length, batch.length - from)];
+		int n = 0;
+		int i = from;
+		for (; i < batch.length; ++i) {
+			Object e = batch[i];
+			if (high != null && compare(e, high) >= 0) {
+				break;
+			}
+			if (i > from && compare(e, batch[i - 1]) == 0) {
+				continue;
+			}
+			if (search(keys, e) >= 0) {
+				continue;
+			}
+			if (n == fresh.length) {
+				break;
+			}
+			fresh[n++] = e;
+		}
+		if (n > 0) {
+			leaf.keys = merge(keys, fresh, n);
+		}
+		cursor[0] = i;
+		return n;
+	}
+
+	private boolean addAndSplit(E e) {
+		synchronized (splitLock) {
+			Leaf leaf = lockLeaf(findLeaf(e), e);
+			try {
+				Object[] keys = leaf.keys;
+				int pos = search(keys, e);
+				if (pos >= 0) {
+					return false;
+				}
+				Object[] all = insert(keys, -pos - 1, e);
+				if (all.length <= leafCapacity) {
+					leaf.keys = all;
+					return true;
+				}
+				int mid = all.length / 2;
+				Object sep = all[mid];
+				Leaf right = new Leaf(sep);
+				right.keys = Arrays.copyOfRange(all, mid, all.length);
+				right.high = leaf.high;
+				right.next = leaf.next;
+				// Readers rely on the new sibling being reachable before the keys
+				// are removed from this leaf.
+				leaf.next = right;
+				leaf.high = sep;
+				leaf.keys = Arrays.copyOfRange(all, 0, mid);
+				postSplit(sep, right);
+				return true;
+			} finally {
+				leaf.lock.unlock();
+			}
+		}
+	}
+
+	private void postSplit(Object sep, Leaf right) {
+		Object r = insertSeparator(root, sep, right);
+		if (r instanceof Split) {
+			Split s = (Split) r;
+			root = new Inner(new Object[] { s.key }, new Node[] { s.left, s.right });
+		} else {
+			root = (Node) r;
+		}
+	}
+
+	private Object insertSeparator(Node n, Object sep, Leaf right) {
+		if (n instanceof Leaf) {
+			return new Split(n, sep, right);
+		}
+		Inner in = (Inner) n;
+		int i = route(in.keys, sep);
+		Object r = insertSeparator(in.children[i], sep, right);
+		if (r instanceof Node) {
+			Node[] children = in.children.clone();
+			children[i] = (Node) r;
+			return new Inner(in.keys, children);
+		}
+		Split s = (Split) r;
+		Object[] keys = insert(in.keys, i, s.key);
+		Node[] children = new Node[in.children.length + 1];
+		System.arraycopy(in.children, 0, children, 0, i);
+		children[i] = s.left;
+		children[i + 1] = s.right;
+		System.arraycopy(in.children, i + 1, children, i + 2, in.children.length - i - 1);
+		if (children.length <= innerCapacity) {
+			return new Inner(keys, children);
+		}
+		int mid = children.length / 2;
+		Inner left = new Inner(Arrays.copyOfRange(keys, 0, mid - 1), Arrays.copyOfRange(children, 0, mid));
+		Inner r2 = new Inner(Arrays.copyOfRange(keys, mid, keys.length),
+				Arrays.copyOfRange(children, mid, children.length));
+		return new Split(left, keys[mid - 1], r2);
+	}
+
+	private Leaf findLeaf(Object e) {
+		Node n = root;
+		while (n instanceof Inner) {
+			Inner in = (Inner) n;
+			n = in.children[route(in.keys, e)];
+		}
+		return (Leaf) n;
+	}
+
+	/*
+	 * Locks and returns the leaf that the given element belongs in, starting at
+	 * the given leaf and moving right as necessary.
+	 */
+	private Leaf lockLeaf(Leaf leaf, Object e) {
+		leaf.lock.lock();
+		Object high;
+		while ((high = leaf.high) != null && compare(e, high) >= 0) {
+			Leaf next = leaf.next;
+			next.lock.lock();
+			leaf.lock.unlock();
+			leaf = next;
+		}
+		return leaf;
+	}
+
+	/**
+	 * Returns the elements between lower and upper (inclusive), in order.
+	 */
+	public Iterable<E> range(E lower, E upper) {
+		return new Iterable<E>() {
+
+			@Override
+			public Iterator<E> iterator() {
+				return new RangeIterator(lower, upper, true);
+			}
+
+			@Override
+			public Spliterator<E> spliterator() {
+				return new RangeSpliterator(lower, upper, true);
+			}
+
+		};
+	}
+
+	@Override
+	public Iterator<E> iterator() {
+		return new RangeIterator(null, null, true);
+	}
+
+	@Override
+	public Spliterator<E> spliterator() {
+		return new RangeSpliterator(null, null, true);
+	}
+
+	/*
+	 * Returns a separator that splits the elements greater than lower (exclusive)
+	 * and less than upper roughly in half, judging by the shape of the tree, or
+	 * null if they all fall in one leaf. A null bound is unbounded.
+	 */
+	private Object findSeparator(Object lower, Object upper, boolean upperInclusive) {
+		Node n = root;
+		while (n instanceof Inner) {
+			Inner in = (Inner) n;
+			int i = lower == null ? 0 : route(in.keys, lower);
+			int j = upper == null ? in.keys.length : route(in.keys, upper);
+			if (i < j) {
+				Object sep = in.keys[(i + j - 1) >>> 1];
+				if (upper == null || upperInclusive || compare(sep, upper) < 0) {
+					return sep;
+				}
+			}
+			n = in.children[i];
+		}
+		return null;
+	}
+
+	/*
+	 * Estimates the number of elements between lower and upper, assuming that the
+	 * subtrees they span are about as full as the first one.
+	 */
+	private long estimateRange(Object lower, Object upper) {
+		Node n = root;
+		while (n instanceof Inner) {
+			Inner in = (Inner) n;
+			int i = lower == null ? 0 : route(in.keys, lower);
+			int j = upper == null ? in.keys.length : route(in.keys, upper);
+			if (i < j) {
+				long size = j - i + 1;
+				for (Node m = in.children[i]; m instanceof Inner; m = ((Inner) m).children[0]) {
+					size *= ((Inner) m).children.length;
+				}
+				return size * leafCapacity / 2;
+			}
+			n = in.children[i];
+		}
+		return ((Leaf) n).keys.length;
+	}
+
+	@SuppressWarnings("unchecked")
+	private int compare(Object x, Object y) {
+		return cmp.compare((E) x, (E) y);
+	}
+
+	/*
+	 * Returns the index of the child to follow for e, i.e., the number of
+	 * separators less than or equal to e.
+	 */
+	private int route(Object[] keys, Object e) {
+		int lo = 0;
+		int hi = keys.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (compare(keys[mid], e) <= 0) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	private int search(Object[] keys, Object e) {
+		int lo = 0;
+		int hi = keys.length - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int c = compare(keys[mid], e);
+			if (c < 0) {
+				lo = mid + 1;
+			} else if (c > 0) {
+				hi = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -(lo + 1);
+	}
+
+	private Object[] insert(Object[] keys, int pos, Object e) {
+		Object[] a = new Object[keys.length + 1];
+		System.arraycopy(keys, 0, a, 0, pos);
+		a[pos] = e;
+		System.arraycopy(keys, pos, a, pos + 1, keys.length - pos);
+		return a;
+	}
+
+	private Object[] merge(Object[] keys, Object[] fresh, int n) {
+		Object[] a = new Object[keys.length + n];
+		int i = 0;
+		int j = 0;
+		int k = 0;
+		while (i < keys.length && j < n) {
+			if (compare(keys[i], fresh[j]) < 0) {
+				a[k++] = keys[i++];
+			} else {
+				a[k++] = fresh[j++];
+			}
+		}
+		while (i < keys.length) {
+			a[k++] = keys[i++];
+		}
+		while (j < n) {
+			a[k++] = fresh[j++];
+		}
+		return a;
+	}
+
+	private static abstract class Node {
+
+	}
+
+	private static final class Leaf extends Node {
+
+		static final Object[] empty = new Object[0];
+
+		// Every element in this leaf is at least low (which never changes) and
+		// less than high (which shrinks when the leaf splits).
+		final Object low;
+		volatile Object high;
+		volatile Object[] keys = empty;
+		volatile Leaf next;
+		final ReentrantLock lock = new ReentrantLock();
+
+		Leaf(Object low) {
+			this.low = low;
+		}
+
+	}
+
+	private static final class Inner extends Node {
+
+		final Object[] keys;
+		final Node[] children;
+
+		Inner(Object[] keys, Node[] children) {
+			assert keys.length + 1 == children.length;
+			this.keys = keys;
+			this.children = children;
+		}
+
+	}
+
+	private static final class Split {
+
+		final Node left;
+		final Object key;
+		final Node right;
+
+		Split(Node left, Object key, Node right) {
+			this.left = left;
+			this.key = key;
+			this.right = right;
+		}
+
+	}
+
+	private class RangeIterator implements Iterator<E> {
+
+		private final Object lower;
+		private Object upper;
+		private boolean upperInclusive;
+		private Leaf leaf;
+		private Object[] keys;
+		private int pos;
+		private Object last;
+		private Object next;
+
+		public RangeIterator(Object lower, Object upper, boolean upperInclusive) {
+			this.lower = lower;
+			this.upper = upper;
+			this.upperInclusive = upperInclusive;
+			leaf = lower == null ? head : findLeaf(lower);
+			keys = leaf.keys;
+			pos = lower == null ? 0 : lowerBound(keys, lower);
+			advance();
+		}
+
+		private void advance() {
+			while (pos == keys.length) {
+				leaf = leaf.next;
+				if (leaf == null) {
+					next = null;
+					return;
+				}
+				keys = leaf.keys;
+				// A leaf may have split since we read its predecessor, in which case
+				// we need to skip what we have already seen.
+				if (last != null) {
+					pos = upperBound(keys, last);
+				} else if (lower != null) {
+					pos = lowerBound(keys, lower);
+				} else {
+					pos = 0;
+				}
+			}
+			Object e = keys[pos];
+			if (beyondUpper(e)) {
+				next = null;
+				return;
+			}
+			next = e;
+			pos++;
+		}
+
+		private boolean beyondUpper(Object e) {
+			if (upper == null) {
+				return false;
+			}
+			int c = compare(e, upper);
+			return upperInclusive ? c > 0 : c >= 0;
+		}
+
+		/*
+		 * Lowers the upper bound (exclusively) to the given element, which must not
+		 * be less than the last element returned.
+		 */
+		void restrict(Object bound) {
+			upper = bound;
+			upperInclusive = false;
+			if (next != null && beyondUpper(next)) {
+				next = null;
+			}
+		}
+
+		private int lowerBound(Object[] keys, Object e) {
+			int i = search(keys, e);
+			return i >= 0 ? i : -i - 1;
+		}
+
+		private int upperBound(Object[] keys, Object e) {
+			int i = search(keys, e);
+			return i >= 0 ? i + 1 : -i - 1;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public E next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			Object e = next;
+			last = e;
+			advance();
+			return (E) e;
+		}
+
+	}
+
+	private class RangeSpliterator implements Spliterator<E> {
+
+		private Object lower;
+		private final Object upper;
+		private final boolean upperInclusive;
+		private RangeIterator it;
+
+		public RangeSpliterator(Object lower, Object upper, boolean upperInclusive) {
+			this.lower = lower;
+			this.upper = upper;
+			this.upperInclusive = upperInclusive;
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super E> action) {
+			if (it == null) {
+				it = new RangeIterator(lower, upper, upperInclusive);
+			}
+			if (!it.hasNext()) {
+				return false;
+			}
+			action.accept(it.next());
+			return true;
+		}
+
+		@Override
+		public Spliterator<E> trySplit() {
+			Object sep = findSeparator(remainingFrom(), upper, upperInclusive);
+			if (sep == null) {
+				return null;
+			}
+			RangeSpliterator prefix = new RangeSpliterator(lower, sep, false);
+			if (it != null) {
+				it.restrict(sep);
+				prefix.it = it;
+				it = null;
+			}
+			lower = sep;
+			return prefix;
+		}
+
+		@Override
+		public long estimateSize() {
+			return estimateRange(remainingFrom(), upper);
+		}
+
+		/*
+		 * Once iteration has started, only what is after the last element returned
+		 * is left.
+		 */
+		private Object remainingFrom() {
+			return it == null || it.last == null ? lower : it.last;
+		}
+
+		@Override
+		public int characteristics() {
+			return ORDERED | DISTINCT | SORTED | NONNULL | CONCURRENT;
+		}
+
+		@Override
+		public Comparator<? super E> getComparator() {
+			return cmp;
+		}
+
+	}
+
+}
@@ -0,0 +1,417 @@
+package edu.harvard.seas.pl.formulog.db;
+
+/*-
+ * #%L
+ * FormuLog
+ * %%
+ * Copyright (C) 2018 - 2019 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import edu.harvard.seas.pl.formulog.ast.BindingType;
+import edu.harvard.seas.pl.formulog.ast.Term;
+import edu.harvard.seas.pl.formulog.db.PackedTupleSet.RowDecoder;
+import edu.harvard.seas.pl.formulog.symbols.RelationSymbol;
+import edu.harvard.seas.pl.formulog.symbols.SymbolComparator;
+
+/**
+ * A fact database that stores each tuple as a row of term ids (see
+ * {@link TermTable}) in packed primitive arrays, instead of as a
+ * <code>Term[]</code>. Tuples are only turned back into terms when they are
+ * read out of the database.
+ */
+public class EncodedIndexedFactDb implements IndexedFactDb {
+
+	private final Map<RelationSymbol, List<EncodedFactSet>> indices;
+	private final Map<RelationSymbol, EncodedFactSet> masterIndex;
+
+	private EncodedIndexedFactDb(Map<RelationSymbol, List<EncodedFactSet>> indices,
+			Map<RelationSymbol, EncodedFactSet> masterIndex) {
+		this.indices = indices;
+		this.masterIndex = masterIndex;
+	}
+
+	@Override
+	public Set<RelationSymbol> getSymbols() {
+		return Collections.unmodifiableSet(masterIndex.keySet());
+	}
+
+	@Override
+	public Iterable<Term[]> getAll(RelationSymbol sym) {
+		return masterIndex.get(sym).getAll();
+	}
+
+	@Override
+	public boolean isEmpty(RelationSymbol sym) {
+		return masterIndex.get(sym).isEmpty();
+	}
+
+	@Override
+	public int countDistinct(RelationSymbol sym) {
+		return masterIndex.get(sym).count();
+	}
+
+	@Override
+	public int countDuplicates(RelationSymbol sym) {
+		int count = 0;
+		for (EncodedFactSet idx : indices.get(sym)) {
+			count += idx.count();
+		}
+		return count;
+	}
+
+	@Override
+	public Iterable<Term[]> get(RelationSymbol sym, Term[] key, int index) {
+		return indices.get(sym).get(index).lookup(key);
+	}
+
+	@Override
+	public boolean add(RelationSymbol sym, Term[] tup) {
+		EncodedFactSet master = masterIndex.get(sym);
+		int[] row = master.encode(tup);
+		if (master.add(row)) {
+			for (EncodedFactSet idx : indices.get(sym)) {
+				if (!idx.equals(master)) {
+					idx.add(idx.encode(tup));
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public boolean addAll(RelationSymbol sym, Iterable<Term[]> tups) {
+		boolean modified = false;
+		for (Term[] tup : tups) {
+			modified |= add(sym, tup);
+		}
+		return modified;
+	}
+
+	@Override
+	public int numMergeTargets(RelationSymbol sym) {
+		return indices.get(sym).size();
+	}
+
+	@Override
+	public Comparator<Term[]> getMergeOrder(RelationSymbol sym, int target) {
+		return indices.get(sym).get(target).getOrder();
+	}
+
+	@Override
+	public void mergeFresh(RelationSymbol sym, int target, Iterable<Term[]> tups) {
+		EncodedFactSet idx = indices.get(sym).get(target);
+		for (Term[] tup : tups) {
+			idx.add(idx.encode(tup));
+		}
+	}
+
+	@Override
+	public boolean hasFact(RelationSymbol sym, Term[] args) {
+		return masterIndex.get(sym).contains(args);
+	}
+
+	@Override
+	public boolean removeAll(RelationSymbol sym, Iterable<Term[]> tups) {
+		EncodedFactSet master = masterIndex.get(sym);
+		List<EncodedFactSet> projected = new ArrayList<>();
+		for (EncodedFactSet idx : indices.get(sym)) {
+			if (idx.isProjected()) {
+				projected.add(idx);
+			}
+		}
+		boolean modified = false;
+		for (Term[] tup : tups) {
+			if (master.remove(tup)) {
+				modified = true;
+				for (EncodedFactSet idx : indices.get(sym)) {
+					if (!idx.equals(master) && !idx.isProjected()) {
+						idx.remove(tup);
+					}
+				}
+			}
+		}
+		// A projected index keeps a single row for each projection, which might
+		// stand in for a tuple that is still there, so it is rebuilt instead.
+		if (modified) {
+			for (EncodedFactSet idx : projected) {
+				idx.clear();
+				for (Term[] tup : master.getAll()) {
+					idx.add(idx.encode(tup));
+				}
+			}
+		}
+		return modified;
+	}
+
+	private void forEachIndex(Consumer<EncodedFactSet> f) {
+		for (Iterable<EncodedFactSet> idxs : indices.values()) {
+			for (EncodedFactSet idx : idxs) {
+				f.accept(idx);
+			}
+		}
+	}
+
+	@Override
+	public void clear() {
+		forEachIndex(EncodedFactSet::clear);
+	}
+
+	@Override
+	public int numIndices(RelationSymbol sym) {
+		if (!indices.containsKey(sym)) {
+			throw new IllegalArgumentException("Unrecognized symbol: " + sym);
+		}
+		return indices.get(sym).size();
+	}
+
+	@Override
+	public IndexInfo getIndexInfo(RelationSymbol sym, int idx) {
+		if (idx < 0 || idx >= numIndices(sym)) {
+			throw new IllegalArgumentException("Unrecognized index for symbol " + sym + ": " + idx);
+		}
+		EncodedFactSet index = indices.get(sym).get(idx);
+		return new IndexInfo(index.getComparatorOrder(), Collections.singleton(Arrays.asList(index.pat)));
+	}
+
+	@Override
+	public int getMasterIndex(RelationSymbol sym) {
+		if (!indices.containsKey(sym)) {
+			throw new IllegalArgumentException("Unrecognized symbol: " + sym);
+		}
+		return indices.get(sym).indexOf(masterIndex.get(sym));
+	}
+
+	@Override
+	public String toString() {
+		String s = "{\n";
+		for (RelationSymbol sym : masterIndex.keySet()) {
+			s += "\t" + sym + " = {\n";
+			for (EncodedFactSet idx : indices.get(sym)) {
+				s += idx.toString() + "\n";
+			}
+			s += "\t}\n";
+		}
+		return s + "}";
+	}
+
+	public static class EncodedIndexedFactDbBuilder implements IndexedFactDbBuilder<EncodedIndexedFactDb> {
+
+		private final Map<RelationSymbol, Map<BindingTypeArrayWrapper, Integer>> pats = new LinkedHashMap<>();
+
+		public EncodedIndexedFactDbBuilder(Set<RelationSymbol> allSyms) {
+			List<RelationSymbol> sortedSyms = allSyms.stream().sorted(SymbolComparator.INSTANCE)
+					.collect(Collectors.toList());
+			for (RelationSymbol sym : sortedSyms) {
+				pats.put(sym, new HashMap<>());
+			}
+		}
+
+		@Override
+		public synchronized int makeIndex(RelationSymbol sym, BindingType[] pat) {
+			assert sym.getArity() == pat.length;
+			Map<BindingTypeArrayWrapper, Integer> m = pats.get(sym);
+			assert m != null : "Symbol not registered with DB: " + sym;
+			return m.computeIfAbsent(new BindingTypeArrayWrapper(pat), k -> m.size());
+		}
+
+		@Override
+		public EncodedIndexedFactDb build() {
+			Map<RelationSymbol, List<EncodedFactSet>> indices = new HashMap<>();
+			Map<RelationSymbol, EncodedFactSet> masterIndex = new LinkedHashMap<>();
+			for (Map.Entry<RelationSymbol, Map<BindingTypeArrayWrapper, Integer>> e : pats.entrySet()) {
+				RelationSymbol sym = e.getKey();
+				List<EncodedFactSet> idxs = new ArrayList<>();
+				List<BindingTypeArrayWrapper> sorted = e.getValue().entrySet().stream().sorted(cmp)
+						.map(Map.Entry::getKey).collect(Collectors.toList());
+				EncodedFactSet master = null;
+				for (BindingTypeArrayWrapper pat : sorted) {
+					EncodedFactSet idx = new EncodedFactSet(pat.getArr());
+					idxs.add(idx);
+					if (master == null && !idx.isProjected()) {
+						master = idx;
+					}
+				}
+				if (master == null) {
+					BindingType[] pat = new BindingType[sym.getArity()];
+					Arrays.fill(pat, BindingType.FREE);
+					master = new EncodedFactSet(pat);
+					idxs.add(master);
+				}
+				masterIndex.put(sym, master);
+				indices.put(sym, idxs);
+			}
+			return new EncodedIndexedFactDb(indices, masterIndex);
+		}
+
+		private static final Comparator<Map.Entry<BindingTypeArrayWrapper, Integer>> cmp = (e1, e2) -> Integer
+				.compare(e1.getValue(), e2.getValue());
+
+	}
+
+	private static class EncodedFactSet {
+
+		private final BindingType[] pat;
+		// The order in which columns are laid out in a row: bound columns first,
+		// then free columns, then ignored columns (which are not part of the key).
+		private final int[] order;
+		private final int numBound;
+		private final PackedTupleSet s;
+		private final RowDecoder<Term[]> decoder;
+
+		public EncodedFactSet(BindingType[] pat) {
+			this.pat = pat;
+			order = new int[pat.length];
+			int i = 0;
+			for (BindingType b : BindingType.values()) {
+				for (int j = 0; j < pat.length; ++j) {
+					if (pat[j].equals(b)) {
+						order[i] = j;
+						i++;
+					}
+				}
+			}
+			int bound = 0;
+			int keyWidth = 0;
+			for (BindingType b : pat) {
+				if (b.isBound()) {
+					bound++;
+				}
+				if (!b.isIgnored()) {
+					keyWidth++;
+				}
+			}
+			numBound = bound;
+			s = new PackedTupleSet(pat.length, keyWidth);
+			decoder = (block, off) -> {
+				Term[] tup = new Term[order.length];
+				for (int j = 0; j < order.length; ++j) {
+					tup[order[j]] = TermTable.lookup(block[off + j]);
+				}
+				return tup;
+			};
+		}
+
+		public List<Integer> getComparatorOrder() {
+			List<Integer> l = new ArrayList<>();
+			for (int i = 0; i < order.length; ++i) {
+				if (!pat[order[i]].isIgnored()) {
+					l.add(order[i]);
+				}
+			}
+			return l;
+		}
+
+		public Comparator<Term[]> getOrder() {
+			int keyWidth = s.getKeyWidth();
+			return (tup1, tup2) -> {
+				for (int i = 0; i < keyWidth; ++i) {
+					int c = Integer.compare(tup1[order[i]].getId(), tup2[order[i]].getId());
+					if (c != 0) {
+						return c;
+					}
+				}
+				return 0;
+			};
+		}
+
+		public boolean isProjected() {
+			for (BindingType b : pat) {
+				if (b.isIgnored()) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		public int[] encode(Term[] tup) {
+			int[] row = new int[order.length];
+			for (int i = 0; i < order.length; ++i) {
+				row[i] = TermTable.intern(tup[order[i]]);
+			}
+			return row;
+		}
+
+		public boolean add(int[] row) {
+			return s.add(row);
+		}
+
+		public boolean contains(Term[] tup) {
+			int[] row = new int[order.length];
+			for (int i = 0; i < order.length; ++i) {
+				row[i] = tup[order[i]].getId();
+			}
+			return s.contains(row);
+		}
+
+		public boolean remove(Term[] tup) {
+			int[] row = new int[order.length];
+			for (int i = 0; i < order.length; ++i) {
+				row[i] = tup[order[i]].getId();
+			}
+			return s.remove(row);
+		}
+
+		public Iterable<Term[]> lookup(Term[] key) {
+			int[] prefix = new int[numBound];
+			for (int i = 0; i < numBound; ++i) {
+				prefix[i] = key[order[i]].getId();
+			}
+			return s.lookup(prefix, numBound, decoder);
+		}
+
+		public Iterable<Term[]> getAll() {
+			return s.getAll(decoder);
+		}
+
+		public int count() {
+			return s.size();
+		}
+
+		public boolean isEmpty() {
+			return s.isEmpty();
+		}
+
+		public void clear() {
+			s.clear();
+		}
+
+		@Override
+		public String toString() {
+			String str = "[\n\t";
+			str += Arrays.toString(pat);
+			for (Term[] tup : getAll()) {
+				str += "\n\t";
+				str += Arrays.toString(tup);
+			}
+			return str + "\n]";
+		}
+
+	}
+
+}
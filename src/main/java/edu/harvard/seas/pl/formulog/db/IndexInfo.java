@@ -0,0 +1,47 @@
+package edu.harvard.seas.pl.formulog.db;
+
+/*-
+ * #%L
+ * FormuLog
+ * %%
+ * Copyright (C) 2018 - 2019 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import edu.harvard.seas.pl.formulog.ast.BindingType;
+
+public class IndexInfo {
+
+	private final List<Integer> comparatorOrder;
+	private final Set<List<BindingType>> bindingPatterns;
+
+	IndexInfo(List<Integer> comparatorOrder, Set<List<BindingType>> bindingPatterns) {
+		this.comparatorOrder = Collections.unmodifiableList(comparatorOrder);
+		this.bindingPatterns = Collections.unmodifiableSet(bindingPatterns);
+	}
+
+	public List<Integer> getComparatorOrder() {
+		return comparatorOrder;
+	}
+
+	public Set<List<BindingType>> getBindingPatterns() {
+		return bindingPatterns;
+	}
+
+}
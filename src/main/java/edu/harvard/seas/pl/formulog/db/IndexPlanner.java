@@ -0,0 +1,167 @@
+package edu.harvard.seas.pl.formulog.db;
+
+/*-
+ * #%L
+ * FormuLog
+ * %%
+ * Copyright (C) 2018 - 2019 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.harvard.seas.pl.formulog.ast.BindingType;
+
+/**
+ * Decides how the binding patterns used to access a relation map onto physical
+ * indices. A sorted index whose comparator order starts with the bound columns
+ * of a pattern can serve that pattern, so patterns whose bound columns form a
+ * chain under inclusion can share a single index. This computes a minimum chain
+ * cover of the patterns (as Souffle does), treating patterns with different
+ * ignored columns separately.
+ */
+class IndexPlanner {
+
+	private IndexPlanner() {
+		throw new AssertionError("impossible");
+	}
+
+	/**
+	 * A physical index: its comparator order (not including ignored columns), and
+	 * the positions (in the input list) of the patterns it serves.
+	 */
+	static class Plan {
+
+		private final List<Integer> comparatorOrder;
+		private final List<Integer> patterns;
+		private final BindingType[] widest;
+
+		private Plan(List<Integer> comparatorOrder, List<Integer> patterns, BindingType[] widest) {
+			this.comparatorOrder = comparatorOrder;
+			this.patterns = patterns;
+			this.widest = widest;
+		}
+
+		public List<Integer> getComparatorOrder() {
+			return comparatorOrder;
+		}
+
+		public List<Integer> getPatterns() {
+			return patterns;
+		}
+
+		/**
+		 * Returns the pattern served by this index with the most bound columns.
+		 */
+		public BindingType[] getWidestPattern() {
+			return widest;
+		}
+
+	}
+
+	public static List<Plan> plan(List<BindingType[]> pats) {
+		Map<BitSet, List<Integer>> groups = new LinkedHashMap<>();
+		for (int i = 0; i < pats.size(); ++i) {
+			groups.computeIfAbsent(columns(pats.get(i), BindingType.IGNORED), k -> new ArrayList<>()).add(i);
+		}
+		List<Plan> plans = new ArrayList<>();
+		for (List<Integer> group : groups.values()) {
+			planGroup(pats, group, plans);
+		}
+		return plans;
+	}
+
+	private static void planGroup(List<BindingType[]> pats, List<Integer> group, List<Plan> plans) {
+		int n = group.size();
+		BitSet[] bound = new BitSet[n];
+		for (int i = 0; i < n; ++i) {
+			bound[i] = columns(pats.get(group.get(i)), BindingType.BOUND);
+		}
+		// succ[i] is the pattern that follows pattern i in its chain (-1 if none);
+		// computed as a maximum matching from patterns to their strict supersets.
+		int[] succ = new int[n];
+		int[] pred = new int[n];
+		Arrays.fill(succ, -1);
+		Arrays.fill(pred, -1);
+		for (int i = 0; i < n; ++i) {
+			augment(i, bound, succ, pred, new boolean[n]);
+		}
+		for (int i = 0; i < n; ++i) {
+			if (pred[i] != -1) {
+				continue;
+			}
+			BindingType[] widest = null;
+			List<Integer> members = new ArrayList<>();
+			List<Integer> order = new ArrayList<>();
+			BitSet seen = new BitSet();
+			for (int j = i; j != -1; j = succ[j]) {
+				members.add(group.get(j));
+				widest = pats.get(group.get(j));
+				addColumns(bound[j], seen, order);
+			}
+			addColumns(columns(widest, BindingType.FREE), seen, order);
+			plans.add(new Plan(order, members, widest));
+		}
+	}
+
+	private static boolean augment(int i, BitSet[] bound, int[] succ, int[] pred, boolean[] visited) {
+		for (int j = 0; j < bound.length; ++j) {
+			if (visited[j] || !isStrictSubset(bound[i], bound[j])) {
+				continue;
+			}
+			visited[j] = true;
+			if (pred[j] == -1 || augment(pred[j], bound, succ, pred, visited)) {
+				succ[i] = j;
+				pred[j] = i;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isStrictSubset(BitSet s1, BitSet s2) {
+		if (s1.cardinality() >= s2.cardinality()) {
+			return false;
+		}
+		BitSet s = (BitSet) s1.clone();
+		s.andNot(s2);
+		return s.isEmpty();
+	}
+
+	private static void addColumns(BitSet cols, BitSet seen, List<Integer> order) {
+		for (int i = cols.nextSetBit(0); i >= 0; i = cols.nextSetBit(i + 1)) {
+			if (!seen.get(i)) {
+				seen.set(i);
+				order.add(i);
+			}
+		}
+	}
+
+	private static BitSet columns(BindingType[] pat, BindingType ty) {
+		BitSet s = new BitSet();
+		for (int i = 0; i < pat.length; ++i) {
+			if (pat[i].equals(ty)) {
+				s.set(i);
+			}
+		}
+		return s;
+	}
+
+}
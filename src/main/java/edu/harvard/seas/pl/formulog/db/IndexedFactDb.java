@@ -20,6 +20,7 @@ package edu.harvard.seas.pl.formulog.db;
  * #L%
  */
 
+import java.util.Comparator;
 import java.util.Set;
 
 import edu.harvard.seas.pl.formulog.ast.Term;
@@ -47,6 +48,36 @@ public interface IndexedFactDb {
 	
 	boolean hasFact(RelationSymbol sym, Term[] args);
 
+	/**
+	 * Removes the given tuples from a relation, returning whether any of them were
+	 * in it.
+	 */
+	boolean removeAll(RelationSymbol sym, Iterable<Term[]> tups);
+
+	/**
+	 * Returns the number of targets (e.g., physical indices) that new tuples for
+	 * the given relation need to be merged into. Each target can be merged into
+	 * independently of the others.
+	 */
+	int numMergeTargets(RelationSymbol sym);
+
+	/**
+	 * Returns the order in which the given merge target stores tuples, or null if
+	 * it is unordered. Merging sorted runs of tuples into an ordered target is
+	 * cheaper than merging them in an arbitrary order.
+	 */
+	Comparator<Term[]> getMergeOrder(RelationSymbol sym, int target);
+
+	/**
+	 * Adds tuples to the given merge target. None of the tuples can already be in
+	 * the relation, and they have to be merged into every target.
+	 */
+	void mergeFresh(RelationSymbol sym, int target, Iterable<Term[]> tups);
+
 	void clear();
 
+	int getMasterIndex(RelationSymbol sym);
+
+	IndexInfo getIndexInfo(RelationSymbol sym, int idx);
+
 }
@@ -0,0 +1,374 @@
+package edu.harvard.seas.pl.formulog.db;
+
+/*-
+ * #%L
+ * FormuLog
+ * %%
+ * Copyright (C) 2018 - 2019 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A sorted set of fixed-width rows of ints. Rows are packed, in order, into
+ * leaves of at most {@link #maxLeafRows} rows each, which hold immutable arrays
+ * that are replaced on each update. Rows are ordered lexicographically by their
+ * first <code>keyWidth</code> columns, and two rows that agree on those columns
+ * are considered equal.
+ * 
+ * As in {@link ConcurrentBTreeSet}, the leaves are linked and each has its own
+ * lock, so that writers to different leaves proceed in parallel; the leaves are
+ * found through a skip list keyed by their lowest row, so that a split only
+ * adds an entry to it. Readers never block, and iterators are weakly
+ * consistent: they return every row that was in the set when they were
+ * created, each at most once.
+ */
+public class PackedTupleSet {
+
+	private static final int maxLeafRows = 64;
+	private static final int[] noRows = new int[0];
+
+	private final int width;
+	private final int keyWidth;
+	private final ConcurrentSkipListMap<int[], Leaf> leaves;
+	private volatile Leaf head = new Leaf(null);
+	private final AtomicInteger size = new AtomicInteger();
+
+	public PackedTupleSet(int width, int keyWidth) {
+		assert keyWidth <= width;
+		this.width = width;
+		this.keyWidth = keyWidth;
+		leaves = new ConcurrentSkipListMap<>((r1, r2) -> compare(r1, 0, r2, 0, keyWidth));
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getKeyWidth() {
+		return keyWidth;
+	}
+
+	public int size() {
+		return size.get();
+	}
+
+	public boolean isEmpty() {
+		return size.get() == 0;
+	}
+
+	/**
+	 * Empties the set. This should not be called concurrently with updates.
+	 */
+	public void clear() {
+		leaves.clear();
+		head = new Leaf(null);
+		size.set(0);
+	}
+
+	public boolean add(int[] row) {
+		assert row.length == width;
+		if (width == 0) {
+			// Nullary rows cannot be packed; such a set is either empty or a singleton.
+			return size.compareAndSet(0, 1);
+		}
+		Leaf leaf = lockLeaf(findLeaf(row), row);
+		try {
+			int[] rows = leaf.rows;
+			int pos = lowerBound(rows, row, 0, keyWidth);
+			if (pos < rows.length / width && compare(rows, pos * width, row, 0, keyWidth) == 0) {
+				return false;
+			}
+			int[] a = new int[rows.length + width];
+			int off = pos * width;
+			System.arraycopy(rows, 0, a, 0, off);
+			System.arraycopy(row, 0, a, off, width);
+			System.arraycopy(rows, off, a, off + width, rows.length - off);
+			if (a.length / width > maxLeafRows) {
+				split(leaf, a);
+			} else {
+				leaf.rows = a;
+			}
+			size.incrementAndGet();
+			return true;
+		} finally {
+			leaf.lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the row with the same key as the given one, returning whether there
+	 * was one. Leaves are not merged when they shrink, so they can end up empty.
+	 */
+	public boolean remove(int[] row) {
+		assert row.length == width;
+		if (width == 0) {
+			return size.compareAndSet(1, 0);
+		}
+		Leaf leaf = lockLeaf(findLeaf(row), row);
+		try {
+			int[] rows = leaf.rows;
+			int pos = lowerBound(rows, row, 0, keyWidth);
+			if (pos == rows.length / width || compare(rows, pos * width, row, 0, keyWidth) != 0) {
+				return false;
+			}
+			int off = pos * width;
+			int[] a = new int[rows.length - width];
+			System.arraycopy(rows, 0, a, 0, off);
+			System.arraycopy(rows, off + width, a, off, rows.length - off - width);
+			leaf.rows = a;
+			size.decrementAndGet();
+			return true;
+		} finally {
+			leaf.lock.unlock();
+		}
+	}
+
+	public boolean contains(int[] row) {
+		if (width == 0) {
+			return size.get() > 0;
+		}
+		Leaf leaf = findLeaf(row);
+		while (true) {
+			// The rows have to be read before the link, since a split publishes the
+			// new link before it shrinks the rows.
+			int[] rows = leaf.rows;
+			Leaf next = leaf.next;
+			if (next != null && compare(row, 0, next.low, 0, keyWidth) >= 0) {
+				leaf = next;
+			} else {
+				int pos = lowerBound(rows, row, 0, keyWidth);
+				return pos < rows.length / width && compare(rows, pos * width, row, 0, keyWidth) == 0;
+			}
+		}
+	}
+
+	public <T> Iterable<T> getAll(RowDecoder<T> decoder) {
+		if (width == 0) {
+			return () -> size.get() > 0 ? Collections.singleton(decoder.decode(noRows, 0)).iterator()
+					: Collections.emptyIterator();
+		}
+		return () -> new RowIterator<>(head, null, 0, decoder);
+	}
+
+	/**
+	 * Returns the rows whose first <code>prefixLen</code> columns match the first
+	 * <code>prefixLen</code> entries of <code>prefix</code>.
+	 */
+	public <T> Iterable<T> lookup(int[] prefix, int prefixLen, RowDecoder<T> decoder) {
+		assert prefixLen <= keyWidth;
+		if (prefixLen == 0) {
+			return getAll(decoder);
+		}
+		return () -> {
+			// Every row that matches the prefix is at least the prefix padded out with
+			// the smallest possible ids.
+			int[] probe = new int[keyWidth];
+			System.arraycopy(prefix, 0, probe, 0, prefixLen);
+			Arrays.fill(probe, prefixLen, keyWidth, Integer.MIN_VALUE);
+			return new RowIterator<>(findLeaf(probe), prefix, prefixLen, decoder);
+		};
+	}
+
+	/*
+	 * Finds the last leaf whose lowest row is less than or equal to the given row
+	 * (as of some recent point in time).
+	 */
+	private Leaf findLeaf(int[] row) {
+		Map.Entry<int[], Leaf> e = leaves.floorEntry(row);
+		return e == null ? head : e.getValue();
+	}
+
+	/*
+	 * Locks the leaf that the given row belongs in, starting from a leaf that is
+	 * at or before it.
+	 */
+	private Leaf lockLeaf(Leaf leaf, int[] row) {
+		while (true) {
+			leaf.lock.lock();
+			Leaf next = leaf.next;
+			if (next != null && compare(row, 0, next.low, 0, keyWidth) >= 0) {
+				leaf.lock.unlock();
+				leaf = next;
+			} else {
+				return leaf;
+			}
+		}
+	}
+
+	/*
+	 * Splits an overfull array of rows between the (locked) leaf and a new leaf
+	 * after it. The new leaf is linked in before the old one shrinks, so that a
+	 * concurrent reader always finds the rows in one or the other.
+	 */
+	private void split(Leaf leaf, int[] a) {
+		int mid = (a.length / width / 2) * width;
+		Leaf right = new Leaf(Arrays.copyOfRange(a, mid, mid + width));
+		right.rows = Arrays.copyOfRange(a, mid, a.length);
+		right.next = leaf.next;
+		leaves.put(right.low, right);
+		leaf.next = right;
+		leaf.rows = Arrays.copyOf(a, mid);
+	}
+
+	/*
+	 * Returns the position of the first row in the array that is greater than or
+	 * equal to the given key on its first len columns.
+	 */
+	private int lowerBound(int[] rows, int[] key, int keyOff, int len) {
+		int lo = 0;
+		int hi = rows.length / width;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (compare(rows, mid * width, key, keyOff, len) < 0) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	/*
+	 * Returns the position of the first row in the array that is strictly greater
+	 * than the given key on its first len columns.
+	 */
+	private int upperBound(int[] rows, int[] key, int keyOff, int len) {
+		int lo = 0;
+		int hi = rows.length / width;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (compare(rows, mid * width, key, keyOff, len) <= 0) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	private static int compare(int[] a, int aOff, int[] b, int bOff, int len) {
+		for (int i = 0; i < len; ++i) {
+			int x = a[aOff + i];
+			int y = b[bOff + i];
+			if (x < y) {
+				return -1;
+			} else if (x > y) {
+				return 1;
+			}
+		}
+		return 0;
+	}
+
+	@FunctionalInterface
+	public static interface RowDecoder<T> {
+
+		T decode(int[] block, int offset);
+
+	}
+
+	private static class Leaf {
+
+		// The lowest row that can be in this leaf (null for the first leaf).
+		final int[] low;
+		final ReentrantLock lock = new ReentrantLock();
+		volatile int[] rows = noRows;
+		volatile Leaf next;
+
+		Leaf(int[] low) {
+			this.low = low;
+		}
+
+	}
+
+	private class RowIterator<T> implements Iterator<T> {
+
+		private final int[] prefix;
+		private final int prefixLen;
+		private final RowDecoder<T> decoder;
+		private Leaf leaf;
+		private int[] rows;
+		private int off;
+		// The last row returned, which a leaf that has split since it was read can
+		// show up again after.
+		private int[] lastRows;
+		private int lastOff;
+		private boolean done;
+
+		public RowIterator(Leaf leaf, int[] prefix, int prefixLen, RowDecoder<T> decoder) {
+			this.leaf = leaf;
+			this.prefix = prefix;
+			this.prefixLen = prefixLen;
+			this.decoder = decoder;
+			rows = leaf.rows;
+			off = start(rows);
+			advance();
+		}
+
+		private int start(int[] rows) {
+			if (lastRows != null) {
+				return upperBound(rows, lastRows, lastOff, keyWidth) * width;
+			}
+			if (prefix != null) {
+				return lowerBound(rows, prefix, 0, prefixLen) * width;
+			}
+			return 0;
+		}
+
+		private void advance() {
+			while (off >= rows.length) {
+				Leaf next = leaf.next;
+				if (next == null) {
+					done = true;
+					return;
+				}
+				leaf = next;
+				rows = next.rows;
+				off = start(rows);
+			}
+			if (prefix != null && compare(rows, off, prefix, 0, prefixLen) != 0) {
+				done = true;
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return !done;
+		}
+
+		@Override
+		public T next() {
+			if (done) {
+				throw new NoSuchElementException();
+			}
+			T t = decoder.decode(rows, off);
+			lastRows = rows;
+			lastOff = off;
+			off += width;
+			advance();
+			return t;
+		}
+
+	}
+
+}
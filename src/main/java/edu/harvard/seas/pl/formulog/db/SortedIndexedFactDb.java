@@ -30,9 +30,8 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.NavigableSet;
 import java.util.Set;
-import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
@@ -46,12 +45,16 @@ import edu.harvard.seas.pl.formulog.symbols.SymbolComparator;
 
 public class SortedIndexedFactDb implements IndexedFactDb {
 
+	// The physical indices for each relation; a physical index may serve several
+	// of the logical indices handed out by the builder.
 	private final Map<RelationSymbol, List<IndexedFactSet>> indices;
+	private final Map<RelationSymbol, List<LogicalIndex>> logicalIndices;
 	private final Map<RelationSymbol, IndexedFactSet> masterIndex;
 
 	private SortedIndexedFactDb(Map<RelationSymbol, List<IndexedFactSet>> indices,
-			Map<RelationSymbol, IndexedFactSet> masterIndex) {
+			Map<RelationSymbol, List<LogicalIndex>> logicalIndices, Map<RelationSymbol, IndexedFactSet> masterIndex) {
 		this.indices = indices;
+		this.logicalIndices = logicalIndices;
 		this.masterIndex = masterIndex;
 	}
 
@@ -86,7 +89,8 @@ public class SortedIndexedFactDb implements IndexedFactDb {
 
 	@Override
 	public Iterable<Term[]> get(RelationSymbol sym, Term[] key, int index) {
-		return indices.get(sym).get(index).lookup(key);
+		LogicalIndex idx = logicalIndices.get(sym).get(index);
+		return idx.index.lookup(key, idx.pat);
 	}
 
 	@Override
@@ -118,6 +122,21 @@ public class SortedIndexedFactDb implements IndexedFactDb {
 		return false;
 	}
 
+	@Override
+	public int numMergeTargets(RelationSymbol sym) {
+		return indices.get(sym).size();
+	}
+
+	@Override
+	public Comparator<Term[]> getMergeOrder(RelationSymbol sym, int target) {
+		return indices.get(sym).get(target).getOrder();
+	}
+
+	@Override
+	public void mergeFresh(RelationSymbol sym, int target, Iterable<Term[]> tups) {
+		indices.get(sym).get(target).addAll(tups);
+	}
+
 	private boolean allNormal(Term[] args) {
 		for (Term arg : args) {
 			if (!arg.isGround() || arg.containsUnevaluatedTerm()) {
@@ -141,6 +160,37 @@ public class SortedIndexedFactDb implements IndexedFactDb {
 		return masterIndex.get(sym).contains(args);
 	}
 
+	@Override
+	public boolean removeAll(RelationSymbol sym, Iterable<Term[]> tups) {
+		IndexedFactSet master = masterIndex.get(sym);
+		List<IndexedFactSet> projected = new ArrayList<>();
+		for (IndexedFactSet idx : indices.get(sym)) {
+			if (idx.isProjected()) {
+				projected.add(idx);
+			}
+		}
+		boolean modified = false;
+		for (Term[] tup : tups) {
+			if (master.remove(tup)) {
+				modified = true;
+				for (IndexedFactSet idx : indices.get(sym)) {
+					if (!idx.equals(master) && !idx.isProjected()) {
+						idx.remove(tup);
+					}
+				}
+			}
+		}
+		// A projected index keeps a single tuple for each projection, which might
+		// stand in for a tuple that is still there, so it is rebuilt instead.
+		if (modified) {
+			for (IndexedFactSet idx : projected) {
+				idx.clear();
+				idx.addAll(master.getAll());
+			}
+		}
+		return modified;
+	}
+
 	private boolean allGround(Term[] args) {
 		for (Term arg : args) {
 			if (!arg.isGround()) {
@@ -183,28 +233,30 @@ public class SortedIndexedFactDb implements IndexedFactDb {
 
 	@Override
 	public int numIndices(RelationSymbol sym) {
-		if (!indices.containsKey(sym)) {
+		if (!logicalIndices.containsKey(sym)) {
 			throw new IllegalArgumentException("Unrecognized symbol: " + sym);
 		}
-		return indices.get(sym).size();
+		return logicalIndices.get(sym).size();
 	}
 
+	@Override
 	public IndexInfo getIndexInfo(RelationSymbol sym, int idx) {
-		if (idx < 0 || idx > numIndices(sym)) {
+		if (idx < 0 || idx >= numIndices(sym)) {
 			throw new IllegalArgumentException("Unrecognized index for symbol " + sym + ": " + idx);
 		}
-		IndexedFactSet index = indices.get(sym).get(idx);
-		return new IndexInfo(index.comparatorOrder, Collections.singleton(Arrays.asList(index.pat)));
+		LogicalIndex index = logicalIndices.get(sym).get(idx);
+		return new IndexInfo(index.index.comparatorOrder, Collections.singleton(Arrays.asList(index.pat)));
 	}
 
+	@Override
 	public int getMasterIndex(RelationSymbol sym) {
-		if (!indices.containsKey(sym)) {
+		if (!logicalIndices.containsKey(sym)) {
 			throw new IllegalArgumentException("Unrecognized symbol: " + sym);
 		}
 		int i = 0;
 		IndexedFactSet master = masterIndex.get(sym);
-		for (IndexedFactSet s : indices.get(sym)) {
-			if (s.equals(master)) {
+		for (LogicalIndex idx : logicalIndices.get(sym)) {
+			if (idx.index.equals(master)) {
 				break;
 			}
 			i++;
@@ -216,8 +268,18 @@ public class SortedIndexedFactDb implements IndexedFactDb {
 
 		private final Map<RelationSymbol, Integer> counts = new HashMap<>();
 		private final Map<RelationSymbol, Map<BindingTypeArrayWrapper, Integer>> pats = new LinkedHashMap<>();
+		private final boolean hashIndexes;
 
 		public SortedIndexedFactDbBuilder(Set<RelationSymbol> allSyms) {
+			this(allSyms, Configuration.hashIndexes);
+		}
+
+		/**
+		 * If hashIndexes is set, an index that serves a single lookup pattern with
+		 * at least one bound column is a hash table instead of an ordered set.
+		 */
+		public SortedIndexedFactDbBuilder(Set<RelationSymbol> allSyms, boolean hashIndexes) {
+			this.hashIndexes = hashIndexes;
 			List<RelationSymbol> sortedSyms = allSyms.stream().sorted(SymbolComparator.INSTANCE)
 					.collect(Collectors.toList());
 			for (RelationSymbol sym : sortedSyms) {
@@ -244,29 +306,44 @@ public class SortedIndexedFactDb implements IndexedFactDb {
 		@Override
 		public SortedIndexedFactDb build() {
 			Map<RelationSymbol, List<IndexedFactSet>> indices = new HashMap<>();
+			Map<RelationSymbol, List<LogicalIndex>> logicalIndices = new HashMap<>();
 			Map<RelationSymbol, IndexedFactSet> masterIndex = new HashMap<>();
 			for (Map.Entry<RelationSymbol, Map<BindingTypeArrayWrapper, Integer>> e : pats.entrySet()) {
 				RelationSymbol sym = e.getKey();
-				List<IndexedFactSet> idxs = new ArrayList<>();
-				List<Map.Entry<BindingTypeArrayWrapper, Integer>> sorted = e.getValue().entrySet().stream().sorted(cmp)
+				List<BindingType[]> sorted = e.getValue().entrySet().stream().sorted(cmp).map(e2 -> e2.getKey().getArr())
 						.collect(Collectors.toList());
-				for (Map.Entry<BindingTypeArrayWrapper, Integer> e2 : sorted) {
-					IndexedFactSet idx = IndexedFactSet.make(e2.getKey().getArr());
+				List<IndexedFactSet> idxs = new ArrayList<>();
+				LogicalIndex[] logical = new LogicalIndex[sorted.size()];
+				for (IndexPlanner.Plan plan : IndexPlanner.plan(sorted)) {
+					List<Integer> served = plan.getPatterns();
+					IndexedFactSet idx = IndexedFactSet.make(plan.getWidestPattern(), plan.getComparatorOrder(),
+							served.size() > 1, hashIndexes);
 					idxs.add(idx);
-					if (!idx.isProjected()) {
-						masterIndex.putIfAbsent(sym, idx);
+					for (int i : served) {
+						logical[i] = new LogicalIndex(idx, sorted.get(i));
+					}
+				}
+				List<LogicalIndex> l = new ArrayList<>(Arrays.asList(logical));
+				for (LogicalIndex idx : l) {
+					if (!idx.index.isProjected()) {
+						masterIndex.putIfAbsent(sym, idx.index);
 					}
 				}
-				if (!masterIndex.containsKey(sym)) {
+				IndexedFactSet master = masterIndex.get(sym);
+				if (master == null) {
 					BindingType[] pat = new BindingType[sym.getArity()];
+					List<Integer> order = new ArrayList<>();
 					for (int i = 0; i < pat.length; ++i) {
 						pat[i] = BindingType.FREE;
+						order.add(i);
 					}
-					IndexedFactSet master = IndexedFactSet.make(pat);
+					master = IndexedFactSet.make(pat, order, false, hashIndexes);
 					masterIndex.put(sym, master);
 					idxs.add(master);
+					l.add(new LogicalIndex(master, pat));
 				}
 				indices.put(sym, idxs);
+				logicalIndices.put(sym, l);
 			}
 			List<RelationSymbol> sortedSyms = masterIndex.keySet().stream().sorted(SymbolComparator.INSTANCE)
 					.collect(Collectors.toList());
@@ -274,7 +351,7 @@ public class SortedIndexedFactDb implements IndexedFactDb {
 			for (RelationSymbol sym : sortedSyms) {
 				sorted.put(sym, masterIndex.get(sym));
 			}
-			return new SortedIndexedFactDb(indices, sorted);
+			return new SortedIndexedFactDb(indices, logicalIndices, sorted);
 		}
 
 		private static final Comparator<Map.Entry<BindingTypeArrayWrapper, Integer>> cmp = new Comparator<Map.Entry<BindingTypeArrayWrapper, Integer>>() {
@@ -288,31 +365,33 @@ public class SortedIndexedFactDb implements IndexedFactDb {
 
 	}
 
-	private static class IndexedFactSet {
+	private static abstract class IndexedFactSet {
 
-		private final BindingType[] pat;
-		private final NavigableSet<Term[]> s;
-		private final AtomicInteger cnt = new AtomicInteger();
-		private final List<Integer> comparatorOrder;
+		protected final BindingType[] pat;
+		protected final AtomicInteger cnt = new AtomicInteger();
+		protected final List<Integer> comparatorOrder;
 
 		private final static TupleComparatorGenerator gen = new TupleComparatorGenerator();
 
-		public static IndexedFactSet make(BindingType[] pat) {
-			List<Integer> order = new ArrayList<>();
-			for (int i = 0; i < pat.length; ++i) {
-				if (pat[i].isBound()) {
-					order.add(i);
-				}
-			}
-			for (int i = 0; i < pat.length; ++i) {
-				if (pat[i].isFree()) {
-					order.add(i);
-				}
-			}
+		public static IndexedFactSet make(BindingType[] pat, List<Integer> order, boolean shared,
+				boolean hashIndexes) {
 			int[] a = new int[order.size()];
 			for (int i = 0; i < a.length; ++i) {
 				a[i] = order.get(i);
 			}
+			int numBound = 0;
+			for (BindingType b : pat) {
+				if (b.isBound()) {
+					numBound++;
+				}
+			}
+			// Lookups that bind at least one column only ever need the tuples that
+			// agree on the bound columns, so an index that serves a single such
+			// pattern does not need to be ordered.
+			if (hashIndexes && !shared && numBound > 0) {
+				return new HashedFactSet(pat, order, Arrays.copyOfRange(a, 0, numBound),
+						Arrays.copyOfRange(a, numBound, a.length));
+			}
 			Comparator<Term[]> cmp;
 			if (Configuration.genComparators) {
 				try {
@@ -323,13 +402,16 @@ public class SortedIndexedFactDb implements IndexedFactDb {
 			} else {
 				cmp = new TermArrayComparator(a);
 			}
-			return new IndexedFactSet(pat, new ConcurrentSkipListSet<>(cmp), order);
+			return new SortedFactSet(pat, new ConcurrentBTreeSet<>(cmp), order);
 		}
 
-		public Iterable<Term[]> getAll() {
-			return s;
+		protected IndexedFactSet(BindingType[] pat, List<Integer> comparatorOrder) {
+			this.pat = pat;
+			this.comparatorOrder = comparatorOrder;
 		}
 
+		public abstract Iterable<Term[]> getAll();
+
 		public boolean isProjected() {
 			for (BindingType b : pat) {
 				if (b.equals(BindingType.IGNORED)) {
@@ -339,21 +421,65 @@ public class SortedIndexedFactDb implements IndexedFactDb {
 			return false;
 		}
 
+		public abstract void clear();
+
+		public abstract boolean isEmpty();
+
+		public abstract boolean add(Term[] arr);
+
+		public abstract boolean addAll(Iterable<Term[]> tups);
+
+		public abstract boolean remove(Term[] arr);
+
+		public abstract Comparator<Term[]> getOrder();
+
+		public int count() {
+			return cnt.get();
+		}
+
+		public abstract Iterable<Term[]> lookup(Term[] tup, BindingType[] pat);
+
+		public abstract boolean contains(Term[] tup);
+
+		@Override
+		public String toString() {
+			String str = "[\n\t";
+			str += Arrays.toString(pat);
+			for (Term[] tup : getAll()) {
+				str += "\n\t";
+				str += Arrays.toString(tup);
+			}
+			return str + "\n]";
+		}
+
+	}
+
+	private static class SortedFactSet extends IndexedFactSet {
+
+		private final ConcurrentBTreeSet<Term[]> s;
+
+		public SortedFactSet(BindingType[] pat, ConcurrentBTreeSet<Term[]> s, List<Integer> comparatorOrder) {
+			super(pat, comparatorOrder);
+			this.s = s;
+		}
+
+		@Override
+		public Iterable<Term[]> getAll() {
+			return s;
+		}
+
+		@Override
 		public void clear() {
 			s.clear();
 			cnt.set(0);
 		}
 
+		@Override
 		public boolean isEmpty() {
 			return s.isEmpty();
 		}
 
-		private IndexedFactSet(BindingType[] pat, NavigableSet<Term[]> s, List<Integer> comparatorOrder) {
-			this.pat = pat;
-			this.s = s;
-			this.comparatorOrder = comparatorOrder;
-		}
-
+		@Override
 		public boolean add(Term[] arr) {
 			boolean modified = s.add(arr);
 			if (modified) {
@@ -362,26 +488,33 @@ public class SortedIndexedFactDb implements IndexedFactDb {
 			return modified;
 		}
 
+		@Override
 		public boolean addAll(Iterable<Term[]> tups) {
-			boolean modified = false;
-			int delta = 0;
-			for (Term[] tup : tups) {
-				if (s.add(tup)) {
-					modified = true;
-					delta++;
-				}
+			int delta = s.addAll(tups);
+			if (delta > 0) {
+				cnt.addAndGet(delta);
+				return true;
 			}
+			return false;
+		}
+
+		@Override
+		public boolean remove(Term[] arr) {
+			boolean modified = s.remove(arr);
 			if (modified) {
-				cnt.addAndGet(delta);
+				cnt.decrementAndGet();
 			}
 			return modified;
 		}
 
-		public int count() {
-			return cnt.get();
+		@Override
+		@SuppressWarnings("unchecked")
+		public Comparator<Term[]> getOrder() {
+			return (Comparator<Term[]>) s.comparator();
 		}
 
-		public Iterable<Term[]> lookup(Term[] tup) {
+		@Override
+		public Iterable<Term[]> lookup(Term[] tup, BindingType[] pat) {
 			Term[] lower = new Term[tup.length];
 			Term[] upper = new Term[tup.length];
 			for (int i = 0; i < tup.length; ++i) {
@@ -393,22 +526,176 @@ public class SortedIndexedFactDb implements IndexedFactDb {
 					upper[i] = Terms.maxTerm;
 				}
 			}
-			return s.subSet(lower, true, upper, true);
+			return s.range(lower, upper);
 		}
 
+		@Override
 		public boolean contains(Term[] tup) {
 			return s.contains(tup);
 		}
 
+	}
+
+	/*
+	 * An index that maps the values of the bound columns to the tuples that have
+	 * those values, which are themselves keyed by the values of the free columns.
+	 */
+	private static class HashedFactSet extends IndexedFactSet {
+
+		private final Map<TermArrayKey, Map<TermArrayKey, Term[]>> m = new ConcurrentHashMap<>();
+		private final int[] boundCols;
+		private final int[] freeCols;
+
+		public HashedFactSet(BindingType[] pat, List<Integer> comparatorOrder, int[] boundCols, int[] freeCols) {
+			super(pat, comparatorOrder);
+			this.boundCols = boundCols;
+			this.freeCols = freeCols;
+		}
+
 		@Override
-		public String toString() {
-			String str = "[\n\t";
-			str += Arrays.toString(pat);
-			for (Term[] tup : s) {
-				str += "\n\t";
-				str += Arrays.toString(tup);
+		public Iterable<Term[]> getAll() {
+			return () -> m.values().stream().flatMap(bucket -> bucket.values().stream()).iterator();
+		}
+
+		@Override
+		public void clear() {
+			m.clear();
+			cnt.set(0);
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return cnt.get() == 0;
+		}
+
+		@Override
+		public boolean add(Term[] arr) {
+			TermArrayKey key = new TermArrayKey(arr, boundCols);
+			TermArrayKey rest = new TermArrayKey(arr, freeCols);
+			boolean modified;
+			if (freeCols.length == 0) {
+				// Every lookup is a membership test, so each bucket has (at most) one
+				// tuple.
+				modified = m.putIfAbsent(key, Collections.singletonMap(rest, arr)) == null;
+			} else {
+				while (true) {
+					Map<TermArrayKey, Term[]> bucket = m.computeIfAbsent(key, k -> new ConcurrentHashMap<>());
+					modified = bucket.putIfAbsent(rest, arr) == null;
+					// A concurrent removal might have dropped the bucket (once it was empty)
+					// before the tuple went in, in which case it has to be added again.
+					if (m.get(key) == bucket) {
+						break;
+					}
+				}
 			}
-			return str + "\n]";
+			if (modified) {
+				cnt.incrementAndGet();
+			}
+			return modified;
+		}
+
+		@Override
+		public boolean addAll(Iterable<Term[]> tups) {
+			boolean modified = false;
+			for (Term[] tup : tups) {
+				modified |= add(tup);
+			}
+			return modified;
+		}
+
+		@Override
+		public boolean remove(Term[] arr) {
+			TermArrayKey key = new TermArrayKey(arr, boundCols);
+			TermArrayKey rest = new TermArrayKey(arr, freeCols);
+			boolean[] removed = { false };
+			// The bucket is dropped atomically with the check that it is empty.
+			m.computeIfPresent(key, (k, bucket) -> {
+				if (freeCols.length == 0) {
+					removed[0] = true;
+					return null;
+				}
+				removed[0] = bucket.remove(rest) != null;
+				return bucket.isEmpty() ? null : bucket;
+			});
+			if (removed[0]) {
+				cnt.decrementAndGet();
+			}
+			return removed[0];
+		}
+
+		@Override
+		public Comparator<Term[]> getOrder() {
+			return null;
+		}
+
+		@Override
+		public Iterable<Term[]> lookup(Term[] tup, BindingType[] pat) {
+			Map<TermArrayKey, Term[]> bucket = m.get(new TermArrayKey(tup, boundCols));
+			if (bucket == null) {
+				return Collections.emptyList();
+			}
+			return bucket.values();
+		}
+
+		@Override
+		public boolean contains(Term[] tup) {
+			Map<TermArrayKey, Term[]> bucket = m.get(new TermArrayKey(tup, boundCols));
+			return bucket != null && bucket.containsKey(new TermArrayKey(tup, freeCols));
+		}
+
+	}
+
+	private static class LogicalIndex {
+
+		private final IndexedFactSet index;
+		private final BindingType[] pat;
+
+		public LogicalIndex(IndexedFactSet index, BindingType[] pat) {
+			this.index = index;
+			this.pat = pat;
+		}
+
+	}
+
+	private static class TermArrayKey {
+
+		private final Term[] tup;
+		private final int[] cols;
+		private final int hash;
+
+		public TermArrayKey(Term[] tup, int[] cols) {
+			this.tup = tup;
+			this.cols = cols;
+			int h = 1;
+			for (int i : cols) {
+				h = 31 * h + tup[i].getId();
+			}
+			hash = h;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof TermArrayKey)) {
+				return false;
+			}
+			TermArrayKey other = (TermArrayKey) obj;
+			if (hash != other.hash || cols.length != other.cols.length) {
+				return false;
+			}
+			for (int i = 0; i < cols.length; ++i) {
+				if (tup[cols[i]].getId() != other.tup[other.cols[i]].getId()) {
+					return false;
+				}
+			}
+			return true;
 		}
 
 	}
@@ -438,24 +725,4 @@ public class SortedIndexedFactDb implements IndexedFactDb {
 
 	}
 
-	public class IndexInfo {
-
-		private final List<Integer> comparatorOrder;
-		private final Set<List<BindingType>> bindingPatterns;
-
-		private IndexInfo(List<Integer> comparatorOrder, Set<List<BindingType>> bindingPatterns) {
-			this.comparatorOrder = Collections.unmodifiableList(comparatorOrder);
-			this.bindingPatterns = Collections.unmodifiableSet(bindingPatterns);
-		}
-
-		public List<Integer> getComparatorOrder() {
-			return comparatorOrder;
-		}
-
-		public Set<List<BindingType>> getBindingPatterns() {
-			return bindingPatterns;
-		}
-
-	}
-
 }
@@ -0,0 +1,90 @@
+package edu.harvard.seas.pl.formulog.db;
+
+/*-
+ * #%L
+ * FormuLog
+ * %%
+ * Copyright (C) 2018 - 2019 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import edu.harvard.seas.pl.formulog.ast.Term;
+
+/**
+ * A global table from term ids (as assigned by {@link Term#getId()}) back to
+ * the terms themselves. Only terms that have been interned (i.e., stored in an
+ * encoded fact database) can be looked up.
+ */
+public final class TermTable {
+
+	private TermTable() {
+		throw new AssertionError();
+	}
+
+	private static final int pageBits = 12;
+	private static final int pageSize = 1 << pageBits;
+	private static final int pageMask = pageSize - 1;
+
+	private static volatile Term[][] pages = new Term[64][];
+
+	public static int intern(Term t) {
+		int id = t.getId();
+		assert id > 0 : "Cannot intern term with non-positive id: " + t;
+		Term[] page = getPage(id >>> pageBits);
+		int i = id & pageMask;
+		if (page[i] == null) {
+			page[i] = t;
+		}
+		return id;
+	}
+
+	public static Term lookup(int id) {
+		Term t = pages[id >>> pageBits][id & pageMask];
+		assert t != null : "Term id has not been interned: " + id;
+		return t;
+	}
+
+	private static Term[] getPage(int idx) {
+		Term[][] ps = pages;
+		if (idx < ps.length) {
+			Term[] page = ps[idx];
+			if (page != null) {
+				return page;
+			}
+		}
+		return makePage(idx);
+	}
+
+	private static synchronized Term[] makePage(int idx) {
+		Term[][] ps = pages;
+		if (idx >= ps.length) {
+			int len = ps.length;
+			while (idx >= len) {
+				len *= 2;
+			}
+			Term[][] newPs = new Term[len][];
+			System.arraycopy(ps, 0, newPs, 0, ps.length);
+			ps = newPs;
+		}
+		Term[] page = ps[idx];
+		if (page == null) {
+			page = new Term[pageSize];
+			ps[idx] = page;
+		}
+		pages = ps;
+		return page;
+	}
+
+}
@@ -54,6 +54,10 @@ public abstract class AbstractStratumEvaluator implements StratumEvaluator {
 		}
 	}
 
+	void addSplitPositions(IndexedRule rule) {
+		splitPositions.put(rule, findSplitPositions(rule, new SmtCallFinder()));
+	}
+
 	private static boolean[] findSplitPositions(IndexedRule rule, SmtCallFinder scf) {
 		int len = rule.getBodySize();
 		boolean[] splitPositions = new boolean[len];
@@ -28,14 +28,16 @@ import edu.harvard.seas.pl.formulog.ast.BindingType;
 import edu.harvard.seas.pl.formulog.ast.Term;
 import edu.harvard.seas.pl.formulog.ast.UserPredicate;
 import edu.harvard.seas.pl.formulog.ast.Var;
-import edu.harvard.seas.pl.formulog.db.SortedIndexedFactDb;
+import edu.harvard.seas.pl.formulog.db.IndexedFactDb;
+import edu.harvard.seas.pl.formulog.eval.EvaluationProfiler.RoundProfile;
+import edu.harvard.seas.pl.formulog.eval.EvaluationProfiler.RuleProfile;
 import edu.harvard.seas.pl.formulog.eval.SemiNaiveRule.DeltaSymbol;
 import edu.harvard.seas.pl.formulog.symbols.RelationSymbol;
-import edu.harvard.seas.pl.formulog.unification.OverwriteSubstitution;
-import edu.harvard.seas.pl.formulog.unification.Substitution;
+import edu.harvard.seas.pl.formulog.unification.SlotSubstitution;
 import edu.harvard.seas.pl.formulog.util.AbstractFJPTask;
 import edu.harvard.seas.pl.formulog.util.CountingFJP;
 import edu.harvard.seas.pl.formulog.util.Util;
+import edu.harvard.seas.pl.formulog.util.Util.ChunkIterator;
 import edu.harvard.seas.pl.formulog.validating.ast.Assignment;
 import edu.harvard.seas.pl.formulog.validating.ast.Check;
 import edu.harvard.seas.pl.formulog.validating.ast.Destructor;
@@ -45,14 +47,15 @@ import edu.harvard.seas.pl.formulog.validating.ast.SimplePredicate;
 public final class EagerStratumEvaluator extends AbstractStratumEvaluator {
 
 	final int stratumNum;
-	final SortedIndexedFactDb db;
+	final IndexedFactDb db;
 	final CountingFJP exec;
 	final Set<RelationSymbol> trackedRelations;
+	RoundProfile roundProfile;
 
 	static final int taskSize = Configuration.taskSize;
 	static final int smtTaskSize = 1;
 
-	public EagerStratumEvaluator(int stratumNum, SortedIndexedFactDb db, Iterable<IndexedRule> rules, CountingFJP exec,
+	public EagerStratumEvaluator(int stratumNum, IndexedFactDb db, Iterable<IndexedRule> rules, CountingFJP exec,
 			Set<RelationSymbol> trackedRelations) {
 		super(rules);
 		this.stratumNum = stratumNum;
@@ -63,6 +66,11 @@ public final class EagerStratumEvaluator extends AbstractStratumEvaluator {
 
 	@Override
 	public void evaluate() throws EvaluationException {
+		// Eager evaluation does not proceed in rounds, so the whole stratum is
+		// profiled as a single round.
+		if (profile) {
+			roundProfile = EvaluationProfiler.startRound(stratumNum, 0, db, null);
+		}
 		for (IndexedRule r : firstRoundRules) {
 			exec.externallyAddTask(new RulePrefixEvaluator(r, null));
 		}
@@ -70,13 +78,12 @@ public final class EagerStratumEvaluator extends AbstractStratumEvaluator {
 		if (exec.hasFailed()) {
 			throw exec.getFailureCause();
 		}
+		if (profile) {
+			roundProfile.end();
+		}
 	}
 
-	void reportFact(RelationSymbol sym, Term[] args, Substitution s) throws EvaluationException {
-		Term[] newArgs = new Term[args.length];
-		for (int i = 0; i < args.length; ++i) {
-			newArgs[i] = args[i].normalize(s);
-		}
+	boolean reportFact(RelationSymbol sym, Term[] newArgs) throws EvaluationException {
 		if (db.add(sym, newArgs)) {
 			Set<IndexedRule> rs = laterRoundRules.get(sym);
 			if (rs != null) {
@@ -87,31 +94,38 @@ public final class EagerStratumEvaluator extends AbstractStratumEvaluator {
 			if (trackedRelations.contains(sym)) {
 				System.err.println("[TRACKED] " + UserPredicate.make(sym, newArgs, false));
 			}
+			return true;
 		}
+		return false;
 	}
 
-	Iterable<Iterable<Term[]>> lookup(IndexedRule r, int pos, OverwriteSubstitution s) throws EvaluationException {
+	Iterable<Term[]> lookupTuples(IndexedRule r, int pos, SlotSubstitution s) throws EvaluationException {
 		SimplePredicate predicate = (SimplePredicate) r.getBody(pos);
 		int idx = r.getDbIndex(pos);
 		Term[] args = predicate.getArgs();
 		Term[] key = new Term[args.length];
 		BindingType[] pat = predicate.getBindingPattern();
+		int[] slots = r.getBodySlots(pos);
 		for (int i = 0; i < args.length; ++i) {
 			if (pat[i].isBound()) {
-				key[i] = args[i].normalize(s);
+				key[i] = s.normalize(args[i], slots[i]);
 			} else {
 				key[i] = args[i];
 			}
 		}
 		RelationSymbol sym = predicate.getSymbol();
 		assert !(sym instanceof DeltaSymbol);
-		Iterable<Term[]> ans = db.get(sym, key, idx);
+		return db.get(sym, key, idx);
+	}
+
+	ChunkIterator<Term[]> lookup(IndexedRule r, int pos, SlotSubstitution s) throws EvaluationException {
 		boolean shouldSplit = splitPositions.get(r)[pos];
 		int targetSize = shouldSplit ? smtTaskSize : taskSize;
-		return Util.splitIterable(ans, targetSize);
+		return Util.splitIterable(lookupTuples(r, pos, s), targetSize).iterator();
 	}
 
 	static final boolean recordRuleDiagnostics = Configuration.recordRuleDiagnostics;
+	static final boolean profile = Configuration.profileTrace != null;
 
 	@SuppressWarnings("serial")
 	class RuleSuffixEvaluator extends AbstractFJPTask {
@@ -120,11 +134,12 @@ public final class EagerStratumEvaluator extends AbstractStratumEvaluator {
 		final SimplePredicate head;
 		final SimpleLiteral[] body;
 		final int startPos;
-		final OverwriteSubstitution s;
-		final Iterator<Iterable<Term[]>> it;
+		final SlotSubstitution s;
+		final ChunkIterator<Term[]> it;
+		final RuleProfile prof;
 
 		protected RuleSuffixEvaluator(IndexedRule rule, SimplePredicate head, SimpleLiteral[] body, int pos,
-				OverwriteSubstitution s, Iterator<Iterable<Term[]>> it) {
+				SlotSubstitution s, ChunkIterator<Term[]> it) {
 			super(exec);
 			this.rule = rule;
 			this.head = head;
@@ -132,10 +147,11 @@ public final class EagerStratumEvaluator extends AbstractStratumEvaluator {
 			this.startPos = pos;
 			this.s = s;
 			this.it = it;
+			this.prof = profile ? roundProfile.getRule(rule) : null;
 		}
 
-		protected RuleSuffixEvaluator(IndexedRule rule, int pos, OverwriteSubstitution s,
-				Iterator<Iterable<Term[]>> it) {
+		protected RuleSuffixEvaluator(IndexedRule rule, int pos, SlotSubstitution s,
+				ChunkIterator<Term[]> it) {
 			super(exec);
 			this.rule = rule;
 			this.head = rule.getHead();
@@ -147,6 +163,7 @@ public final class EagerStratumEvaluator extends AbstractStratumEvaluator {
 			this.startPos = pos;
 			this.s = s;
 			this.it = it;
+			this.prof = profile ? roundProfile.getRule(rule) : null;
 		}
 
 		@Override
@@ -155,9 +172,19 @@ public final class EagerStratumEvaluator extends AbstractStratumEvaluator {
 			if (recordRuleDiagnostics) {
 				start = System.currentTimeMillis();
 			}
+			long wall = 0;
+			long cpu = 0;
+			if (prof != null) {
+				wall = System.nanoTime();
+				cpu = EvaluationProfiler.cpuTime();
+			}
+			if (!it.hasNext()) {
+				// Splitting can leave a part of a range empty.
+				return;
+			}
 			Iterable<Term[]> tups = it.next();
 			if (it.hasNext()) {
-				exec.recursivelyAddTask(new RuleSuffixEvaluator(rule, head, body, startPos, s.copy(), it));
+				forkRest(startPos, it);
 			}
 			try {
 				for (Term[] tup : tups) {
@@ -171,11 +198,16 @@ public final class EagerStratumEvaluator extends AbstractStratumEvaluator {
 				long end = System.currentTimeMillis();
 				Configuration.recordRuleSuffixTime(rule, end - start);
 			}
+			if (prof != null) {
+				prof.recordTime(System.nanoTime() - wall, EvaluationProfiler.cpuTime() - cpu);
+			}
 		}
 
 		void evaluate(Term[] ans) throws UncheckedEvaluationException {
-			SimplePredicate p = (SimplePredicate) body[startPos];
-			updateBinding(p, ans);
+			if (prof != null) {
+				prof.recordRead(startPos);
+			}
+			updateBinding(startPos, ans);
 			int pos = startPos + 1;
 			@SuppressWarnings("unchecked")
 			Iterator<Term[]>[] stack = new Iterator[rule.getBodySize()];
@@ -183,7 +215,10 @@ public final class EagerStratumEvaluator extends AbstractStratumEvaluator {
 			while (pos > startPos) {
 				if (pos == body.length) {
 					try {
-						reportFact(head.getSymbol(), head.getArgs(), s);
+						boolean isNew = reportFact(head.getSymbol(), head.normalizeArgs(s, rule.getHeadSlots()));
+						if (prof != null) {
+							prof.recordFact(isNew);
+						}
 					} catch (EvaluationException e) {
 						throw new UncheckedEvaluationException(
 								"Exception raised while evaluating the literal: " + head + "\n\n" + e.getMessage());
@@ -195,11 +230,11 @@ public final class EagerStratumEvaluator extends AbstractStratumEvaluator {
 					try {
 						switch (l.getTag()) {
 						case ASSIGNMENT:
-							((Assignment) l).assign(s);
+							((Assignment) l).assign(s, rule.getBodySlots(pos));
 							pos++;
 							break;
 						case CHECK:
-							if (((Check) l).check(s)) {
+							if (((Check) l).check(s, rule.getBodySlots(pos))) {
 								pos++;
 							} else {
 								pos--;
@@ -207,7 +242,7 @@ public final class EagerStratumEvaluator extends AbstractStratumEvaluator {
 							}
 							break;
 						case DESTRUCTOR:
-							if (((Destructor) l).destruct(s)) {
+							if (((Destructor) l).destruct(s, rule.getBodySlots(pos))) {
 								pos++;
 							} else {
 								pos--;
@@ -215,20 +250,19 @@ public final class EagerStratumEvaluator extends AbstractStratumEvaluator {
 							}
 							break;
 						case PREDICATE:
-							Iterator<Iterable<Term[]>> tups = lookup(rule, pos, s).iterator();
 							if (((SimplePredicate) l).isNegated()) {
-								if (!tups.hasNext()) {
+								if (!lookupTuples(rule, pos, s).iterator().hasNext()) {
 									pos++;
 								} else {
 									pos--;
 									movingRight = false;
 								}
 							} else {
+								ChunkIterator<Term[]> tups = lookup(rule, pos, s);
 								if (tups.hasNext()) {
 									stack[pos] = tups.next().iterator();
 									if (tups.hasNext()) {
-										exec.recursivelyAddTask(
-												new RuleSuffixEvaluator(rule, head, body, pos, s.copy(), tups));
+										forkRest(pos, tups);
 									}
 									// No need to do anything else: we'll hit the right case on the next iteration.
 								} else {
@@ -246,7 +280,10 @@ public final class EagerStratumEvaluator extends AbstractStratumEvaluator {
 					Iterator<Term[]> it = stack[pos];
 					if (it != null && it.hasNext()) {
 						ans = it.next();
-						updateBinding((SimplePredicate) rule.getBody(pos), ans);
+						if (prof != null) {
+							prof.recordRead(pos);
+						}
+						updateBinding(pos, ans);
 						movingRight = true;
 						pos++;
 					} else {
@@ -257,12 +294,24 @@ public final class EagerStratumEvaluator extends AbstractStratumEvaluator {
 			}
 		}
 
-		void updateBinding(SimplePredicate p, Term[] ans) {
-			Term[] args = p.getArgs();
-			BindingType[] pat = p.getBindingPattern();
+		/*
+		 * Hands the remaining chunks of tuples for the given position off to new
+		 * tasks, splitting them into a balanced tree first when the index allows it.
+		 */
+		void forkRest(int pos, ChunkIterator<Term[]> rest) {
+			ChunkIterator<Term[]> half;
+			while ((half = rest.trySplit()) != null) {
+				exec.recursivelyAddTask(new RuleSuffixEvaluator(rule, head, body, pos, s.copy(), half));
+			}
+			exec.recursivelyAddTask(new RuleSuffixEvaluator(rule, head, body, pos, s.copy(), rest));
+		}
+
+		void updateBinding(int pos, Term[] ans) {
+			BindingType[] pat = ((SimplePredicate) body[pos]).getBindingPattern();
+			int[] slots = rule.getBodySlots(pos);
 			for (int i = 0; i < pat.length; ++i) {
 				if (pat[i].isFree()) {
-					s.put((Var) args[i], ans[i]);
+					s.put(slots[i], ans[i]);
 				}
 			}
 		}
@@ -274,14 +323,17 @@ public final class EagerStratumEvaluator extends AbstractStratumEvaluator {
 
 		final IndexedRule rule;
 		final Term[] deltaArgs;
+		final RuleProfile prof;
 
 		protected RulePrefixEvaluator(IndexedRule rule, Term[] deltaArgs) {
 			super(exec);
 			this.rule = rule;
 			this.deltaArgs = deltaArgs;
+			this.prof = profile ? roundProfile.getRule(rule) : null;
 		}
 
-		private boolean handleDelta(SimplePredicate pred, Substitution s) throws EvaluationException {
+		private boolean handleDelta(SimplePredicate pred, int[] slots, SlotSubstitution s)
+				throws EvaluationException {
 			BindingType[] bindings = pred.getBindingPattern();
 			Term[] args = pred.getArgs();
 			int i = 0;
@@ -289,9 +341,9 @@ public final class EagerStratumEvaluator extends AbstractStratumEvaluator {
 				Term arg = args[i];
 				if (b.isFree()) {
 					assert arg instanceof Var;
-					s.put((Var) arg, deltaArgs[i]);
+					s.put(slots[i], deltaArgs[i]);
 				} else if (b.isBound()) {
-					if (!arg.normalize(s).equals(deltaArgs[i])) {
+					if (!s.normalize(arg, slots[i]).equals(deltaArgs[i])) {
 						return false;
 					}
 				}
@@ -306,6 +358,12 @@ public final class EagerStratumEvaluator extends AbstractStratumEvaluator {
 			if (recordRuleDiagnostics) {
 				start = System.currentTimeMillis();
 			}
+			long wall = 0;
+			long cpu = 0;
+			if (prof != null) {
+				wall = System.nanoTime();
+				cpu = EvaluationProfiler.cpuTime();
+			}
 			try {
 				evaluate();
 			} catch (EvaluationException e) {
@@ -316,33 +374,36 @@ public final class EagerStratumEvaluator extends AbstractStratumEvaluator {
 				long end = System.currentTimeMillis();
 				Configuration.recordRulePrefixTime(rule, end - start);
 			}
+			if (prof != null) {
+				prof.recordTime(System.nanoTime() - wall, EvaluationProfiler.cpuTime() - cpu);
+			}
 		}
 
 		void evaluate() throws EvaluationException {
 			int len = rule.getBodySize();
 			int pos = 0;
-			OverwriteSubstitution s = new OverwriteSubstitution();
+			SlotSubstitution s = rule.newSubstitution();
 			loop: for (; pos < len; ++pos) {
 				SimpleLiteral l = rule.getBody(pos);
 				try {
 					switch (l.getTag()) {
 					case ASSIGNMENT:
-						((Assignment) l).assign(s);
+						((Assignment) l).assign(s, rule.getBodySlots(pos));
 						break;
 					case CHECK:
-						if (!((Check) l).check(s)) {
+						if (!((Check) l).check(s, rule.getBodySlots(pos))) {
 							return;
 						}
 						break;
 					case DESTRUCTOR:
-						if (!((Destructor) l).destruct(s)) {
+						if (!((Destructor) l).destruct(s, rule.getBodySlots(pos))) {
 							return;
 						}
 						break;
 					case PREDICATE:
 						SimplePredicate p = (SimplePredicate) l;
 						if (p.isNegated()) {
-							if (lookup(rule, pos, s).iterator().hasNext()) {
+							if (lookupTuples(rule, pos, s).iterator().hasNext()) {
 								return;
 							}
 						} else {
@@ -350,7 +411,10 @@ public final class EagerStratumEvaluator extends AbstractStratumEvaluator {
 							if (!(sym instanceof DeltaSymbol)) {
 								break loop;
 							}
-							if (!handleDelta(p, s)) {
+							if (prof != null) {
+								prof.recordRead(pos);
+							}
+							if (!handleDelta(p, rule.getBodySlots(pos), s)) {
 								return;
 							}
 						}
@@ -364,14 +428,17 @@ public final class EagerStratumEvaluator extends AbstractStratumEvaluator {
 			if (pos == len) {
 				try {
 					SimplePredicate head = rule.getHead();
-					reportFact(head.getSymbol(), head.getArgs(), s);
+					boolean isNew = reportFact(head.getSymbol(), head.normalizeArgs(s, rule.getHeadSlots()));
+					if (prof != null) {
+						prof.recordFact(isNew);
+					}
 					return;
 				} catch (EvaluationException e) {
 					throw new EvaluationException("Exception raised while evaluationg the literal: "
 							+ rule.getHead() + e.getLocalizedMessage());
 				}
 			}
-			Iterator<Iterable<Term[]>> tups = lookup(rule, pos, s).iterator();
+			ChunkIterator<Term[]> tups = lookup(rule, pos, s);
 			if (tups.hasNext()) {
 				exec.recursivelyAddTask(new RuleSuffixEvaluator(rule, pos, s, tups));
 			}
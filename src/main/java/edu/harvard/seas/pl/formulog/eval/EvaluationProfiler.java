@@ -0,0 +1,274 @@
+package edu.harvard.seas.pl.formulog.eval;
+
+/*-
+ * #%L
+ * FormuLog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import edu.harvard.seas.pl.formulog.db.IndexInfo;
+import edu.harvard.seas.pl.formulog.db.IndexedFactDb;
+import edu.harvard.seas.pl.formulog.eval.SemiNaiveRule.DeltaSymbol;
+import edu.harvard.seas.pl.formulog.symbols.RelationSymbol;
+import edu.harvard.seas.pl.formulog.validating.ast.SimpleLiteral;
+import edu.harvard.seas.pl.formulog.validating.ast.SimplePredicate;
+
+/**
+ * Collects per-round, per-rule statistics (enabled by setting the system
+ * property profileTrace to the name of an output file). The trace is written as
+ * CSV if the file name ends with ".csv", and as JSON otherwise.
+ *
+ * The rounds of each evaluation (i.e., each run or incremental update) are
+ * appended to the trace when it finishes, so that a long-lived evaluation does
+ * not accumulate them in memory. In a JSON trace, each evaluation is an object
+ * on a line of its own.
+ *
+ * Rule times are summed over all the tasks that evaluate the rule, so they can
+ * exceed the wall time of the round when evaluation is parallel.
+ */
+public final class EvaluationProfiler {
+
+	private EvaluationProfiler() {
+		throw new AssertionError("impossible");
+	}
+
+	private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	private static final boolean cpuTimeSupported = threads.isCurrentThreadCpuTimeSupported();
+
+	private static final List<RoundProfile> rounds = new ArrayList<>();
+	private static int evaluations;
+
+	public static synchronized RoundProfile startRound(int stratum, int round, IndexedFactDb db,
+			IndexedFactDb deltaDb) {
+		RoundProfile p = new RoundProfile(stratum, round, db, deltaDb);
+		rounds.add(p);
+		return p;
+	}
+
+	public static long cpuTime() {
+		return cpuTimeSupported ? threads.getCurrentThreadCpuTime() : 0;
+	}
+
+	public static class RoundProfile {
+
+		private final int stratum;
+		private final int round;
+		private final IndexedFactDb db;
+		private final IndexedFactDb deltaDb;
+		private final long start = System.nanoTime();
+		private volatile long wallTime = -1;
+		private volatile long updateTime = -1;
+		private final Map<IndexedRule, RuleProfile> rules = new ConcurrentHashMap<>();
+
+		private RoundProfile(int stratum, int round, IndexedFactDb db, IndexedFactDb deltaDb) {
+			this.stratum = stratum;
+			this.round = round;
+			this.db = db;
+			this.deltaDb = deltaDb;
+		}
+
+		public RuleProfile getRule(IndexedRule rule) {
+			return rules.computeIfAbsent(rule, r -> new RuleProfile(r, describeIndices(r)));
+		}
+
+		public void end() {
+			wallTime = System.nanoTime() - start;
+		}
+
+		public void recordDbUpdateTime(long time) {
+			updateTime = time;
+		}
+
+		private String[] describeIndices(IndexedRule rule) {
+			String[] descs = new String[rule.getBodySize()];
+			for (int i = 0; i < descs.length; ++i) {
+				Integer idx = rule.getDbIndex(i);
+				if (idx == null) {
+					continue;
+				}
+				RelationSymbol sym = ((SimplePredicate) rule.getBody(i)).getSymbol();
+				IndexedFactDb d = db;
+				if (sym instanceof DeltaSymbol) {
+					sym = ((DeltaSymbol) sym).getBaseSymbol();
+					d = deltaDb;
+				}
+				String desc = sym + "#" + idx;
+				if (d != null) {
+					IndexInfo info = d.getIndexInfo(sym, idx);
+					desc += info.getComparatorOrder();
+				}
+				descs[i] = desc;
+			}
+			return descs;
+		}
+
+	}
+
+	public static class RuleProfile {
+
+		private final IndexedRule rule;
+		private final String[] indices;
+		private final LongAdder wallTime = new LongAdder();
+		private final LongAdder cpuTime = new LongAdder();
+		private final LongAdder derived = new LongAdder();
+		private final LongAdder duplicates = new LongAdder();
+		private final LongAdder[] reads;
+
+		private RuleProfile(IndexedRule rule, String[] indices) {
+			this.rule = rule;
+			this.indices = indices;
+			reads = new LongAdder[rule.getBodySize()];
+			for (int i = 0; i < reads.length; ++i) {
+				reads[i] = new LongAdder();
+			}
+		}
+
+		public void recordTime(long wall, long cpu) {
+			wallTime.add(wall);
+			cpuTime.add(cpu);
+		}
+
+		public void recordRead(int pos) {
+			reads[pos].increment();
+		}
+
+		public void recordFact(boolean isNew) {
+			if (isNew) {
+				derived.increment();
+			} else {
+				duplicates.increment();
+			}
+		}
+
+		/**
+		 * Counts a fact that was recorded as new as a duplicate instead (e.g., when
+		 * another thread derived it in the same round).
+		 */
+		public void recordLateDuplicate() {
+			derived.decrement();
+			duplicates.increment();
+		}
+
+	}
+
+	/**
+	 * Appends the rounds recorded since the last call to the trace (which is
+	 * started afresh on the first call), and forgets them.
+	 */
+	public static synchronized void flush(String file) {
+		if (rounds.isEmpty()) {
+			return;
+		}
+		boolean first = evaluations == 0;
+		try (PrintWriter out = new PrintWriter(new FileWriter(file, !first))) {
+			if (file.endsWith(".csv")) {
+				writeCsv(out, first);
+			} else {
+				writeJson(out);
+			}
+		} catch (IOException e) {
+			System.err.println("[PROFILE] Could not write trace to " + file + ": " + e.getMessage());
+		}
+		evaluations++;
+		rounds.clear();
+	}
+
+	private static void writeCsv(PrintWriter out, boolean header) {
+		if (header) {
+			out.println("evaluation,stratum,round,round_wall_ns,db_update_ns,rule,rule_wall_ns,rule_cpu_ns,derived,"
+					+ "duplicates,position,literal,index,tuples_read");
+		}
+		for (RoundProfile round : rounds) {
+			String roundPrefix = evaluations + "," + round.stratum + "," + round.round + "," + round.wallTime + ","
+					+ round.updateTime;
+			for (RuleProfile rule : round.rules.values()) {
+				String rulePrefix = roundPrefix + "," + csvString(rule.rule.toString()) + "," + rule.wallTime.sum()
+						+ "," + rule.cpuTime.sum() + "," + rule.derived.sum() + "," + rule.duplicates.sum();
+				for (int i = 0; i < rule.reads.length; ++i) {
+					SimpleLiteral l = rule.rule.getBody(i);
+					String idx = rule.indices[i] == null ? "" : csvString(rule.indices[i]);
+					out.println(rulePrefix + "," + i + "," + csvString(l.toString()) + "," + idx + ","
+							+ rule.reads[i].sum());
+				}
+				if (rule.reads.length == 0) {
+					out.println(rulePrefix + ",,,,");
+				}
+			}
+		}
+	}
+
+	private static void writeJson(PrintWriter out) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"evaluation\": " + evaluations + ", \"rounds\": [");
+		for (int r = 0; r < rounds.size(); ++r) {
+			RoundProfile round = rounds.get(r);
+			sb.append("{\"stratum\": " + round.stratum + ", \"round\": " + round.round + ", \"wallTimeNs\": "
+					+ round.wallTime + ", \"dbUpdateTimeNs\": " + round.updateTime + ", \"rules\": [");
+			int j = 0;
+			for (RuleProfile rule : round.rules.values()) {
+				sb.append("{\"rule\": " + jsonString(rule.rule.toString()) + ", \"wallTimeNs\": "
+						+ rule.wallTime.sum() + ", \"cpuTimeNs\": " + rule.cpuTime.sum() + ", \"derived\": "
+						+ rule.derived.sum() + ", \"duplicates\": " + rule.duplicates.sum() + ", \"body\": [");
+				for (int i = 0; i < rule.reads.length; ++i) {
+					String idx = rule.indices[i] == null ? "null" : jsonString(rule.indices[i]);
+					sb.append("{\"literal\": " + jsonString(rule.rule.getBody(i).toString()) + ", \"index\": " + idx
+							+ ", \"tuplesRead\": " + rule.reads[i].sum() + "}");
+					if (i < rule.reads.length - 1) {
+						sb.append(", ");
+					}
+				}
+				sb.append(++j < round.rules.size() ? "]}, " : "]}");
+			}
+			sb.append(r < rounds.size() - 1 ? "]}, " : "]}");
+		}
+		out.println(sb.append("]}"));
+	}
+
+	private static String csvString(String s) {
+		return "\"" + oneLine(s).replace("\"", "\"\"") + "\"";
+	}
+
+	private static String jsonString(String s) {
+		StringBuilder sb = new StringBuilder("\"");
+		for (char c : oneLine(s).toCharArray()) {
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	private static String oneLine(String s) {
+		return s.replaceAll("\\s*\n\\s*", " ");
+	}
+
+}
@@ -0,0 +1,221 @@
+package edu.harvard.seas.pl.formulog.eval;
+
+/*-
+ * #%L
+ * FormuLog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang3.time.StopWatch;
+
+import edu.harvard.seas.pl.formulog.ast.Term;
+import edu.harvard.seas.pl.formulog.db.IndexedFactDb;
+import edu.harvard.seas.pl.formulog.db.IndexedFactDbBuilder;
+import edu.harvard.seas.pl.formulog.eval.EvaluationProfiler.RuleProfile;
+import edu.harvard.seas.pl.formulog.eval.SemiNaiveRule.DeltaSymbol;
+import edu.harvard.seas.pl.formulog.symbols.RelationSymbol;
+import edu.harvard.seas.pl.formulog.util.CountingFJP;
+import edu.harvard.seas.pl.formulog.util.Util;
+
+/**
+ * Brings an already evaluated stratum up to date with changes to the relations
+ * it depends on, using the delete-rederive (DRed) approach: first everything
+ * that might depend on a removed tuple is (over-)deleted, then whatever can
+ * still be derived from what is left is put back, and finally the additions are
+ * propagated as in ordinary semi-naive evaluation.
+ *
+ * This is only sound for strata that depend monotonically on the changed
+ * relations (i.e., not through negation or aggregation).
+ */
+public class IncrementalStratumEvaluator extends RoundBasedStratumEvaluator {
+
+	final IndexedFactDb removedDb;
+	final IndexedFactDb overDeleted;
+	final Map<RelationSymbol, Set<IndexedRule>> rederivationRules = new HashMap<>();
+	final Map<RelationSymbol, List<Term[]>> lowerAdded;
+	final Map<RelationSymbol, List<Term[]>> lowerRemoved;
+	final Map<RelationSymbol, List<Term[]>> added = new HashMap<>();
+	final Map<RelationSymbol, List<Term[]>> removed = new HashMap<>();
+	volatile boolean deleting;
+	int round;
+
+	/**
+	 * The rules should all contain a delta predicate: they are the recursive
+	 * semi-naive rules of the stratum, along with the versions that propagate
+	 * changes from lower relations. The rederivation rules start with a delta
+	 * version of their head. The main database should already reflect the lower
+	 * changes, and the removed lower tuples should also be in the removed database.
+	 */
+	public IncrementalStratumEvaluator(int stratumNum, IndexedFactDb db, IndexedFactDb removedDb,
+			IndexedFactDbBuilder<?> deltaDbb, Iterable<IndexedRule> rules, Iterable<IndexedRule> rederivationRules,
+			CountingFJP exec, Set<RelationSymbol> trackedRelations, Map<RelationSymbol, List<Term[]>> lowerAdded,
+			Map<RelationSymbol, List<Term[]>> lowerRemoved) {
+		super(stratumNum, db, deltaDbb, rules, exec, trackedRelations, null);
+		this.removedDb = removedDb;
+		this.overDeleted = deltaDbb.build();
+		this.lowerAdded = lowerAdded;
+		this.lowerRemoved = lowerRemoved;
+		for (IndexedRule r : rederivationRules) {
+			Util.lookupOrCreate(this.rederivationRules, EvalUtil.findDelta(r), () -> new HashSet<>()).add(r);
+			addSplitPositions(r);
+		}
+	}
+
+	@Override
+	public void evaluate() throws EvaluationException {
+		deleting = true;
+		if (seed(lowerRemoved)) {
+			runToFixpoint(laterRoundRules);
+		}
+		boolean anyDeleted = false;
+		for (RelationSymbol sym : overDeleted.getSymbols()) {
+			if (!overDeleted.isEmpty(sym)) {
+				db.removeAll(sym, overDeleted.getAll(sym));
+				anyDeleted = true;
+			}
+		}
+		deleting = false;
+		if (anyDeleted) {
+			for (RelationSymbol sym : overDeleted.getSymbols()) {
+				deltaDb.addAll(sym, overDeleted.getAll(sym));
+			}
+			runRound(rederivationRules);
+		}
+		// The rederived tuples are now in the delta, and the lower additions join
+		// them there.
+		if (seed(lowerAdded) || changed) {
+			runToFixpoint(laterRoundRules);
+		}
+		for (RelationSymbol sym : overDeleted.getSymbols()) {
+			for (Term[] tup : overDeleted.getAll(sym)) {
+				if (!db.hasFact(sym, tup)) {
+					Util.lookupOrCreate(removed, sym, () -> new ArrayList<>()).add(tup);
+				}
+			}
+		}
+	}
+
+	private boolean seed(Map<RelationSymbol, List<Term[]>> changes) {
+		boolean seeded = false;
+		for (Map.Entry<RelationSymbol, List<Term[]>> e : changes.entrySet()) {
+			if (!e.getValue().isEmpty()) {
+				deltaDb.addAll(e.getKey(), e.getValue());
+				seeded = true;
+			}
+		}
+		return seeded;
+	}
+
+	private void runToFixpoint(Map<RelationSymbol, Set<IndexedRule>> rules) throws EvaluationException {
+		do {
+			runRound(rules);
+		} while (changed);
+	}
+
+	private void runRound(Map<RelationSymbol, Set<IndexedRule>> rules) throws EvaluationException {
+		changed = false;
+		StopWatch watch = recordRoundStart(round);
+		for (RelationSymbol delta : rules.keySet()) {
+			if (!deltaDb.isEmpty(delta)) {
+				for (IndexedRule r : rules.get(delta)) {
+					exec.externallyAddTask(new RulePrefixEvaluator(r));
+				}
+			}
+		}
+		exec.blockUntilFinished();
+		if (exec.hasFailed()) {
+			throw exec.getFailureCause();
+		}
+		recordRoundEnd(round, watch);
+		round++;
+		updateDbs();
+	}
+
+	@Override
+	boolean reportFact(RelationSymbol sym, Term[] newArgs, RuleProfile prof) throws EvaluationException {
+		if (!deleting) {
+			return super.reportFact(sym, newArgs, prof);
+		}
+		if (db.hasFact(sym, newArgs) && !overDeleted.hasFact(sym, newArgs) && nextDeltaDb.add(sym, newArgs)) {
+			changed = true;
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	void updateDbs() {
+		flushFactBuffers();
+		if (!deleting) {
+			for (RelationSymbol sym : nextDeltaDb.getSymbols()) {
+				for (Term[] tup : nextDeltaDb.getAll(sym)) {
+					if (!overDeleted.hasFact(sym, tup)) {
+						Util.lookupOrCreate(added, sym, () -> new ArrayList<>()).add(tup);
+					}
+				}
+			}
+			super.updateDbs();
+			return;
+		}
+		// Over-deleted tuples stay in the main database until the deletion phase is
+		// over, so that it still reflects the old state of the stratum.
+		for (RelationSymbol sym : nextDeltaDb.getSymbols()) {
+			if (!nextDeltaDb.isEmpty(sym)) {
+				overDeleted.addAll(sym, nextDeltaDb.getAll(sym));
+			}
+		}
+		IndexedFactDb tmp = deltaDb;
+		deltaDb = nextDeltaDb;
+		nextDeltaDb = tmp;
+		nextDeltaDb.clear();
+	}
+
+	@Override
+	Iterable<Term[]> lookup(RelationSymbol sym, Term[] key, int idx) {
+		Iterable<Term[]> ans = super.lookup(sym, key, idx);
+		if (!deleting || sym instanceof DeltaSymbol || removedDb.isEmpty(sym)) {
+			return ans;
+		}
+		// While deleting, rules are evaluated against the old contents of the lower
+		// relations.
+		List<Term[]> l = Util.iterableToList(ans);
+		l.addAll(Util.iterableToList(removedDb.get(sym, key, idx)));
+		return l;
+	}
+
+	/**
+	 * Returns the tuples that were added to the relations of the stratum.
+	 */
+	public Map<RelationSymbol, List<Term[]>> getAdded() {
+		return added;
+	}
+
+	/**
+	 * Returns the tuples that were removed from the relations of the stratum.
+	 */
+	public Map<RelationSymbol, List<Term[]>> getRemoved() {
+		return removed;
+	}
+
+}
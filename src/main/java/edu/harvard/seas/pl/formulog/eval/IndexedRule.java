@@ -21,11 +21,17 @@ package edu.harvard.seas.pl.formulog.eval;
  */
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.function.Function;
 
 import edu.harvard.seas.pl.formulog.ast.Rule;
+import edu.harvard.seas.pl.formulog.ast.Term;
+import edu.harvard.seas.pl.formulog.ast.Var;
+import edu.harvard.seas.pl.formulog.unification.SlotSubstitution;
 import edu.harvard.seas.pl.formulog.util.Util;
 import edu.harvard.seas.pl.formulog.validating.ast.Assignment;
 import edu.harvard.seas.pl.formulog.validating.ast.Check;
@@ -39,11 +45,20 @@ public class IndexedRule implements Rule<SimplePredicate, SimpleLiteral> {
 	private final SimplePredicate head;
 	private final List<SimpleLiteral> body;
 	private final List<Integer> idxs;
+	private final Map<Var, Integer> slots;
+	private final int[] headSlots;
+	private final int[][] bodySlots;
 
 	private IndexedRule(Rule<SimplePredicate, SimpleLiteral> rule, Function<SimplePredicate, Integer> makeIndex) {
 		head = rule.getHead();
 		body = Util.iterableToList(rule);
 		idxs = createIndexes(makeIndex);
+		slots = createSlots();
+		headSlots = resolveSlots(head.getArgs());
+		bodySlots = new int[body.size()][];
+		for (int i = 0; i < bodySlots.length; ++i) {
+			bodySlots[i] = resolveSlots(body.get(i));
+		}
 	}
 
 	public static IndexedRule make(Rule<SimplePredicate, SimpleLiteral> rule,
@@ -81,6 +96,94 @@ public class IndexedRule implements Rule<SimplePredicate, SimpleLiteral> {
 		return idxs;
 	}
 
+	/*
+	 * Numbers the variables of the rule densely, so that they can be bound in an
+	 * array during evaluation instead of a map.
+	 */
+	private Map<Var, Integer> createSlots() {
+		Map<Var, Integer> m = new HashMap<>();
+		for (SimpleLiteral l : body) {
+			for (Var x : l.varSet()) {
+				m.putIfAbsent(x, m.size());
+			}
+		}
+		for (Var x : head.varSet()) {
+			m.putIfAbsent(x, m.size());
+		}
+		return Collections.unmodifiableMap(m);
+	}
+
+	private int[] resolveSlots(Term[] ts) {
+		int[] a = new int[ts.length];
+		for (int i = 0; i < ts.length; ++i) {
+			a[i] = resolveSlot(ts[i]);
+		}
+		return a;
+	}
+
+	private int resolveSlot(Term t) {
+		if (t instanceof Var) {
+			return slots.get(t);
+		}
+		return -1;
+	}
+
+	private int[] resolveSlots(SimpleLiteral l) {
+		return l.accept(new SimpleLiteralVisitor<Void, int[]>() {
+
+			@Override
+			public int[] visit(Assignment assignment, Void input) {
+				return new int[] { resolveSlot(assignment.getDef()), resolveSlot(assignment.getVal()) };
+			}
+
+			@Override
+			public int[] visit(Check check, Void input) {
+				return new int[] { resolveSlot(check.getLhs()), resolveSlot(check.getRhs()) };
+			}
+
+			@Override
+			public int[] visit(Destructor destructor, Void input) {
+				Var[] bindings = destructor.getBindings();
+				int[] a = new int[bindings.length + 1];
+				a[0] = resolveSlot(destructor.getScrutinee());
+				for (int i = 0; i < bindings.length; ++i) {
+					a[i + 1] = resolveSlot(bindings[i]);
+				}
+				return a;
+			}
+
+			@Override
+			public int[] visit(SimplePredicate predicate, Void input) {
+				return resolveSlots(predicate.getArgs());
+			}
+
+		}, null);
+	}
+
+	/**
+	 * Returns a fresh substitution over the variables of this rule.
+	 */
+	public SlotSubstitution newSubstitution() {
+		return new SlotSubstitution(slots);
+	}
+
+	/**
+	 * Returns the slots of the arguments of the head that are variables (and -1
+	 * for the others).
+	 */
+	public int[] getHeadSlots() {
+		return headSlots;
+	}
+
+	/**
+	 * Returns the slots of the variables in the body literal at the given
+	 * position; see the slot-based evaluation methods of the literals for the
+	 * layout.
+	 */
+	public int[] getBodySlots(int idx) {
+		return bodySlots[idx];
+	}
+
 	@Override
 	public SimplePredicate getHead() {
 		return head;
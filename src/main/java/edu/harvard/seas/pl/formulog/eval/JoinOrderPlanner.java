@@ -0,0 +1,208 @@
+package edu.harvard.seas.pl.formulog.eval;
+
+/*-
+ * #%L
+ * FormuLog
+ * %%
+ * Copyright (C) 2018 - 2019 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.harvard.seas.pl.formulog.ast.BasicRule;
+import edu.harvard.seas.pl.formulog.ast.BindingType;
+import edu.harvard.seas.pl.formulog.ast.ComplexLiteral;
+import edu.harvard.seas.pl.formulog.ast.UserPredicate;
+import edu.harvard.seas.pl.formulog.db.IndexedFactDb;
+import edu.harvard.seas.pl.formulog.eval.SemiNaiveRule.DeltaSymbol;
+import edu.harvard.seas.pl.formulog.symbols.RelationSymbol;
+import edu.harvard.seas.pl.formulog.util.Util;
+import edu.harvard.seas.pl.formulog.validating.InvalidProgramException;
+import edu.harvard.seas.pl.formulog.validating.ValidRule;
+import edu.harvard.seas.pl.formulog.validating.ast.SimpleLiteral;
+import edu.harvard.seas.pl.formulog.validating.ast.SimplePredicate;
+
+/**
+ * Chooses between alternative join orders for a rule based on the current sizes
+ * of the relations it joins.
+ *
+ * The alternatives only permute runs of adjacent positive atoms. Literals of any
+ * other kind stay where they are relative to the atoms around them, since the
+ * (flow-sensitive) type checker has checked them in that position.
+ */
+public class JoinOrderPlanner {
+
+	private static final int maxAlternatives = 24;
+
+	private final Map<IndexedRule, List<IndexedRule>> alternatives = new HashMap<>();
+
+	public void addAlternatives(IndexedRule rule, List<IndexedRule> alts) {
+		alternatives.put(rule, alts);
+	}
+
+	public List<IndexedRule> getAlternatives(IndexedRule rule) {
+		List<IndexedRule> alts = alternatives.get(rule);
+		return alts == null ? Collections.emptyList() : alts;
+	}
+
+	/**
+	 * Returns the alternative to the given rule (or the rule itself) with the
+	 * lowest estimated cost.
+	 */
+	public IndexedRule choose(IndexedRule rule, IndexedFactDb db, IndexedFactDb deltaDb) {
+		IndexedRule best = rule;
+		double bestCost = estimateCost(rule, db, deltaDb);
+		for (IndexedRule alt : getAlternatives(rule)) {
+			double cost = estimateCost(alt, db, deltaDb);
+			if (cost < bestCost) {
+				best = alt;
+				bestCost = cost;
+			}
+		}
+		return best;
+	}
+
+	/*
+	 * Estimates the number of index lookups and tuples visited when evaluating the
+	 * rule from left to right, assuming that the values in each column of a
+	 * relation are independent and uniformly distributed.
+	 */
+	private static double estimateCost(IndexedRule rule, IndexedFactDb db, IndexedFactDb deltaDb) {
+		double cost = 0;
+		double bindings = 1;
+		for (SimpleLiteral l : rule) {
+			if (!(l instanceof SimplePredicate)) {
+				continue;
+			}
+			SimplePredicate p = (SimplePredicate) l;
+			if (p.isNegated()) {
+				cost += bindings;
+				continue;
+			}
+			RelationSymbol sym = p.getSymbol();
+			int size;
+			if (sym instanceof DeltaSymbol) {
+				size = deltaDb.countDistinct(((DeltaSymbol) sym).getBaseSymbol());
+			} else {
+				size = db.countDistinct(sym);
+			}
+			BindingType[] pat = p.getBindingPattern();
+			int bound = 0;
+			for (BindingType b : pat) {
+				if (b.isBound()) {
+					bound++;
+				}
+			}
+			double fanout;
+			if (size == 0) {
+				fanout = 0;
+			} else if (pat.length == 0) {
+				fanout = 1;
+			} else {
+				fanout = Math.pow(size, (double) (pat.length - bound) / pat.length);
+			}
+			cost += bindings;
+			bindings *= fanout;
+			cost += bindings;
+		}
+		return cost;
+	}
+
+	/**
+	 * Returns other valid orderings of the given rule's body that only permute
+	 * runs of adjacent positive atoms.
+	 */
+	public static List<ValidRule> reorderings(ValidRule rule) {
+		List<ComplexLiteral> body = Util.iterableToList(rule);
+		List<List<ComplexLiteral>> bodies = new ArrayList<>();
+		bodies.add(new ArrayList<>());
+		int i = 0;
+		while (i < body.size()) {
+			int j = i;
+			while (j < body.size() && isPositiveAtom(body.get(j))) {
+				j++;
+			}
+			if (j == i) {
+				for (List<ComplexLiteral> b : bodies) {
+					b.add(body.get(i));
+				}
+				i++;
+				continue;
+			}
+			List<List<ComplexLiteral>> perms = new ArrayList<>();
+			permute(body.subList(i, j), new ArrayList<>(), new boolean[j - i], perms);
+			List<List<ComplexLiteral>> newBodies = new ArrayList<>();
+			for (List<ComplexLiteral> b : bodies) {
+				for (List<ComplexLiteral> perm : perms) {
+					if (newBodies.size() >= maxAlternatives) {
+						break;
+					}
+					List<ComplexLiteral> nb = new ArrayList<>(b);
+					nb.addAll(perm);
+					newBodies.add(nb);
+				}
+			}
+			bodies = newBodies;
+			i = j;
+		}
+		List<ValidRule> rules = new ArrayList<>();
+		Set<List<ComplexLiteral>> seen = new HashSet<>();
+		seen.add(body);
+		for (List<ComplexLiteral> b : bodies) {
+			if (!seen.add(b)) {
+				continue;
+			}
+			try {
+				rules.add(ValidRule.makeInOrder(BasicRule.make(rule.getHead(), b)));
+			} catch (InvalidProgramException e) {
+				// Atoms with function calls in their arguments might not be evaluable
+				// in every position.
+			}
+		}
+		return rules;
+	}
+
+	private static void permute(List<ComplexLiteral> lits, List<ComplexLiteral> acc, boolean[] used,
+			List<List<ComplexLiteral>> out) {
+		if (out.size() >= maxAlternatives) {
+			return;
+		}
+		if (acc.size() == lits.size()) {
+			out.add(new ArrayList<>(acc));
+			return;
+		}
+		for (int i = 0; i < lits.size(); ++i) {
+			if (!used[i]) {
+				used[i] = true;
+				acc.add(lits.get(i));
+				permute(lits, acc, used, out);
+				acc.remove(acc.size() - 1);
+				used[i] = false;
+			}
+		}
+	}
+
+	private static boolean isPositiveAtom(ComplexLiteral l) {
+		return l instanceof UserPredicate && !((UserPredicate) l).isNegated();
+	}
+
+}
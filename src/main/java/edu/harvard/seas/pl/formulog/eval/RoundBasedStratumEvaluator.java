@@ -21,8 +21,18 @@ package edu.harvard.seas.pl.formulog.eval;
  */
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.apache.commons.lang3.time.StopWatch;
 
@@ -30,38 +40,47 @@ import edu.harvard.seas.pl.formulog.Configuration;
 import edu.harvard.seas.pl.formulog.ast.BindingType;
 import edu.harvard.seas.pl.formulog.ast.Term;
 import edu.harvard.seas.pl.formulog.ast.UserPredicate;
-import edu.harvard.seas.pl.formulog.ast.Var;
+import edu.harvard.seas.pl.formulog.db.IndexedFactDb;
 import edu.harvard.seas.pl.formulog.db.IndexedFactDbBuilder;
-import edu.harvard.seas.pl.formulog.db.SortedIndexedFactDb;
+import edu.harvard.seas.pl.formulog.eval.EvaluationProfiler.RoundProfile;
+import edu.harvard.seas.pl.formulog.eval.EvaluationProfiler.RuleProfile;
 import edu.harvard.seas.pl.formulog.eval.SemiNaiveRule.DeltaSymbol;
 import edu.harvard.seas.pl.formulog.symbols.RelationSymbol;
-import edu.harvard.seas.pl.formulog.unification.OverwriteSubstitution;
-import edu.harvard.seas.pl.formulog.unification.Substitution;
+import edu.harvard.seas.pl.formulog.unification.SlotSubstitution;
 import edu.harvard.seas.pl.formulog.util.AbstractFJPTask;
 import edu.harvard.seas.pl.formulog.util.CountingFJP;
 import edu.harvard.seas.pl.formulog.util.Util;
+import edu.harvard.seas.pl.formulog.util.Util.ChunkIterator;
 import edu.harvard.seas.pl.formulog.validating.ast.Assignment;
 import edu.harvard.seas.pl.formulog.validating.ast.Check;
 import edu.harvard.seas.pl.formulog.validating.ast.Destructor;
 import edu.harvard.seas.pl.formulog.validating.ast.SimpleLiteral;
 import edu.harvard.seas.pl.formulog.validating.ast.SimplePredicate;
 
-public final class RoundBasedStratumEvaluator extends AbstractStratumEvaluator {
+public class RoundBasedStratumEvaluator extends AbstractStratumEvaluator {
 
 	final int stratumNum;
-	final SortedIndexedFactDb db;
-	SortedIndexedFactDb deltaDb;
-	SortedIndexedFactDb nextDeltaDb;
+	final IndexedFactDb db;
+	IndexedFactDb deltaDb;
+	IndexedFactDb nextDeltaDb;
 	final CountingFJP exec;
 	final Set<RelationSymbol> trackedRelations;
+	final JoinOrderPlanner planner;
+	final boolean bufferFacts;
 	volatile boolean changed;
+	volatile RoundProfile roundProfile;
+	final Queue<FactBuffer> factBuffers = new ConcurrentLinkedQueue<>();
+	final ThreadLocal<FactBuffer> factBuffer = ThreadLocal.withInitial(() -> {
+		FactBuffer buf = new FactBuffer();
+		factBuffers.add(buf);
+		return buf;
+	});
 
 	static final int taskSize = Configuration.taskSize;
 	static final int smtTaskSize = Configuration.smtTaskSize;
 
-	public RoundBasedStratumEvaluator(int stratumNum, SortedIndexedFactDb db,
-			IndexedFactDbBuilder<SortedIndexedFactDb> deltaDbb, Iterable<IndexedRule> rules, CountingFJP exec,
-			Set<RelationSymbol> trackedRelations) {
+	public RoundBasedStratumEvaluator(int stratumNum, IndexedFactDb db, IndexedFactDbBuilder<?> deltaDbb, Iterable<IndexedRule> rules, CountingFJP exec,
+			Set<RelationSymbol> trackedRelations, JoinOrderPlanner planner) {
 		super(rules);
 		this.stratumNum = stratumNum;
 		this.db = db;
@@ -69,6 +88,15 @@ public final class RoundBasedStratumEvaluator extends AbstractStratumEvaluator {
 		this.nextDeltaDb = deltaDbb.build();
 		this.exec = exec;
 		this.trackedRelations = trackedRelations;
+		this.planner = planner;
+		bufferFacts = Configuration.threadLocalFactBuffers(exec.getParallelism());
+		if (planner != null) {
+			for (IndexedRule r : rules) {
+				for (IndexedRule alt : planner.getAlternatives(r)) {
+					addSplitPositions(alt);
+				}
+			}
+		}
 	}
 
 	@Override
@@ -76,7 +104,7 @@ public final class RoundBasedStratumEvaluator extends AbstractStratumEvaluator {
 		int round = 0;
 		StopWatch watch = recordRoundStart(round);
 		for (IndexedRule r : firstRoundRules) {
-			exec.externallyAddTask(new RulePrefixEvaluator(r));
+			exec.externallyAddTask(new RulePrefixEvaluator(chooseJoinOrder(r)));
 		}
 		exec.blockUntilFinished();
 		if (exec.hasFailed()) {
@@ -91,7 +119,7 @@ public final class RoundBasedStratumEvaluator extends AbstractStratumEvaluator {
 			for (RelationSymbol delta : laterRoundRules.keySet()) {
 				if (!deltaDb.isEmpty(delta)) {
 					for (IndexedRule r : laterRoundRules.get(delta)) {
-						exec.externallyAddTask(new RulePrefixEvaluator(r));
+						exec.externallyAddTask(new RulePrefixEvaluator(chooseJoinOrder(r)));
 					}
 				}
 			}
@@ -104,85 +132,255 @@ public final class RoundBasedStratumEvaluator extends AbstractStratumEvaluator {
 		}
 	}
 
-	void reportFact(RelationSymbol sym, Term[] args, Substitution s) throws EvaluationException {
-		Term[] newArgs = new Term[args.length];
-		for (int i = 0; i < args.length; ++i) {
-			newArgs[i] = args[i].normalize(s);
+	IndexedRule chooseJoinOrder(IndexedRule r) {
+		if (planner == null) {
+			return r;
 		}
-		if (!db.hasFact(sym, newArgs) && nextDeltaDb.add(sym, newArgs)) {
+		return planner.choose(r, db, deltaDb);
+	}
+
+	/*
+	 * Reports a fact derived by a rule (which is being profiled if the profile is
+	 * not null), returning whether it is new.
+	 */
+	boolean reportFact(RelationSymbol sym, Term[] newArgs, RuleProfile prof) throws EvaluationException {
+		if (db.hasFact(sym, newArgs)) {
+			return false;
+		}
+		if (bufferFacts) {
+			return factBuffer.get().add(sym, newArgs, prof);
+		}
+		if (nextDeltaDb.add(sym, newArgs)) {
 			changed = true;
 			if (trackedRelations.contains(sym)) {
 				System.err.println("[TRACKED] " + UserPredicate.make(sym, newArgs, false));
 			}
+			return true;
+		}
+		return false;
+	}
+
+	/*
+	 * The new facts that one worker thread has found during a round. Keeping them
+	 * apart (and deduplicated) until the end of the round keeps the threads from
+	 * contending over the shared delta database while rules are evaluated.
+	 */
+	static class FactBuffer {
+
+		Map<RelationSymbol, Map<List<Term>, Term[]>> facts = new HashMap<>();
+		// The rules that derived the buffered facts, when they are being profiled.
+		Map<Term[], RuleProfile> origins = new IdentityHashMap<>();
+
+		boolean add(RelationSymbol sym, Term[] tup, RuleProfile prof) {
+			if (Util.lookupOrCreate(facts, sym, () -> new HashMap<>()).putIfAbsent(Arrays.asList(tup), tup) != null) {
+				return false;
+			}
+			if (prof != null) {
+				origins.put(tup, prof);
+			}
+			return true;
+		}
+
+	}
+
+	/*
+	 * Moves the facts buffered by the worker threads into the next delta database
+	 * (which is otherwise left empty while a round is running). The buffers for
+	 * each relation are first combined, so that facts found by more than one
+	 * thread only go in once, and then merged into each index in parallel. Facts
+	 * that were reported as new but turn out to be duplicates are counted as such
+	 * for the rules that derived them.
+	 */
+	void flushFactBuffers() {
+		Map<RelationSymbol, Map<List<Term>, Term[]>> all = new HashMap<>();
+		Map<Term[], RuleProfile> origins = new IdentityHashMap<>();
+		for (FactBuffer buf : factBuffers) {
+			if (!buf.origins.isEmpty()) {
+				origins.putAll(buf.origins);
+				buf.origins = new IdentityHashMap<>();
+			}
+			for (Map.Entry<RelationSymbol, Map<List<Term>, Term[]>> e : buf.facts.entrySet()) {
+				Map<List<Term>, Term[]> m = e.getValue();
+				Map<List<Term>, Term[]> prev = all.putIfAbsent(e.getKey(), m);
+				if (prev != null) {
+					if (prev.size() < m.size()) {
+						all.put(e.getKey(), m);
+						Map<List<Term>, Term[]> tmp = m;
+						m = prev;
+						prev = tmp;
+					}
+					for (Map.Entry<List<Term>, Term[]> e2 : m.entrySet()) {
+						if (prev.putIfAbsent(e2.getKey(), e2.getValue()) != null) {
+							recordDuplicate(origins, e2.getValue());
+						}
+					}
+				}
+			}
+			buf.facts = new HashMap<>();
+		}
+		for (Map.Entry<RelationSymbol, Map<List<Term>, Term[]>> e : all.entrySet()) {
+			RelationSymbol sym = e.getKey();
+			Collection<Term[]> facts = e.getValue().values();
+			if (!nextDeltaDb.isEmpty(sym)) {
+				facts.removeIf(tup -> {
+					if (nextDeltaDb.hasFact(sym, tup)) {
+						recordDuplicate(origins, tup);
+						return true;
+					}
+					return false;
+				});
+			}
+			if (facts.isEmpty()) {
+				continue;
+			}
+			changed = true;
+			Term[][] tups = facts.toArray(new Term[facts.size()][]);
+			if (trackedRelations.contains(sym)) {
+				for (Term[] tup : tups) {
+					System.err.println("[TRACKED] " + UserPredicate.make(sym, tup, false));
+				}
+			}
+			int n = nextDeltaDb.numMergeTargets(sym);
+			for (int i = 0; i < n; ++i) {
+				exec.externallyAddTask(new MergeTask(nextDeltaDb, sym, i, tups));
+			}
+		}
+		exec.blockUntilFinished();
+	}
+
+	private static void recordDuplicate(Map<Term[], RuleProfile> origins, Term[] tup) {
+		RuleProfile prof = origins.get(tup);
+		if (prof != null) {
+			prof.recordLateDuplicate();
 		}
 	}
 
 	void updateDbs() {
+		long start = System.nanoTime();
 		StopWatch watch = recordDbUpdateStart();
+		flushFactBuffers();
 		for (RelationSymbol sym : nextDeltaDb.getSymbols()) {
 			if (nextDeltaDb.isEmpty(sym)) {
 				continue;
 			}
-			Iterable<Iterable<Term[]>> answers = Util.splitIterable(nextDeltaDb.getAll(sym), taskSize);
-			exec.externallyAddTask(new UpdateDbTask(sym, answers.iterator()));
+			// Since the main database does not change during a round, none of these
+			// tuples are in it, and each index can be merged into independently.
+			List<Term[]> l = Util.iterableToList(nextDeltaDb.getAll(sym));
+			Term[][] tups = l.toArray(new Term[l.size()][]);
+			int n = db.numMergeTargets(sym);
+			for (int i = 0; i < n; ++i) {
+				exec.externallyAddTask(new MergeTask(db, sym, i, tups));
+			}
 		}
 		exec.blockUntilFinished();
-		SortedIndexedFactDb tmp = deltaDb;
+		IndexedFactDb tmp = deltaDb;
 		deltaDb = nextDeltaDb;
 		nextDeltaDb = tmp;
 		nextDeltaDb.clear();
 		recordDbUpdateEnd(watch);
+		if (profile) {
+			roundProfile.recordDbUpdateTime(System.nanoTime() - start);
+		}
 	}
 
 	@SuppressWarnings("serial")
-	class UpdateDbTask extends AbstractFJPTask {
+	class MergeTask extends AbstractFJPTask {
 
+		final IndexedFactDb into;
 		final RelationSymbol sym;
-		final Iterator<Iterable<Term[]>> it;
+		final int target;
+		final Term[][] tups;
 
-		protected UpdateDbTask(RelationSymbol sym, Iterator<Iterable<Term[]>> it) {
+		protected MergeTask(IndexedFactDb into, RelationSymbol sym, int target, Term[][] tups) {
 			super(exec);
+			this.into = into;
 			this.sym = sym;
-			this.it = it;
+			this.target = target;
+			this.tups = tups;
 		}
 
 		@Override
 		public void doTask() throws EvaluationException {
-			Iterable<Term[]> tups = it.next();
-			if (it.hasNext()) {
-				exec.recursivelyAddTask(new UpdateDbTask(sym, it));
+			Term[][] sorted = tups;
+			Comparator<Term[]> cmp = into.getMergeOrder(sym, target);
+			if (cmp != null) {
+				sorted = tups.clone();
+				Arrays.sort(sorted, cmp);
 			}
-			db.addAll(sym, tups);
+			mergeRange(into, sym, target, Arrays.asList(sorted));
 		}
 
 	}
 
-	Iterable<Iterable<Term[]>> lookup(IndexedRule r, int pos, OverwriteSubstitution s) throws EvaluationException {
+	@SuppressWarnings("serial")
+	class MergeRangeTask extends AbstractFJPTask {
+
+		final IndexedFactDb into;
+		final RelationSymbol sym;
+		final int target;
+		final List<Term[]> tups;
+
+		protected MergeRangeTask(IndexedFactDb into, RelationSymbol sym, int target, List<Term[]> tups) {
+			super(exec);
+			this.into = into;
+			this.sym = sym;
+			this.target = target;
+			this.tups = tups;
+		}
+
+		@Override
+		public void doTask() throws EvaluationException {
+			mergeRange(into, sym, target, tups);
+		}
+
+	}
+
+	/*
+	 * Merges sorted tuples into an index. The tuples are bisected into contiguous
+	 * key ranges, which touch (mostly) disjoint parts of the index, so that the
+	 * ranges are merged by a balanced tree of tasks.
+	 */
+	void mergeRange(IndexedFactDb into, RelationSymbol sym, int target, List<Term[]> tups) {
+		while (tups.size() > taskSize) {
+			int mid = tups.size() / 2;
+			exec.recursivelyAddTask(new MergeRangeTask(into, sym, target, tups.subList(mid, tups.size())));
+			tups = tups.subList(0, mid);
+		}
+		into.mergeFresh(sym, target, tups);
+	}
+
+	Iterable<Term[]> lookupTuples(IndexedRule r, int pos, SlotSubstitution s) throws EvaluationException {
 		SimplePredicate predicate = (SimplePredicate) r.getBody(pos);
 		int idx = r.getDbIndex(pos);
 		Term[] args = predicate.getArgs();
 		Term[] key = new Term[args.length];
 		BindingType[] pat = predicate.getBindingPattern();
+		int[] slots = r.getBodySlots(pos);
 		for (int i = 0; i < args.length; ++i) {
 			if (pat[i].isBound()) {
-				key[i] = args[i].normalize(s);
+				key[i] = s.normalize(args[i], slots[i]);
 			} else {
 				key[i] = args[i];
 			}
 		}
-		RelationSymbol sym = predicate.getSymbol();
-		Iterable<Term[]> ans;
-		if (sym instanceof DeltaSymbol) {
-			ans = deltaDb.get(((DeltaSymbol) sym).getBaseSymbol(), key, idx);
-		} else {
-			ans = db.get(sym, key, idx);
-		}
+		return lookup(predicate.getSymbol(), key, idx);
+	}
+
+	ChunkIterator<Term[]> lookup(IndexedRule r, int pos, SlotSubstitution s) throws EvaluationException {
 		boolean shouldSplit = splitPositions.get(r)[pos];
 		int targetSize = shouldSplit ? smtTaskSize : taskSize;
-		return Util.splitIterable(ans, targetSize);
+		return Util.splitIterable(lookupTuples(r, pos, s), targetSize).iterator();
+	}
+
+	Iterable<Term[]> lookup(RelationSymbol sym, Term[] key, int idx) {
+		if (sym instanceof DeltaSymbol) {
+			return deltaDb.get(((DeltaSymbol) sym).getBaseSymbol(), key, idx);
+		}
+		return db.get(sym, key, idx);
 	}
 
 	static final boolean recordRuleDiagnostics = Configuration.recordRuleDiagnostics;
+	static final boolean profile = Configuration.profileTrace != null;
 
 	@SuppressWarnings("serial")
 	class RuleSuffixEvaluator extends AbstractFJPTask {
@@ -191,11 +389,12 @@ public final class RoundBasedStratumEvaluator extends AbstractStratumEvaluator {
 		final SimplePredicate head;
 		final SimpleLiteral[] body;
 		final int startPos;
-		final OverwriteSubstitution s;
-		final Iterator<Iterable<Term[]>> it;
+		final SlotSubstitution s;
+		final ChunkIterator<Term[]> it;
+		final RuleProfile prof;
 
 		protected RuleSuffixEvaluator(IndexedRule rule, SimplePredicate head, SimpleLiteral[] body, int pos,
-				OverwriteSubstitution s, Iterator<Iterable<Term[]>> it) {
+				SlotSubstitution s, ChunkIterator<Term[]> it) {
 			super(exec);
 			this.rule = rule;
 			this.head = head;
@@ -203,10 +402,11 @@ public final class RoundBasedStratumEvaluator extends AbstractStratumEvaluator {
 			this.startPos = pos;
 			this.s = s;
 			this.it = it;
+			this.prof = profile ? roundProfile.getRule(rule) : null;
 		}
 
-		protected RuleSuffixEvaluator(IndexedRule rule, int pos, OverwriteSubstitution s,
-				Iterator<Iterable<Term[]>> it) {
+		protected RuleSuffixEvaluator(IndexedRule rule, int pos, SlotSubstitution s,
+				ChunkIterator<Term[]> it) {
 			super(exec);
 			this.rule = rule;
 			this.head = rule.getHead();
@@ -218,6 +418,7 @@ public final class RoundBasedStratumEvaluator extends AbstractStratumEvaluator {
 			this.startPos = pos;
 			this.s = s;
 			this.it = it;
+			this.prof = profile ? roundProfile.getRule(rule) : null;
 		}
 
 		@Override
@@ -226,9 +427,19 @@ public final class RoundBasedStratumEvaluator extends AbstractStratumEvaluator {
 			if (recordRuleDiagnostics) {
 				start = System.currentTimeMillis();
 			}
+			long wall = 0;
+			long cpu = 0;
+			if (prof != null) {
+				wall = System.nanoTime();
+				cpu = EvaluationProfiler.cpuTime();
+			}
+			if (!it.hasNext()) {
+				// Splitting can leave a part of a range empty.
+				return;
+			}
 			Iterable<Term[]> tups = it.next();
 			if (it.hasNext()) {
-				exec.recursivelyAddTask(new RuleSuffixEvaluator(rule, head, body, startPos, s.copy(), it));
+				forkRest(startPos, it);
 			}
 			try {
 				for (Term[] tup : tups) {
@@ -242,11 +453,16 @@ public final class RoundBasedStratumEvaluator extends AbstractStratumEvaluator {
 				long end = System.currentTimeMillis();
 				Configuration.recordRuleSuffixTime(rule, end - start);
 			}
+			if (prof != null) {
+				prof.recordTime(System.nanoTime() - wall, EvaluationProfiler.cpuTime() - cpu);
+			}
 		}
 
 		void evaluate(Term[] ans) throws UncheckedEvaluationException {
-			SimplePredicate p = (SimplePredicate) body[startPos];
-			updateBinding(p, ans);
+			if (prof != null) {
+				prof.recordRead(startPos);
+			}
+			updateBinding(startPos, ans);
 			int pos = startPos + 1;
 			@SuppressWarnings("unchecked")
 			Iterator<Term[]>[] stack = new Iterator[rule.getBodySize()];
@@ -254,7 +470,10 @@ public final class RoundBasedStratumEvaluator extends AbstractStratumEvaluator {
 			while (pos > startPos) {
 				if (pos == body.length) {
 					try {
-						reportFact(head.getSymbol(), head.getArgs(), s);
+						boolean isNew = reportFact(head.getSymbol(), head.normalizeArgs(s, rule.getHeadSlots()), prof);
+						if (prof != null) {
+							prof.recordFact(isNew);
+						}
 					} catch (EvaluationException e) {
 						throw new UncheckedEvaluationException(
 								"Exception raised while evaluating the literal: " + head + "\n\n" + e.getMessage());
@@ -266,11 +485,11 @@ public final class RoundBasedStratumEvaluator extends AbstractStratumEvaluator {
 					try {
 						switch (l.getTag()) {
 						case ASSIGNMENT:
-							((Assignment) l).assign(s);
+							((Assignment) l).assign(s, rule.getBodySlots(pos));
 							pos++;
 							break;
 						case CHECK:
-							if (((Check) l).check(s)) {
+							if (((Check) l).check(s, rule.getBodySlots(pos))) {
 								pos++;
 							} else {
 								pos--;
@@ -278,7 +497,7 @@ public final class RoundBasedStratumEvaluator extends AbstractStratumEvaluator {
 							}
 							break;
 						case DESTRUCTOR:
-							if (((Destructor) l).destruct(s)) {
+							if (((Destructor) l).destruct(s, rule.getBodySlots(pos))) {
 								pos++;
 							} else {
 								pos--;
@@ -286,20 +505,19 @@ public final class RoundBasedStratumEvaluator extends AbstractStratumEvaluator {
 							}
 							break;
 						case PREDICATE:
-							Iterator<Iterable<Term[]>> tups = lookup(rule, pos, s).iterator();
 							if (((SimplePredicate) l).isNegated()) {
-								if (!tups.hasNext()) {
+								if (!lookupTuples(rule, pos, s).iterator().hasNext()) {
 									pos++;
 								} else {
 									pos--;
 									movingRight = false;
 								}
 							} else {
+								ChunkIterator<Term[]> tups = lookup(rule, pos, s);
 								if (tups.hasNext()) {
 									stack[pos] = tups.next().iterator();
 									if (tups.hasNext()) {
-										exec.recursivelyAddTask(
-												new RuleSuffixEvaluator(rule, head, body, pos, s.copy(), tups));
+										forkRest(pos, tups);
 									}
 									// No need to do anything else: we'll hit the right case on the next iteration.
 								} else {
@@ -317,7 +535,10 @@ public final class RoundBasedStratumEvaluator extends AbstractStratumEvaluator {
 					Iterator<Term[]> it = stack[pos];
 					if (it != null && it.hasNext()) {
 						ans = it.next();
-						updateBinding((SimplePredicate) rule.getBody(pos), ans);
+						if (prof != null) {
+							prof.recordRead(pos);
+						}
+						updateBinding(pos, ans);
 						movingRight = true;
 						pos++;
 					} else {
@@ -328,12 +549,24 @@ public final class RoundBasedStratumEvaluator extends AbstractStratumEvaluator {
 			}
 		}
 
-		void updateBinding(SimplePredicate p, Term[] ans) {
-			Term[] args = p.getArgs();
-			BindingType[] pat = p.getBindingPattern();
+		/*
+		 * Hands the remaining chunks of tuples for the given position off to new
+		 * tasks, splitting them into a balanced tree first when the index allows it.
+		 */
+		void forkRest(int pos, ChunkIterator<Term[]> rest) {
+			ChunkIterator<Term[]> half;
+			while ((half = rest.trySplit()) != null) {
+				exec.recursivelyAddTask(new RuleSuffixEvaluator(rule, head, body, pos, s.copy(), half));
+			}
+			exec.recursivelyAddTask(new RuleSuffixEvaluator(rule, head, body, pos, s.copy(), rest));
+		}
+
+		void updateBinding(int pos, Term[] ans) {
+			BindingType[] pat = ((SimplePredicate) body[pos]).getBindingPattern();
+			int[] slots = rule.getBodySlots(pos);
 			for (int i = 0; i < pat.length; ++i) {
 				if (pat[i].isFree()) {
-					s.put((Var) args[i], ans[i]);
+					s.put(slots[i], ans[i]);
 				}
 			}
 		}
@@ -344,10 +577,12 @@ public final class RoundBasedStratumEvaluator extends AbstractStratumEvaluator {
 	class RulePrefixEvaluator extends AbstractFJPTask {
 
 		final IndexedRule rule;
+		final RuleProfile prof;
 
 		protected RulePrefixEvaluator(IndexedRule rule) {
 			super(exec);
 			this.rule = rule;
+			this.prof = profile ? roundProfile.getRule(rule) : null;
 		}
 
 		@Override
@@ -356,6 +591,12 @@ public final class RoundBasedStratumEvaluator extends AbstractStratumEvaluator {
 			if (recordRuleDiagnostics) {
 				start = System.currentTimeMillis();
 			}
+			long wall = 0;
+			long cpu = 0;
+			if (prof != null) {
+				wall = System.nanoTime();
+				cpu = EvaluationProfiler.cpuTime();
+			}
 			try {
 				evaluate();
 			} catch (EvaluationException e) {
@@ -366,33 +607,36 @@ public final class RoundBasedStratumEvaluator extends AbstractStratumEvaluator {
 				long end = System.currentTimeMillis();
 				Configuration.recordRulePrefixTime(rule, end - start);
 			}
+			if (prof != null) {
+				prof.recordTime(System.nanoTime() - wall, EvaluationProfiler.cpuTime() - cpu);
+			}
 		}
 
 		void evaluate() throws EvaluationException {
 			int len = rule.getBodySize();
 			int pos = 0;
-			OverwriteSubstitution s = new OverwriteSubstitution();
+			SlotSubstitution s = rule.newSubstitution();
 			loop: for (; pos < len; ++pos) {
 				SimpleLiteral l = rule.getBody(pos);
 				try {
 					switch (l.getTag()) {
 					case ASSIGNMENT:
-						((Assignment) l).assign(s);
+						((Assignment) l).assign(s, rule.getBodySlots(pos));
 						break;
 					case CHECK:
-						if (!((Check) l).check(s)) {
+						if (!((Check) l).check(s, rule.getBodySlots(pos))) {
 							return;
 						}
 						break;
 					case DESTRUCTOR:
-						if (!((Destructor) l).destruct(s)) {
+						if (!((Destructor) l).destruct(s, rule.getBodySlots(pos))) {
 							return;
 						}
 						break;
 					case PREDICATE:
 						SimplePredicate p = (SimplePredicate) l;
 						if (p.isNegated()) {
-							if (lookup(rule, pos, s).iterator().hasNext()) {
+							if (lookupTuples(rule, pos, s).iterator().hasNext()) {
 								return;
 							}
 						} else {
@@ -409,14 +653,17 @@ public final class RoundBasedStratumEvaluator extends AbstractStratumEvaluator {
 			if (pos == len) {
 				try {
 					SimplePredicate head = rule.getHead();
-					reportFact(head.getSymbol(), head.getArgs(), s);
+					boolean isNew = reportFact(head.getSymbol(), head.normalizeArgs(s, rule.getHeadSlots()), prof);
+					if (prof != null) {
+						prof.recordFact(isNew);
+					}
 					return;
 				} catch (EvaluationException e) {
 					throw new EvaluationException("Exception raised while evaluationg the literal: " + rule.getHead()
 							+ e.getLocalizedMessage());
 				}
 			}
-			Iterator<Iterable<Term[]>> tups = lookup(rule, pos, s).iterator();
+			ChunkIterator<Term[]> tups = lookup(rule, pos, s);
 			if (tups.hasNext()) {
 				exec.recursivelyAddTask(new RuleSuffixEvaluator(rule, pos, s, tups));
 			}
@@ -424,6 +671,9 @@ public final class RoundBasedStratumEvaluator extends AbstractStratumEvaluator {
 	}
 
 	StopWatch recordRoundStart(int round) {
+		if (profile) {
+			roundProfile = EvaluationProfiler.startRound(stratumNum, round, db, deltaDb);
+		}
 		if (!Configuration.debugRounds) {
 			return null;
 		}
@@ -437,6 +687,9 @@ public final class RoundBasedStratumEvaluator extends AbstractStratumEvaluator {
 	}
 
 	void recordRoundEnd(int round, StopWatch watch) {
+		if (profile) {
+			roundProfile.end();
+		}
 		if (watch == null) {
 			return;
 		}
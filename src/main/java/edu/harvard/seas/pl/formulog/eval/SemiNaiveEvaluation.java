@@ -21,14 +21,17 @@ package edu.harvard.seas.pl.formulog.eval;
  */
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.function.BiFunction;
+import java.util.function.Function;
 
 import edu.harvard.seas.pl.formulog.Configuration;
 import edu.harvard.seas.pl.formulog.ast.BasicProgram;
@@ -42,14 +45,20 @@ import edu.harvard.seas.pl.formulog.ast.Terms;
 import edu.harvard.seas.pl.formulog.ast.UnificationPredicate;
 import edu.harvard.seas.pl.formulog.ast.UserPredicate;
 import edu.harvard.seas.pl.formulog.ast.Var;
+import edu.harvard.seas.pl.formulog.db.EncodedIndexedFactDb.EncodedIndexedFactDbBuilder;
+import edu.harvard.seas.pl.formulog.db.IndexedFactDb;
 import edu.harvard.seas.pl.formulog.db.IndexedFactDbBuilder;
-import edu.harvard.seas.pl.formulog.db.SortedIndexedFactDb;
 import edu.harvard.seas.pl.formulog.db.SortedIndexedFactDb.SortedIndexedFactDbBuilder;
 import edu.harvard.seas.pl.formulog.eval.SemiNaiveRule.DeltaSymbol;
 import edu.harvard.seas.pl.formulog.magic.MagicSetTransformer;
 import edu.harvard.seas.pl.formulog.smt.BestMatchSmtManager;
+import edu.harvard.seas.pl.formulog.smt.CachingSmtManager;
+import edu.harvard.seas.pl.formulog.smt.ElasticSmtManager;
+import edu.harvard.seas.pl.formulog.smt.ManagedBlockingSmtManager;
 import edu.harvard.seas.pl.formulog.smt.NaiveSmtManager;
 import edu.harvard.seas.pl.formulog.smt.PerThreadSmtManager;
+import edu.harvard.seas.pl.formulog.smt.PipelinedSmtManager;
+import edu.harvard.seas.pl.formulog.smt.PortfolioSmtManager;
 import edu.harvard.seas.pl.formulog.smt.PushPopSmtManager;
 import edu.harvard.seas.pl.formulog.smt.QueueSmtManager;
 import edu.harvard.seas.pl.formulog.smt.SmtManager;
@@ -63,18 +72,21 @@ import edu.harvard.seas.pl.formulog.util.AbstractFJPTask;
 import edu.harvard.seas.pl.formulog.util.CountingFJP;
 import edu.harvard.seas.pl.formulog.util.CountingFJPImpl;
 import edu.harvard.seas.pl.formulog.util.MockCountingFJP;
+import edu.harvard.seas.pl.formulog.util.Pair;
 import edu.harvard.seas.pl.formulog.util.Util;
 import edu.harvard.seas.pl.formulog.validating.FunctionDefValidation;
 import edu.harvard.seas.pl.formulog.validating.InvalidProgramException;
 import edu.harvard.seas.pl.formulog.validating.Stratifier;
 import edu.harvard.seas.pl.formulog.validating.Stratum;
 import edu.harvard.seas.pl.formulog.validating.ValidRule;
+import edu.harvard.seas.pl.formulog.validating.ast.SimplePredicate;
 import edu.harvard.seas.pl.formulog.validating.ast.SimpleRule;
 
 public class SemiNaiveEvaluation implements Evaluation {
 
-	private final SortedIndexedFactDb db;
-	private final IndexedFactDbBuilder<SortedIndexedFactDb> deltaDbb;
+	private final IndexedFactDb db;
+	private final IndexedFactDbBuilder<?> dbb;
+	private final IndexedFactDbBuilder<?> deltaDbb;
 	private final List<Stratum> strata;
 	private final UserPredicate query;
 	private final CountingFJP exec;
@@ -82,24 +94,56 @@ public class SemiNaiveEvaluation implements Evaluation {
 	private final WellTypedProgram inputProgram;
 	private final Map<RelationSymbol, Set<IndexedRule>> rules;
 	private final boolean eagerEval;
+	private final JoinOrderPlanner planner;
+	private final boolean incremental;
+	private final Map<Integer, List<IndexedRule>> incrementalRules;
+	private final Map<Integer, List<IndexedRule>> rederivationRules;
+	private boolean evaluated;
 
 	static final boolean sequential = System.getProperty("sequential") != null;
 	static final boolean debugRounds = Configuration.debugRounds;
 
-	@SuppressWarnings("serial")
 	public static SemiNaiveEvaluation setup(WellTypedProgram prog, int parallelism, boolean eagerEval)
 			throws InvalidProgramException {
+		return setup(prog, parallelism, eagerEval, false);
+	}
+
+	/**
+	 * Sets up an evaluation of the given program. If it is incremental, the result
+	 * can be brought up to date with changes to the input relations (see
+	 * {@link #update(Map, Map)}) without starting over.
+	 */
+	@SuppressWarnings("serial")
+	public static SemiNaiveEvaluation setup(WellTypedProgram prog, int parallelism, boolean eagerEval,
+			boolean incremental) throws InvalidProgramException {
 		FunctionDefValidation.validate(prog);
 		MagicSetTransformer mst = new MagicSetTransformer(prog);
 		BasicProgram magicProg = mst.transform(Configuration.useDemandTransformation, true);
 		Set<RelationSymbol> allRelations = new HashSet<>(magicProg.getFactSymbols());
 		allRelations.addAll(magicProg.getRuleSymbols());
-		SortedIndexedFactDbBuilder dbb = new SortedIndexedFactDbBuilder(allRelations);
-		SortedIndexedFactDbBuilder deltaDbb = new SortedIndexedFactDbBuilder(magicProg.getRuleSymbols());
+		IndexedFactDbBuilder<?> dbb = makeDbBuilder(allRelations);
+		// In incremental mode, changes to input relations are propagated as deltas.
+		IndexedFactDbBuilder<?> deltaDbb = makeDbBuilder(incremental ? allRelations : magicProg.getRuleSymbols());
 		PredicateFunctionSetter predFuncs = new PredicateFunctionSetter(
 				magicProg.getFunctionCallFactory().getDefManager(), dbb);
 
+		Function<SimplePredicate, Integer> makeIndex = p -> {
+			RelationSymbol psym = p.getSymbol();
+			if (psym instanceof DeltaSymbol) {
+				psym = ((DeltaSymbol) psym).getBaseSymbol();
+				return deltaDbb.makeIndex(psym, p.getBindingPattern());
+			} else {
+				return dbb.makeIndex(psym, p.getBindingPattern());
+			}
+		};
+		JoinOrderPlanner planner = null;
+		if (Configuration.adaptiveJoinOrder && !eagerEval) {
+			planner = new JoinOrderPlanner();
+		}
+
 		Map<RelationSymbol, Set<IndexedRule>> rules = new HashMap<>();
+		Map<Integer, List<IndexedRule>> incrementalRules = new HashMap<>();
+		Map<Integer, List<IndexedRule>> rederivationRules = new HashMap<>();
 		List<Stratum> strata = new Stratifier(magicProg).stratify();
 		for (Stratum stratum : strata) {
 			if (stratum.hasRecursiveNegationOrAggregation()) {
@@ -115,16 +159,15 @@ public class SemiNaiveEvaluation implements Evaluation {
 						checkRule(vr, eagerEval);
 						predFuncs.preprocess(vr);
 						SimpleRule sr = SimpleRule.make(vr);
-						IndexedRule ir = IndexedRule.make(sr, p -> {
-							RelationSymbol psym = p.getSymbol();
-							if (psym instanceof DeltaSymbol) {
-								psym = ((DeltaSymbol) psym).getBaseSymbol();
-								return deltaDbb.makeIndex(psym, p.getBindingPattern());
-							} else {
-								return dbb.makeIndex(psym, p.getBindingPattern());
-							}
-						});
+						IndexedRule ir = IndexedRule.make(sr, makeIndex);
 						rs.add(ir);
+						if (planner != null) {
+							List<IndexedRule> alts = new ArrayList<>();
+							for (ValidRule alt : JoinOrderPlanner.reorderings(vr)) {
+								alts.add(IndexedRule.make(SimpleRule.make(alt), makeIndex));
+							}
+							planner.addAlternatives(ir, alts);
+						}
 						if (Configuration.printFinalRules) {
 							System.err.println("[FINAL RULE]:\n" + ir);
 						}
@@ -132,8 +175,27 @@ public class SemiNaiveEvaluation implements Evaluation {
 				}
 				rules.put(sym, rs);
 			}
+			if (incremental) {
+				try {
+					List<IndexedRule> inc = new ArrayList<>();
+					List<IndexedRule> rederive = new ArrayList<>();
+					for (RelationSymbol sym : stratumSymbols) {
+						for (BasicRule br : magicProg.getRules(sym)) {
+							for (SemiNaiveRule snr : SemiNaiveRule.makeIncremental(br, stratumSymbols)) {
+								inc.add(makeIncrementalRule(snr, eagerEval, predFuncs, makeIndex));
+							}
+							rederive.add(makeIncrementalRule(SemiNaiveRule.makeRederivation(br), eagerEval, predFuncs,
+									makeIndex));
+						}
+					}
+					incrementalRules.put(stratum.getRank(), inc);
+					rederivationRules.put(stratum.getRank(), rederive);
+				} catch (InvalidProgramException e) {
+					// Changes to this stratum will be handled by recomputing it.
+				}
+			}
 		}
-		SortedIndexedFactDb db = dbb.build();
+		IndexedFactDb db = dbb.build();
 		predFuncs.setDb(db);
 
 		SmtManager smt = getSmtManager(magicProg);
@@ -170,8 +232,30 @@ public class SemiNaiveEvaluation implements Evaluation {
 			exec.shutdown();
 			throw new InvalidProgramException(exec.getFailureCause());
 		}
-		return new SemiNaiveEvaluation(prog, db, deltaDbb, rules, magicProg.getQuery(), strata, exec,
-				getTrackedRelations(magicProg.getSymbolManager()), eagerEval);
+		return new SemiNaiveEvaluation(prog, db, dbb, deltaDbb, rules, magicProg.getQuery(), strata, exec,
+				getTrackedRelations(magicProg.getSymbolManager()), eagerEval, planner, incremental, incrementalRules,
+				rederivationRules);
+	}
+
+	private static IndexedRule makeIncrementalRule(SemiNaiveRule snr, boolean eagerEval,
+			PredicateFunctionSetter predFuncs, Function<SimplePredicate, Integer> makeIndex)
+			throws InvalidProgramException {
+		BiFunction<ComplexLiteral, Set<Var>, Integer> score = chooseScoringFunction(eagerEval);
+		ValidRule vr = ValidRule.make(tweakRule(snr, eagerEval), score);
+		checkRule(vr, eagerEval);
+		predFuncs.preprocess(vr);
+		IndexedRule ir = IndexedRule.make(SimpleRule.make(vr), makeIndex);
+		if (Configuration.printFinalRules) {
+			System.err.println("[FINAL INCREMENTAL RULE]:\n" + ir);
+		}
+		return ir;
+	}
+
+	private static IndexedFactDbBuilder<?> makeDbBuilder(Set<RelationSymbol> syms) {
+		if (Configuration.encodeFacts) {
+			return new EncodedIndexedFactDbBuilder(syms);
+		}
+		return new SortedIndexedFactDbBuilder(syms);
 	}
 
 	private static Rule<UserPredicate, ComplexLiteral> tweakRule(Rule<UserPredicate, ComplexLiteral> r,
@@ -233,6 +317,17 @@ public class SemiNaiveEvaluation implements Evaluation {
 	}
 
 	private static SmtManager getSmtManager(Program<UserPredicate, BasicRule> prog) {
+		SmtManager smt = makeSmtManager(prog);
+		if (Configuration.smtManagedBlocking) {
+			smt = new ManagedBlockingSmtManager(smt);
+		}
+		if (Configuration.smtResultCache != null) {
+			smt = new CachingSmtManager(smt, prog, Configuration.smtResultCache);
+		}
+		return smt;
+	}
+
+	private static SmtManager makeSmtManager(Program<UserPredicate, BasicRule> prog) {
 		SmtStrategy strategy = Configuration.smtStrategy;
 		switch (strategy.getTag()) {
 		case QUEUE: {
@@ -243,6 +338,19 @@ public class SemiNaiveEvaluation implements Evaluation {
 			int size = (int) strategy.getMetadata();
 			return new BestMatchSmtManager(prog, size);
 		}
+		case PIPELINED: {
+			int size = (int) strategy.getMetadata();
+			return new PipelinedSmtManager(prog, size);
+		}
+		case ELASTIC: {
+			@SuppressWarnings("unchecked")
+			Pair<Integer, Integer> bounds = (Pair<Integer, Integer>) strategy.getMetadata();
+			return new ElasticSmtManager(prog, bounds.fst(), bounds.snd());
+		}
+		case PORTFOLIO: {
+			int size = (int) strategy.getMetadata();
+			return new PortfolioSmtManager(prog, size);
+		}
 		case PER_THREAD_QUEUE: {
 			int size = (int) strategy.getMetadata();
 			return new PerThreadSmtManager(() -> new QueueSmtManager(prog, size));
@@ -418,12 +526,17 @@ public class SemiNaiveEvaluation implements Evaluation {
 		}, null);
 	}
 
-	SemiNaiveEvaluation(WellTypedProgram inputProgram, SortedIndexedFactDb db,
-			IndexedFactDbBuilder<SortedIndexedFactDb> deltaDbb, Map<RelationSymbol, Set<IndexedRule>> rules,
-			UserPredicate query, List<Stratum> strata, CountingFJP exec, Set<RelationSymbol> trackedRelations,
-			boolean eagerEval) {
+	SemiNaiveEvaluation(WellTypedProgram inputProgram, IndexedFactDb db, IndexedFactDbBuilder<?> dbb,
+			IndexedFactDbBuilder<?> deltaDbb, Map<RelationSymbol, Set<IndexedRule>> rules, UserPredicate query,
+			List<Stratum> strata, CountingFJP exec, Set<RelationSymbol> trackedRelations, boolean eagerEval,
+			JoinOrderPlanner planner, boolean incremental, Map<Integer, List<IndexedRule>> incrementalRules,
+			Map<Integer, List<IndexedRule>> rederivationRules) {
 		this.inputProgram = inputProgram;
 		this.db = db;
+		this.dbb = dbb;
+		this.incremental = incremental;
+		this.incrementalRules = incrementalRules;
+		this.rederivationRules = rederivationRules;
 		this.query = query;
 		this.strata = strata;
 		this.exec = exec;
@@ -431,6 +544,7 @@ public class SemiNaiveEvaluation implements Evaluation {
 		this.deltaDbb = deltaDbb;
 		this.rules = rules;
 		this.eagerEval = eagerEval;
+		this.planner = planner;
 	}
 
 	@Override
@@ -454,8 +568,153 @@ public class SemiNaiveEvaluation implements Evaluation {
 
 			});
 		}
-		for (Stratum stratum : strata) {
+		try {
+			for (Stratum stratum : strata) {
+				evaluateStratum(stratum);
+			}
+		} finally {
+			flushProfile();
+		}
+		evaluated = true;
+	}
+
+	private static void flushProfile() {
+		if (Configuration.profileTrace != null) {
+			EvaluationProfiler.flush(Configuration.profileTrace);
+		}
+	}
+
+	/**
+	 * Adds and retracts tuples from input relations, and brings the rest of the
+	 * database up to date. Strata that depend on the changed relations only
+	 * positively are updated incrementally; others are recomputed. Only available
+	 * for incremental evaluations, after they have been run.
+	 */
+	public synchronized void update(Map<RelationSymbol, ? extends Iterable<Term[]>> additions,
+			Map<RelationSymbol, ? extends Iterable<Term[]>> retractions) throws EvaluationException {
+		if (!incremental || !evaluated) {
+			throw new IllegalStateException("Can only update an incremental evaluation that has been run");
+		}
+		// Retractions are applied before additions, so a tuple that is both retracted
+		// and added stays put.
+		Map<RelationSymbol, Set<List<Term>>> additionKeys = new HashMap<>();
+		for (Map.Entry<RelationSymbol, ? extends Iterable<Term[]>> e : additions.entrySet()) {
+			RelationSymbol sym = checkInputRelation(e.getKey());
+			Set<List<Term>> keys = Util.lookupOrCreate(additionKeys, sym, () -> new LinkedHashSet<>());
+			for (Term[] tup : e.getValue()) {
+				keys.add(Arrays.asList(normalize(sym, tup)));
+			}
+		}
+		Map<RelationSymbol, List<Term[]>> added = new HashMap<>();
+		Map<RelationSymbol, List<Term[]>> removed = new HashMap<>();
+		IndexedFactDb removedDb = dbb.build();
+		for (Map.Entry<RelationSymbol, ? extends Iterable<Term[]>> e : retractions.entrySet()) {
+			RelationSymbol sym = checkInputRelation(e.getKey());
+			Set<List<Term>> keys = additionKeys.getOrDefault(sym, Collections.emptySet());
+			for (Term[] tup : e.getValue()) {
+				tup = normalize(sym, tup);
+				if (db.hasFact(sym, tup) && !keys.contains(Arrays.asList(tup)) && removedDb.add(sym, tup)) {
+					Util.lookupOrCreate(removed, sym, () -> new ArrayList<>()).add(tup);
+				}
+			}
+		}
+		for (Map.Entry<RelationSymbol, Set<List<Term>>> e : additionKeys.entrySet()) {
+			RelationSymbol sym = e.getKey();
+			for (List<Term> key : e.getValue()) {
+				Term[] tup = key.toArray(new Term[key.size()]);
+				if (!db.hasFact(sym, tup)) {
+					Util.lookupOrCreate(added, sym, () -> new ArrayList<>()).add(tup);
+				}
+			}
+		}
+		for (Map.Entry<RelationSymbol, List<Term[]>> e : removed.entrySet()) {
+			db.removeAll(e.getKey(), e.getValue());
+		}
+		for (Map.Entry<RelationSymbol, List<Term[]>> e : added.entrySet()) {
+			db.addAll(e.getKey(), e.getValue());
+		}
+		inputProgram.getFunctionCallFactory().clearMemo();
+		try {
+			for (Stratum stratum : strata) {
+				updateStratum(stratum, added, removed, removedDb);
+			}
+		} finally {
+			flushProfile();
+		}
+	}
+
+	private RelationSymbol checkInputRelation(RelationSymbol sym) {
+		if (!sym.isEdbSymbol() || !db.getSymbols().contains(sym)) {
+			throw new IllegalArgumentException("Can only update input relations, not " + sym);
+		}
+		return sym;
+	}
+
+	private static Term[] normalize(RelationSymbol sym, Term[] tup) throws EvaluationException {
+		try {
+			return Terms.normalize(tup, new SimpleSubstitution());
+		} catch (EvaluationException e) {
+			UserPredicate p = UserPredicate.make(sym, tup, false);
+			throw new EvaluationException("Cannot normalize fact " + p + ":\n" + e.getMessage());
+		}
+	}
+
+	/*
+	 * Brings a stratum up to date with the changes so far, and records the changes
+	 * to its own relations.
+	 */
+	private void updateStratum(Stratum stratum, Map<RelationSymbol, List<Term[]>> added,
+			Map<RelationSymbol, List<Term[]>> removed, IndexedFactDb removedDb) throws EvaluationException {
+		Set<RelationSymbol> changed = new HashSet<>(added.keySet());
+		changed.addAll(removed.keySet());
+		if (Collections.disjoint(stratum.getDependencies(), changed)) {
+			return;
+		}
+		int rank = stratum.getRank();
+		Map<RelationSymbol, List<Term[]>> stratumAdded;
+		Map<RelationSymbol, List<Term[]>> stratumRemoved;
+		if (!eagerEval && incrementalRules.containsKey(rank)
+				&& Collections.disjoint(stratum.getNonMonotoneDependencies(), changed)) {
+			List<IndexedRule> l = new ArrayList<>(incrementalRules.get(rank));
+			for (RelationSymbol sym : stratum.getPredicateSyms()) {
+				for (IndexedRule r : rules.get(sym)) {
+					if (EvalUtil.findDelta(r) != null) {
+						l.add(r);
+					}
+				}
+			}
+			IncrementalStratumEvaluator eval = new IncrementalStratumEvaluator(rank, db, removedDb, deltaDbb, l,
+					rederivationRules.get(rank), exec, trackedRelations, added, removed);
+			eval.evaluate();
+			stratumAdded = eval.getAdded();
+			stratumRemoved = eval.getRemoved();
+		} else {
+			IndexedFactDb old = dbb.build();
+			for (RelationSymbol sym : stratum.getPredicateSyms()) {
+				List<Term[]> tups = Util.iterableToList(db.getAll(sym));
+				old.addAll(sym, tups);
+				db.removeAll(sym, tups);
+			}
 			evaluateStratum(stratum);
+			stratumAdded = new HashMap<>();
+			stratumRemoved = new HashMap<>();
+			for (RelationSymbol sym : stratum.getPredicateSyms()) {
+				for (Term[] tup : db.getAll(sym)) {
+					if (!old.hasFact(sym, tup)) {
+						Util.lookupOrCreate(stratumAdded, sym, () -> new ArrayList<>()).add(tup);
+					}
+				}
+				for (Term[] tup : old.getAll(sym)) {
+					if (!db.hasFact(sym, tup)) {
+						Util.lookupOrCreate(stratumRemoved, sym, () -> new ArrayList<>()).add(tup);
+					}
+				}
+			}
+		}
+		added.putAll(stratumAdded);
+		removed.putAll(stratumRemoved);
+		for (Map.Entry<RelationSymbol, List<Term[]>> e : stratumRemoved.entrySet()) {
+			removedDb.addAll(e.getKey(), e.getValue());
 		}
 	}
 
@@ -467,7 +726,8 @@ public class SemiNaiveEvaluation implements Evaluation {
 		if (eagerEval) {
 			new EagerStratumEvaluator(stratum.getRank(), db, l, exec, trackedRelations).evaluate();
 		} else {
-			new RoundBasedStratumEvaluator(stratum.getRank(), db, deltaDbb, l, exec, trackedRelations).evaluate();
+			new RoundBasedStratumEvaluator(stratum.getRank(), db, deltaDbb, l, exec, trackedRelations, planner)
+					.evaluate();
 		}
 	}
 
@@ -550,11 +810,11 @@ public class SemiNaiveEvaluation implements Evaluation {
 		return query;
 	}
 
-	public SortedIndexedFactDb getDb() {
+	public IndexedFactDb getDb() {
 		return db;
 	}
 
-	public IndexedFactDbBuilder<SortedIndexedFactDb> getDeltaDbBuilder() {
+	public IndexedFactDbBuilder<?> getDeltaDbBuilder() {
 		return deltaDbb;
 	}
 
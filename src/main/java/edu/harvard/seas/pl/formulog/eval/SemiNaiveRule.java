@@ -68,6 +68,42 @@ public class SemiNaiveRule extends AbstractRule<UserPredicate, ComplexLiteral> {
 		return rules;
 	}
 
+	/**
+	 * Returns a version of the given rule for each positive body predicate over a
+	 * relation outside the stratum, in which that predicate is replaced by its
+	 * delta version. These are used to propagate changes to lower strata (or to the
+	 * EDB) into the stratum.
+	 */
+	public static Set<SemiNaiveRule> makeIncremental(Rule<UserPredicate, ComplexLiteral> rule,
+			Set<RelationSymbol> stratumSymbols) {
+		Set<SemiNaiveRule> rules = new HashSet<>();
+		for (int i = 0; i < rule.getBodySize(); ++i) {
+			ComplexLiteral l = rule.getBody(i);
+			if (l instanceof UserPredicate) {
+				UserPredicate p = (UserPredicate) l;
+				if (!p.isNegated() && !stratumSymbols.contains(p.getSymbol())) {
+					rules.add(make(rule, stratumSymbols, i));
+				}
+			}
+		}
+		return rules;
+	}
+
+	/**
+	 * Returns a version of the given rule whose body starts with the delta version
+	 * of its head, which can be used to check which of the tuples in the delta can
+	 * still be derived.
+	 */
+	public static SemiNaiveRule makeRederivation(Rule<UserPredicate, ComplexLiteral> rule) {
+		UserPredicate head = rule.getHead();
+		List<ComplexLiteral> body = new ArrayList<>();
+		body.add(UserPredicate.make(new DeltaSymbol(head.getSymbol()), head.getArgs(), false));
+		for (ComplexLiteral l : rule) {
+			body.add(l);
+		}
+		return new SemiNaiveRule(head, body);
+	}
+
 	private static SemiNaiveRule make(Rule<UserPredicate, ComplexLiteral> rule, Set<RelationSymbol> stratumSymbols, int deltaIdx) {
 		List<ComplexLiteral> body = new ArrayList<>();
 		for (int i = 0; i < rule.getBodySize(); ++i) {
@@ -87,7 +123,6 @@ public class SemiNaiveRule extends AbstractRule<UserPredicate, ComplexLiteral> {
 
 		public DeltaSymbol(RelationSymbol baseSymbol) {
 			super(baseSymbol);
-			assert baseSymbol.isIdbSymbol();
 		}
 
 		@Override
@@ -1,12 +1,7 @@
 package edu.harvard.seas.pl.formulog.functions;
 
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
 import java.util.function.BiFunction;
 
 /*-
@@ -46,13 +41,14 @@ import edu.harvard.seas.pl.formulog.ast.StringTerm;
 import edu.harvard.seas.pl.formulog.ast.Term;
 import edu.harvard.seas.pl.formulog.ast.Terms;
 import edu.harvard.seas.pl.formulog.eval.EvaluationException;
+import edu.harvard.seas.pl.formulog.eval.UncheckedEvaluationException;
 import edu.harvard.seas.pl.formulog.smt.SmtLibShim.SmtStatus;
 import edu.harvard.seas.pl.formulog.smt.SmtManager;
+import edu.harvard.seas.pl.formulog.smt.SmtMemo;
 import edu.harvard.seas.pl.formulog.symbols.BuiltInConstructorSymbol;
 import edu.harvard.seas.pl.formulog.symbols.BuiltInFunctionSymbol;
 import edu.harvard.seas.pl.formulog.symbols.FunctionSymbol;
 import edu.harvard.seas.pl.formulog.util.Pair;
-import edu.harvard.seas.pl.formulog.util.Triple;
 
 public final class BuiltInFunctionDefFactory {
 
@@ -1371,55 +1367,17 @@ public final class BuiltInFunctionDefFactory {
 
 	}
 
-	private final Map<Triple<Object, Boolean, Integer>, Future<Pair<SmtStatus, Model>>> smtMemo = new ConcurrentHashMap<>();
+	private final SmtMemo smtMemo = new SmtMemo(Configuration.smtMemoCapacity);
 
 	private Pair<SmtStatus, Model> querySmt(Object assertions, boolean getModel) throws EvaluationException {
 		return querySmt(assertions, getModel, Integer.MAX_VALUE);
 	}
 
-	@SuppressWarnings("unchecked")
 	private Pair<SmtStatus, Model> querySmt(Object assertions, boolean getModel, int timeout)
 			throws EvaluationException {
-		if (timeout < 0) {
-			timeout = -1;
-		}
-		Triple<Object, Boolean, Integer> key = new Triple<>(assertions, getModel, timeout);
-		Future<Pair<SmtStatus, Model>> fut = smtMemo.get(key);
-		if (fut == null) {
-			CompletableFuture<Pair<SmtStatus, Model>> completableFut = new CompletableFuture<>();
-			fut = completableFut;
-			Future<Pair<SmtStatus, Model>> fut2 = smtMemo.putIfAbsent(key, fut);
-			if (fut2 != null) {
-				fut = fut2;
-			} else {
-				Pair<SmtStatus, Map<SolverVariable, Term>> p;
-				if (assertions instanceof SmtLibTerm) {
-					p = smt.check((SmtLibTerm) assertions, getModel, timeout);
-				} else {
-					assert assertions instanceof List<?>;
-					p = smt.check((List<SmtLibTerm>) assertions, getModel, timeout);
-				}
-				Map<SolverVariable, Term> m = p.snd();
-				Model model = m == null ? null : Model.make(m);
-				completableFut.complete(new Pair<>(p.fst(), model));
-			}
-		}
-		try {
-			long start = 0;
-			if (Configuration.timeSmt) {
-				start = System.currentTimeMillis();
-			}
-			Pair<SmtStatus, Model> p = fut.get();
-			if (Configuration.timeSmt) {
-				long end = System.currentTimeMillis();
-				Configuration.recordSmtWaitTime(end - start);
-			}
-			return p;
-		} catch (InterruptedException | ExecutionException e) {
-			throw new EvaluationException(e);
-		}	
+		return smtMemo.query(assertions, getModel, timeout, smt);
 	}
-	
+
 	private final FunctionDef isSat = new FunctionDef() {
 
 		@Override
@@ -1588,7 +1546,12 @@ public final class BuiltInFunctionDefFactory {
 		public Term evaluate(Term[] args) throws EvaluationException {
 			SolverVariable x = (SolverVariable) args[0];
 			Model m = (Model) args[1];
-			Term t = m.getVal().get(x);
+			Term t;
+			try {
+				t = m.getVal().get(x);
+			} catch (UncheckedEvaluationException e) {
+				throw new EvaluationException(e.getMessage(), e);
+			}
 			return t == null ? none : some(t);
 		}
 
@@ -26,6 +26,7 @@ import java.io.Reader;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
@@ -50,6 +51,8 @@ import edu.harvard.seas.pl.formulog.util.Pair;
 
 public class Parser {
 
+	private ParsingContext lastContext;
+
 	private FormulogParser getParser(Reader r, boolean isTsv) throws ParseException {
 		try {
 			CharStream chars = CharStreams.fromReader(r);
@@ -73,6 +76,7 @@ public class Parser {
 			Pair<BasicProgram, Set<RelationSymbol>> p = new TopLevelParser(pc).parse(progCtx);
 			BasicProgram prog = p.fst();
 			loadExternalEdbs(pc, prog, p.snd(), inputDirs);
+			lastContext = pc;
 			return prog;
 		} catch (Exception e) {
 			throw new ParseException(e);
@@ -112,6 +116,27 @@ public class Parser {
 		}
 	}
 
+	/**
+	 * Parses facts for the given relation, in the same tab-separated format as
+	 * external fact files, in the context of the program most recently parsed by
+	 * this parser.
+	 */
+	public Set<Term[]> parseFacts(RelationSymbol sym, Reader r) throws ParseException {
+		if (lastContext == null) {
+			throw new IllegalStateException("Can only parse facts after parsing a program");
+		}
+		FormulogParser parser = getParser(r, true);
+		Set<Term[]> facts = new HashSet<>();
+		try {
+			new FactFileParser(lastContext).loadFacts(parser.tsvFile(), sym.getArity(), facts);
+		} catch (ParseException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new ParseException(e);
+		}
+		return facts;
+	}
+
 	private void readEdbFromFile(ParsingContext pc, RelationSymbol sym, Path inputDir, Set<Term[]> acc) throws ParseException {
 		Path path = inputDir.resolve(sym.toString() + ".csv");
 		try (FileReader fr = new FileReader(path.toFile())) {
@@ -45,12 +45,16 @@ public abstract class AbstractSmtLibSolver implements SmtLibSolver {
 
 	protected SmtLibShim debugShim;
 	protected SmtLibShim shim;
-	protected Process solver;
+	protected volatile Process solver;
 
 	public synchronized void start(Program<?, ?> prog) {
+		start(prog, solverFactory);
+	}
+
+	public synchronized void start(Program<?, ?> prog, ExternalSolverProcessFactory factory) {
 		assert solver == null;
 		try {
-			solver = solverFactory.newProcess();
+			solver = factory.newProcess();
 		} catch (IOException e) {
 			throw new AssertionError("Could not create external solver process:\n" + e);
 		}
@@ -79,9 +83,26 @@ public abstract class AbstractSmtLibSolver implements SmtLibSolver {
 		solver = null;
 	}
 	
+	/**
+	 * Kills the solver process without waiting for the query it is working on (if
+	 * any), which will fail.
+	 */
+	public void kill() {
+		Process p = solver;
+		if (p != null) {
+			p.destroy();
+		}
+	}
+
+	public synchronized boolean isAlive() {
+		return solver != null && solver.isAlive();
+	}
+
 	@Override
 	public void finalize() {
-		destroy();
+		if (solver != null) {
+			destroy();
+		}
 	}
 
 	protected abstract Pair<List<SolverVariable>, List<SolverVariable>> makeAssertions(List<SmtLibTerm> assertions,
@@ -45,13 +45,13 @@ public abstract class AbstractSmtManager implements SmtManager {
 		return check(breakIntoConjuncts(assertion), getModel, timeout);
 	}
 
-	protected List<SmtLibTerm> breakIntoConjuncts(SmtLibTerm assertion) {
+	public static List<SmtLibTerm> breakIntoConjuncts(SmtLibTerm assertion) {
 		List<SmtLibTerm> l = new ArrayList<>();
 		breakIntoConjuncts(assertion, l);
 		return l;
 	}
 
-	private void breakIntoConjuncts(SmtLibTerm assertion, List<SmtLibTerm> acc) {
+	public static void breakIntoConjuncts(SmtLibTerm assertion, List<SmtLibTerm> acc) {
 		if (assertion instanceof Constructor) {
 			Constructor c = (Constructor) assertion;
 			ConstructorSymbol sym = c.getSymbol();
@@ -84,7 +84,7 @@ public abstract class AbstractSmtManager implements SmtManager {
 		acc.add(assertion);
 	}
 
-	private SmtLibTerm negate(Term t) {
+	private static SmtLibTerm negate(Term t) {
 		return (SmtLibTerm) Constructors.make(BuiltInConstructorSymbol.SMT_NOT, Terms.singletonArray(t));
 	}
 
@@ -0,0 +1,178 @@
+package edu.harvard.seas.pl.formulog.smt;
+
+/*-
+ * #%L
+ * FormuLog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.harvard.seas.pl.formulog.ast.Constructors.SolverVariable;
+import edu.harvard.seas.pl.formulog.ast.Program;
+import edu.harvard.seas.pl.formulog.ast.SmtLibTerm;
+import edu.harvard.seas.pl.formulog.ast.Term;
+import edu.harvard.seas.pl.formulog.eval.EvaluationException;
+import edu.harvard.seas.pl.formulog.smt.SmtLibShim.SmtStatus;
+import edu.harvard.seas.pl.formulog.util.Pair;
+
+/**
+ * Wraps another SMT manager with a cache of query results that persists across
+ * runs in an append-only file. Queries are keyed by a hash of their canonical
+ * SMT-LIB serialization, and the file is tied to the declarations generated for
+ * the program (if these change, the old results are ignored and the file is
+ * started afresh).
+ *
+ * Models are not cached, so a satisfiable query that asks for a model always
+ * goes to the solver. An unknown result is only reused for queries with at most
+ * the same timeout.
+ */
+public class CachingSmtManager extends AbstractSmtManager {
+
+	private static final String header = "formulog-smt-cache";
+
+	private final SmtManager delegate;
+	private final Map<String, Pair<SmtStatus, Integer>> cache = new ConcurrentHashMap<>();
+	private final ThreadLocal<SmtLibShim> serializer;
+	private final PrintWriter log;
+
+	public CachingSmtManager(SmtManager delegate, Program<?, ?> prog, String file) {
+		this.delegate = delegate;
+		serializer = ThreadLocal.withInitial(() -> new SmtLibShim(null, new StringWriter(), prog));
+		String fingerprint = hash(SmtLibShim.getDeclarations(prog));
+		try {
+			boolean fresh = !load(new File(file), fingerprint);
+			log = new PrintWriter(new FileWriter(file, !fresh));
+			if (fresh) {
+				log.println(header + " " + fingerprint);
+				log.flush();
+			}
+		} catch (IOException e) {
+			throw new AssertionError("Could not open SMT cache file " + file + ":\n" + e);
+		}
+	}
+
+	private boolean load(File file, String fingerprint) throws IOException {
+		if (!file.exists()) {
+			return false;
+		}
+		try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+			String line = br.readLine();
+			if (line == null || !line.equals(header + " " + fingerprint)) {
+				return false;
+			}
+			while ((line = br.readLine()) != null) {
+				String[] parts = line.split(" ");
+				if (parts.length != 3) {
+					// Possibly a partially written line at the end of the file.
+					continue;
+				}
+				try {
+					SmtStatus status = SmtStatus.valueOf(parts[1]);
+					update(parts[0], status, Integer.parseInt(parts[2]));
+				} catch (IllegalArgumentException e) {
+					continue;
+				}
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public Pair<SmtStatus, Map<SolverVariable, Term>> check(List<SmtLibTerm> conjuncts, boolean getModel, int timeout)
+			throws EvaluationException {
+		if (timeout < 0) {
+			timeout = Integer.MAX_VALUE;
+		}
+		String key = hash(serializer.get().canonicalize(conjuncts));
+		Pair<SmtStatus, Integer> cached = cache.get(key);
+		if (cached != null) {
+			switch (cached.fst()) {
+			case SATISFIABLE:
+				if (!getModel) {
+					return new Pair<>(SmtStatus.SATISFIABLE, null);
+				}
+				break;
+			case UNSATISFIABLE:
+				return new Pair<>(SmtStatus.UNSATISFIABLE, null);
+			case UNKNOWN:
+				if (timeout <= cached.snd()) {
+					return new Pair<>(SmtStatus.UNKNOWN, null);
+				}
+				break;
+			}
+		}
+		Pair<SmtStatus, Map<SolverVariable, Term>> res = delegate.check(conjuncts, getModel, timeout);
+		if (update(key, res.fst(), timeout)) {
+			synchronized (log) {
+				log.println(key + " " + res.fst() + " " + timeout);
+				log.flush();
+			}
+		}
+		return res;
+	}
+
+	/*
+	 * Records a result for the given key, unless the cache already has one that is
+	 * at least as informative. Returns whether the cache changed.
+	 */
+	private boolean update(String key, SmtStatus status, int timeout) {
+		Pair<SmtStatus, Integer> res = new Pair<>(status, timeout);
+		while (true) {
+			Pair<SmtStatus, Integer> old = cache.putIfAbsent(key, res);
+			if (old == null) {
+				return true;
+			}
+			if (!old.fst().equals(SmtStatus.UNKNOWN)
+					|| (status.equals(SmtStatus.UNKNOWN) && timeout <= old.snd())) {
+				return false;
+			}
+			if (cache.replace(key, old, res)) {
+				return true;
+			}
+		}
+	}
+
+	private static String hash(String s) {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new AssertionError(e);
+		}
+		byte[] digest = md.digest(s.getBytes(StandardCharsets.UTF_8));
+		StringBuilder sb = new StringBuilder();
+		for (byte b : digest) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+}
@@ -24,6 +24,8 @@ import java.io.ByteArrayOutputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -44,15 +46,55 @@ import edu.harvard.seas.pl.formulog.symbols.parameterized.ParameterizedConstruct
 import edu.harvard.seas.pl.formulog.types.BuiltInTypes;
 import edu.harvard.seas.pl.formulog.util.Pair;
 
+/**
+ * Caches conjuncts in the solver, each guarded by an indicator variable that is
+ * assumed when the conjunct is part of a query.
+ *
+ * When there are more than smtCacheSize cached conjuncts, the least recently
+ * used ones are evicted: their indicator variables are no longer assumed (either
+ * way), which leaves their assertions vacuous. Once the solver frame holds twice
+ * as many assertions as the cache, it is compacted: it is replaced by a fresh
+ * frame in which only the cached conjuncts are asserted again.
+ */
 public class CheckSatAssumingSolver extends AbstractSmtLibSolver {
 
 	private final Map<SmtLibTerm, SolverVariable> indicatorVars = new ConcurrentHashMap<>();
+	// The cached conjuncts, from least to most recently used.
+	private final Map<SmtLibTerm, SolverVariable> lru = new LinkedHashMap<>(16, 0.75f, true);
+	private int numAsserted;
 	private int nextVarId;
 
-	private void clearCache() {
-		indicatorVars.clear();
+	private void evict() {
+		Iterator<Map.Entry<SmtLibTerm, SolverVariable>> it = lru.entrySet().iterator();
+		while (indicatorVars.size() > Configuration.smtCacheSize) {
+			SmtLibTerm conjunct = it.next().getKey();
+			it.remove();
+			indicatorVars.remove(conjunct);
+		}
+		if (numAsserted > 2 * Configuration.smtCacheSize) {
+			compact();
+		}
+	}
+
+	private void compact() {
 		shim.pop();
 		shim.push();
+		if (debugShim != null) {
+			debugShim.pop();
+			debugShim.push();
+		}
+		for (Map.Entry<SmtLibTerm, SolverVariable> e : lru.entrySet()) {
+			assertImp(e.getValue(), e.getKey());
+		}
+		numAsserted = lru.size();
+	}
+
+	private void assertImp(SolverVariable x, SmtLibTerm conjunct) {
+		SmtLibTerm imp = makeImp(x, conjunct);
+		shim.makeAssertion(imp);
+		if (debugShim != null) {
+			debugShim.makeAssertion(imp);
+		}
 	}
 
 	public Set<SmtLibTerm> getCache() {
@@ -68,15 +110,13 @@ public class CheckSatAssumingSolver extends AbstractSmtLibSolver {
 		}
 		Set<SolverVariable> xs = new HashSet<>();
 		for (SmtLibTerm conjunct : formula) {
-			SolverVariable x = indicatorVars.get(conjunct);
+			SolverVariable x = lru.get(conjunct);
 			if (x == null) {
 				x = makeIndicatorVar(conjunct);
 				indicatorVars.put(conjunct, x);
-				SmtLibTerm imp = makeImp(x, conjunct);
-				shim.makeAssertion(imp);
-				if (debugShim != null) {
-					debugShim.makeAssertion(imp);
-				}
+				lru.put(conjunct, x);
+				assertImp(x, conjunct);
+				numAsserted++;
 			}
 			xs.add(x);
 		}
@@ -113,9 +153,7 @@ public class CheckSatAssumingSolver extends AbstractSmtLibSolver {
 
 	@Override
 	protected void cleanup() {
-		if (indicatorVars.size() > Configuration.smtCacheSize) {
-			clearCache();
-		}
+		evict();
 	}
 
 }
@@ -0,0 +1,51 @@
+package edu.harvard.seas.pl.formulog.smt;
+
+/*-
+ * #%L
+ * FormuLog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.IOException;
+
+import edu.harvard.seas.pl.formulog.util.Util;
+
+/**
+ * Starts an SMT-LIB solver with a given command line. The solver has to read
+ * commands from standard input and understand the same dialect as Z3 (in
+ * particular, check-sat-assuming and the timeout option).
+ */
+public class CommandProcessFactory implements ExternalSolverProcessFactory {
+
+	private final String[] command;
+
+	public CommandProcessFactory(String command) {
+		this.command = command.trim().split("\\s+");
+		Util.assertBinaryOnPath(this.command[0]);
+	}
+
+	@Override
+	public Process newProcess() throws IOException {
+		return Runtime.getRuntime().exec(command);
+	}
+
+	@Override
+	public String toString() {
+		return String.join(" ", command);
+	}
+
+}
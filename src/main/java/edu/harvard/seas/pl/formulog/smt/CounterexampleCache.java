@@ -0,0 +1,489 @@
+package edu.harvard.seas.pl.formulog.smt;
+
+/*-
+ * #%L
+ * FormuLog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.harvard.seas.pl.formulog.Configuration;
+import edu.harvard.seas.pl.formulog.ast.BoolTerm;
+import edu.harvard.seas.pl.formulog.ast.Constructor;
+import edu.harvard.seas.pl.formulog.ast.Constructors;
+import edu.harvard.seas.pl.formulog.ast.Constructors.SolverVariable;
+import edu.harvard.seas.pl.formulog.ast.FP32;
+import edu.harvard.seas.pl.formulog.ast.FP64;
+import edu.harvard.seas.pl.formulog.ast.I32;
+import edu.harvard.seas.pl.formulog.ast.I64;
+import edu.harvard.seas.pl.formulog.ast.Model;
+import edu.harvard.seas.pl.formulog.ast.Primitive;
+import edu.harvard.seas.pl.formulog.ast.SmtLibTerm;
+import edu.harvard.seas.pl.formulog.ast.Term;
+import edu.harvard.seas.pl.formulog.smt.SmtLibShim.SmtStatus;
+import edu.harvard.seas.pl.formulog.symbols.BuiltInConstructorSymbol;
+import edu.harvard.seas.pl.formulog.symbols.BuiltInTypeSymbol;
+import edu.harvard.seas.pl.formulog.symbols.ConstructorSymbol;
+import edu.harvard.seas.pl.formulog.symbols.ConstructorSymbolType;
+import edu.harvard.seas.pl.formulog.symbols.parameterized.ParameterizedConstructorSymbol;
+import edu.harvard.seas.pl.formulog.types.FunctorType;
+import edu.harvard.seas.pl.formulog.types.Types.AlgebraicDataType;
+import edu.harvard.seas.pl.formulog.types.Types.TypeIndex;
+import edu.harvard.seas.pl.formulog.util.Pair;
+
+/**
+ * Tries to answer SMT queries without a solver, using the results of earlier
+ * queries: a query is satisfiable if one of the recently seen models satisfies
+ * all of its conjuncts, and it is unsatisfiable if its conjuncts include all
+ * the conjuncts of a query that was unsatisfiable.
+ *
+ * Models are checked by evaluating the conjuncts in Java. Only the connectives,
+ * equality, and the bit vector operations on 32- and 64-bit vectors are
+ * evaluated; any conjunct that uses something else (or a variable the model
+ * does not assign) is treated as not satisfied. In particular, bit vectors of
+ * any other width are never evaluated, since their values would wrap around
+ * differently.
+ */
+public class CounterexampleCache {
+
+	private final int modelCapacity;
+	private final int unsatCapacity;
+	private final Deque<Model> models = new ArrayDeque<>();
+	// Each unsatisfiable set of conjuncts is filed under one of its conjuncts.
+	private final Map<SmtLibTerm, List<Set<SmtLibTerm>>> unsat = new HashMap<>();
+	private final Deque<Set<SmtLibTerm>> unsatOrder = new ArrayDeque<>();
+
+	private static final AtomicLong satHits = new AtomicLong();
+	private static final AtomicLong unsatHits = new AtomicLong();
+
+	public CounterexampleCache(int modelCapacity, int unsatCapacity) {
+		this.modelCapacity = modelCapacity;
+		this.unsatCapacity = unsatCapacity;
+	}
+
+	/**
+	 * Returns an answer for the given conjuncts, or null if there is not one in
+	 * the cache.
+	 */
+	public Pair<SmtStatus, Model> lookup(Collection<SmtLibTerm> conjuncts) {
+		if (isKnownUnsat(conjuncts)) {
+			if (Configuration.timeSmt) {
+				unsatHits.incrementAndGet();
+			}
+			return new Pair<>(SmtStatus.UNSATISFIABLE, null);
+		}
+		for (Model m : getModels()) {
+			if (satisfies(m.getVal(), conjuncts)) {
+				if (Configuration.timeSmt) {
+					satHits.incrementAndGet();
+				}
+				return new Pair<>(SmtStatus.SATISFIABLE, m);
+			}
+		}
+		return null;
+	}
+
+	public void record(Collection<SmtLibTerm> conjuncts, Pair<SmtStatus, Model> res) {
+		switch (res.fst()) {
+		case SATISFIABLE:
+			if (res.snd() != null && modelCapacity > 0) {
+				synchronized (models) {
+					models.addFirst(res.snd());
+					if (models.size() > modelCapacity) {
+						models.removeLast();
+					}
+				}
+			}
+			break;
+		case UNSATISFIABLE:
+			if (!conjuncts.isEmpty() && unsatCapacity > 0) {
+				recordUnsat(new HashSet<>(conjuncts));
+			}
+			break;
+		case UNKNOWN:
+			break;
+		}
+	}
+
+	private List<Model> getModels() {
+		synchronized (models) {
+			return new ArrayList<>(models);
+		}
+	}
+
+	private synchronized boolean isKnownUnsat(Collection<SmtLibTerm> conjuncts) {
+		Set<SmtLibTerm> set = null;
+		for (SmtLibTerm conjunct : conjuncts) {
+			List<Set<SmtLibTerm>> l = unsat.get(conjunct);
+			if (l == null) {
+				continue;
+			}
+			if (set == null) {
+				set = conjuncts instanceof Set ? (Set<SmtLibTerm>) conjuncts : new HashSet<>(conjuncts);
+			}
+			for (Set<SmtLibTerm> other : l) {
+				if (set.containsAll(other)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private synchronized void recordUnsat(Set<SmtLibTerm> conjuncts) {
+		unsat.computeIfAbsent(conjuncts.iterator().next(), k -> new ArrayList<>()).add(conjuncts);
+		unsatOrder.addLast(conjuncts);
+		if (unsatOrder.size() > unsatCapacity) {
+			Set<SmtLibTerm> old = unsatOrder.removeFirst();
+			SmtLibTerm key = old.iterator().next();
+			List<Set<SmtLibTerm>> l = unsat.get(key);
+			l.remove(old);
+			if (l.isEmpty()) {
+				unsat.remove(key);
+			}
+		}
+	}
+
+	private static boolean satisfies(Map<SolverVariable, Term> m, Collection<SmtLibTerm> conjuncts) {
+		Evaluator ev = new Evaluator(m);
+		for (SmtLibTerm conjunct : conjuncts) {
+			if (!BoolTerm.mkTrue().equals(ev.eval(conjunct))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Evaluates a formula under a model. Returns null when the value of a term
+	 * cannot be determined.
+	 */
+	private static class Evaluator {
+
+		private final Map<SolverVariable, Term> m;
+		private final Map<Term, Term> memo = new IdentityHashMap<>();
+
+		public Evaluator(Map<SolverVariable, Term> m) {
+			this.m = m;
+		}
+
+		public Term eval(Term t) {
+			if (t instanceof SolverVariable) {
+				return isSupported((SolverVariable) t) ? m.get(t) : null;
+			}
+			if (t instanceof Primitive) {
+				return t;
+			}
+			if (!(t instanceof Constructor)) {
+				return null;
+			}
+			if (memo.containsKey(t)) {
+				return memo.get(t);
+			}
+			Term v = eval1((Constructor) t);
+			memo.put(t, v);
+			return v;
+		}
+
+		private Boolean evalBool(Term t) {
+			Term v = eval(t);
+			return v instanceof BoolTerm ? ((BoolTerm) v).getVal() : null;
+		}
+
+		private Term eval1(Constructor c) {
+			ConstructorSymbol sym = c.getSymbol();
+			Term[] args = c.getArgs();
+			if (sym instanceof BuiltInConstructorSymbol) {
+				switch ((BuiltInConstructorSymbol) sym) {
+				case SMT_NOT: {
+					Boolean b = evalBool(args[0]);
+					return b == null ? null : BoolTerm.mk(!b);
+				}
+				case SMT_AND: {
+					Boolean b1 = evalBool(args[0]);
+					if (Boolean.FALSE.equals(b1)) {
+						return BoolTerm.mkFalse();
+					}
+					Boolean b2 = evalBool(args[1]);
+					if (Boolean.FALSE.equals(b2)) {
+						return BoolTerm.mkFalse();
+					}
+					return b1 == null || b2 == null ? null : BoolTerm.mkTrue();
+				}
+				case SMT_OR: {
+					Boolean b1 = evalBool(args[0]);
+					if (Boolean.TRUE.equals(b1)) {
+						return BoolTerm.mkTrue();
+					}
+					Boolean b2 = evalBool(args[1]);
+					if (Boolean.TRUE.equals(b2)) {
+						return BoolTerm.mkTrue();
+					}
+					return b1 == null || b2 == null ? null : BoolTerm.mkFalse();
+				}
+				case SMT_IMP: {
+					Boolean b1 = evalBool(args[0]);
+					if (Boolean.FALSE.equals(b1)) {
+						return BoolTerm.mkTrue();
+					}
+					Boolean b2 = evalBool(args[1]);
+					if (Boolean.TRUE.equals(b2)) {
+						return BoolTerm.mkTrue();
+					}
+					return b1 == null || b2 == null ? null : BoolTerm.mkFalse();
+				}
+				case SMT_ITE: {
+					Boolean b = evalBool(args[0]);
+					if (b == null) {
+						return null;
+					}
+					return eval(b ? args[1] : args[2]);
+				}
+				case BV_NEG:
+				case BV_ADD:
+				case BV_SUB:
+				case BV_MUL:
+				case BV_SDIV:
+				case BV_SREM:
+				case BV_UDIV:
+				case BV_UREM:
+				case BV_AND:
+				case BV_OR:
+				case BV_XOR:
+					return evalBvOp((BuiltInConstructorSymbol) sym, args);
+				default:
+					break;
+				}
+			}
+			if (sym instanceof ParameterizedConstructorSymbol) {
+				return evalParameterized((ParameterizedConstructorSymbol) sym, args);
+			}
+			if (sym.getConstructorSymbolType().equals(ConstructorSymbolType.VANILLA_CONSTRUCTOR)) {
+				Term[] vals = new Term[args.length];
+				for (int i = 0; i < args.length; ++i) {
+					if ((vals[i] = eval(args[i])) == null) {
+						return null;
+					}
+				}
+				return Constructors.make(sym, vals);
+			}
+			return null;
+		}
+
+		private Term evalBvOp(BuiltInConstructorSymbol sym, Term[] args) {
+			Term x = eval(args[0]);
+			Term y = args.length > 1 ? eval(args[1]) : x;
+			if (x instanceof I32 && y instanceof I32) {
+				int a = ((I32) x).getVal();
+				int b = ((I32) y).getVal();
+				switch (sym) {
+				case BV_NEG:
+					return I32.make(-a);
+				case BV_ADD:
+					return I32.make(a + b);
+				case BV_SUB:
+					return I32.make(a - b);
+				case BV_MUL:
+					return I32.make(a * b);
+				case BV_SDIV:
+					return b == 0 ? null : I32.make(a / b);
+				case BV_SREM:
+					return b == 0 ? null : I32.make(a % b);
+				case BV_UDIV:
+					return b == 0 ? null : I32.make(Integer.divideUnsigned(a, b));
+				case BV_UREM:
+					return b == 0 ? null : I32.make(Integer.remainderUnsigned(a, b));
+				case BV_AND:
+					return I32.make(a & b);
+				case BV_OR:
+					return I32.make(a | b);
+				case BV_XOR:
+					return I32.make(a ^ b);
+				default:
+					return null;
+				}
+			}
+			if (x instanceof I64 && y instanceof I64) {
+				long a = ((I64) x).getVal();
+				long b = ((I64) y).getVal();
+				switch (sym) {
+				case BV_NEG:
+					return I64.make(-a);
+				case BV_ADD:
+					return I64.make(a + b);
+				case BV_SUB:
+					return I64.make(a - b);
+				case BV_MUL:
+					return I64.make(a * b);
+				case BV_SDIV:
+					return b == 0 ? null : I64.make(a / b);
+				case BV_SREM:
+					return b == 0 ? null : I64.make(a % b);
+				case BV_UDIV:
+					return b == 0 ? null : I64.make(Long.divideUnsigned(a, b));
+				case BV_UREM:
+					return b == 0 ? null : I64.make(Long.remainderUnsigned(a, b));
+				case BV_AND:
+					return I64.make(a & b);
+				case BV_OR:
+					return I64.make(a | b);
+				case BV_XOR:
+					return I64.make(a ^ b);
+				default:
+					return null;
+				}
+			}
+			return null;
+		}
+
+		private Term evalParameterized(ParameterizedConstructorSymbol sym, Term[] args) {
+			switch (sym.getBase()) {
+			case SMT_EQ: {
+				Term x = eval(args[0]);
+				Term y = eval(args[1]);
+				// Values are hash-consed.
+				return x == null || y == null ? null : BoolTerm.mk(x.equals(y));
+			}
+			case BV_SLT:
+			case BV_SLE:
+			case BV_SGT:
+			case BV_SGE:
+			case BV_ULT:
+			case BV_ULE:
+			case BV_UGT:
+			case BV_UGE:
+				return evalBvCmp(sym, args);
+			case BV_CONST: {
+				int val = ((I32) args[0]).getVal();
+				switch (nat(sym, 0)) {
+				case 32:
+					return I32.make(val);
+				case 64:
+					return I64.make(val & 0xffffffffL);
+				default:
+					// Unsupported width.
+					return null;
+				}
+			}
+			case BV_BIG_CONST: {
+				long val = ((I64) args[0]).getVal();
+				switch (nat(sym, 0)) {
+				case 32:
+					return I32.make((int) val);
+				case 64:
+					return I64.make(val);
+				default:
+					// Unsupported width.
+					return null;
+				}
+			}
+			case FP_CONST:
+			case FP_BIG_CONST: {
+				int e = nat(sym, 0);
+				int s = nat(sym, 1);
+				Term arg = args[0];
+				if ((arg instanceof FP32 && e == 8 && s == 24) || (arg instanceof FP64 && e == 11 && s == 53)) {
+					return arg;
+				}
+				return null;
+			}
+			default:
+				return null;
+			}
+		}
+
+		private Term evalBvCmp(ParameterizedConstructorSymbol sym, Term[] args) {
+			Term x = eval(args[0]);
+			Term y = eval(args[1]);
+			int signed;
+			int unsigned;
+			if (x instanceof I32 && y instanceof I32) {
+				int a = ((I32) x).getVal();
+				int b = ((I32) y).getVal();
+				signed = Integer.compare(a, b);
+				unsigned = Integer.compareUnsigned(a, b);
+			} else if (x instanceof I64 && y instanceof I64) {
+				long a = ((I64) x).getVal();
+				long b = ((I64) y).getVal();
+				signed = Long.compare(a, b);
+				unsigned = Long.compareUnsigned(a, b);
+			} else {
+				return null;
+			}
+			switch (sym.getBase()) {
+			case BV_SLT:
+				return BoolTerm.mk(signed < 0);
+			case BV_SLE:
+				return BoolTerm.mk(signed <= 0);
+			case BV_SGT:
+				return BoolTerm.mk(signed > 0);
+			case BV_SGE:
+				return BoolTerm.mk(signed >= 0);
+			case BV_ULT:
+				return BoolTerm.mk(unsigned < 0);
+			case BV_ULE:
+				return BoolTerm.mk(unsigned <= 0);
+			case BV_UGT:
+				return BoolTerm.mk(unsigned > 0);
+			case BV_UGE:
+				return BoolTerm.mk(unsigned >= 0);
+			default:
+				throw new AssertionError("impossible");
+			}
+		}
+
+		/*
+		 * A variable of a bit vector type is only looked up in the model if its
+		 * width is 32 or 64, as otherwise its value (if any) does not tell us how
+		 * the operations on it wrap around.
+		 */
+		private static boolean isSupported(SolverVariable x) {
+			FunctorType ft = (FunctorType) x.getSymbol().getCompileTimeType();
+			AlgebraicDataType type = (AlgebraicDataType) ((AlgebraicDataType) ft.getRetType()).getTypeArgs().get(0);
+			if (!BuiltInTypeSymbol.BV.equals(type.getSymbol())) {
+				return true;
+			}
+			int w = ((TypeIndex) type.getTypeArgs().get(0)).getIndex();
+			return w == 32 || w == 64;
+		}
+
+		private static int nat(ParameterizedConstructorSymbol sym, int idx) {
+			return ((TypeIndex) sym.getArgs().get(idx).getType()).getIndex();
+		}
+
+	}
+
+	public static long getSatHits() {
+		return satHits.get();
+	}
+
+	public static long getUnsatHits() {
+		return unsatHits.get();
+	}
+
+}
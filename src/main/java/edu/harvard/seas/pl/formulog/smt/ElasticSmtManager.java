@@ -0,0 +1,181 @@
+package edu.harvard.seas.pl.formulog.smt;
+
+/*-
+ * #%L
+ * FormuLog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.harvard.seas.pl.formulog.Configuration;
+import edu.harvard.seas.pl.formulog.ast.Constructors.SolverVariable;
+import edu.harvard.seas.pl.formulog.ast.Program;
+import edu.harvard.seas.pl.formulog.ast.SmtLibTerm;
+import edu.harvard.seas.pl.formulog.ast.Term;
+import edu.harvard.seas.pl.formulog.eval.EvaluationException;
+import edu.harvard.seas.pl.formulog.smt.SmtLibShim.SmtStatus;
+import edu.harvard.seas.pl.formulog.util.Pair;
+
+/**
+ * A pool of solvers that grows (up to a maximum size) when queries have to wait
+ * too long for a solver, and shrinks (down to a minimum size) when solvers sit
+ * idle. A solver is replaced after it has answered a given number of queries,
+ * after it takes too long on a query, and when its process dies (in which case
+ * the query is tried again on a fresh solver).
+ */
+public class ElasticSmtManager extends AbstractSmtManager {
+
+	private static final int recycleAfter = Configuration.smtRecycleAfter;
+	private static final long recycleLatency = Configuration.smtRecycleLatency;
+	private static final long growWait = Configuration.smtPoolGrowWait;
+	private static final long idleTimeout = Configuration.smtPoolIdleTimeout;
+
+	private final Program<?, ?> prog;
+	private final int minSize;
+	private final int maxSize;
+	private final AtomicInteger size = new AtomicInteger();
+	// Most recently used solvers are at the front.
+	private final BlockingDeque<PooledSolver> idle = new LinkedBlockingDeque<>();
+
+	private static class PooledSolver {
+
+		final CheckSatAssumingSolver solver = new CheckSatAssumingSolver();
+		int queries;
+		long lastUsed = System.currentTimeMillis();
+
+	}
+
+	public ElasticSmtManager(Program<?, ?> prog, int minSize, int maxSize) {
+		this.prog = prog;
+		this.minSize = minSize;
+		this.maxSize = Math.max(1, Math.max(minSize, maxSize));
+		for (int i = 0; i < minSize; ++i) {
+			idle.add(tryGrow(minSize));
+		}
+	}
+
+	@Override
+	public Pair<SmtStatus, Map<SolverVariable, Term>> check(List<SmtLibTerm> conjuncts, boolean getModel, int timeout)
+			throws EvaluationException {
+		return check(conjuncts, getModel, timeout, true);
+	}
+
+	private Pair<SmtStatus, Map<SolverVariable, Term>> check(List<SmtLibTerm> conjuncts, boolean getModel,
+			int timeout, boolean retry) throws EvaluationException {
+		PooledSolver s = acquire();
+		long start = System.currentTimeMillis();
+		Pair<SmtStatus, Map<SolverVariable, Term>> res;
+		try {
+			res = s.solver.check(conjuncts, getModel, timeout);
+		} catch (EvaluationException | RuntimeException e) {
+			// Whether or not the process died, the solver might be out of sync.
+			boolean crashed = !s.solver.isAlive();
+			retire(s);
+			if (crashed && retry) {
+				return check(conjuncts, getModel, timeout, false);
+			}
+			throw e;
+		}
+		s.queries++;
+		long time = System.currentTimeMillis() - start;
+		if ((recycleAfter > 0 && s.queries >= recycleAfter) || (recycleLatency > 0 && time >= recycleLatency)) {
+			retire(s);
+		} else {
+			release(s);
+		}
+		return res;
+	}
+
+	private PooledSolver acquire() throws EvaluationException {
+		PooledSolver s = idle.pollFirst();
+		if (s != null) {
+			return s;
+		}
+		long start = 0;
+		if (Configuration.timeSmt) {
+			start = System.currentTimeMillis();
+		}
+		try {
+			s = tryGrow(minSize);
+			// Keep trying to grow while waiting: a retired solver frees up room in
+			// the pool without ever coming back to the idle queue.
+			while (s == null) {
+				s = idle.pollFirst(Math.max(growWait, 1), TimeUnit.MILLISECONDS);
+				if (s == null) {
+					s = tryGrow(maxSize);
+				}
+			}
+		} catch (InterruptedException e) {
+			throw new EvaluationException(e);
+		}
+		if (Configuration.timeSmt) {
+			Configuration.recordSmtWaitTime(System.currentTimeMillis() - start);
+		}
+		return s;
+	}
+
+	/*
+	 * Starts a new solver if there are fewer than bound of them; otherwise,
+	 * returns null.
+	 */
+	private PooledSolver tryGrow(int bound) {
+		int n;
+		while ((n = size.get()) < bound) {
+			if (size.compareAndSet(n, n + 1)) {
+				PooledSolver s = new PooledSolver();
+				try {
+					s.solver.start(prog);
+				} catch (Throwable e) {
+					size.decrementAndGet();
+					throw e;
+				}
+				return s;
+			}
+		}
+		return null;
+	}
+
+	private void release(PooledSolver s) {
+		long now = System.currentTimeMillis();
+		s.lastUsed = now;
+		idle.addFirst(s);
+		PooledSolver oldest = idle.peekLast();
+		if (oldest == null || now - oldest.lastUsed < idleTimeout || !idle.removeLastOccurrence(oldest)) {
+			return;
+		}
+		int n;
+		while ((n = size.get()) > minSize) {
+			if (size.compareAndSet(n, n - 1)) {
+				oldest.solver.destroy();
+				return;
+			}
+		}
+		idle.addLast(oldest);
+	}
+
+	private void retire(PooledSolver s) {
+		size.decrementAndGet();
+		s.solver.destroy();
+	}
+
+}
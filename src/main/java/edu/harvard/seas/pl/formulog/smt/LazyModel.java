@@ -0,0 +1,107 @@
+package edu.harvard.seas.pl.formulog.smt;
+
+/*-
+ * #%L
+ * FormuLog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.harvard.seas.pl.formulog.ast.Constructors.SolverVariable;
+import edu.harvard.seas.pl.formulog.ast.Term;
+import edu.harvard.seas.pl.formulog.eval.UncheckedEvaluationException;
+import edu.harvard.seas.pl.formulog.smt.SmtLibParser.SmtLibParseException;
+
+/**
+ * A model whose values are kept as the text the solver printed for them, and
+ * only parsed when they are looked up. Most models are only queried for a few
+ * variables (if at all), while some values (e.g., arrays) are expensive to
+ * parse.
+ *
+ * Iterating over the entries of the model parses all of its values. A value
+ * that cannot be parsed raises an {@link UncheckedEvaluationException}.
+ */
+public class LazyModel extends AbstractMap<SolverVariable, Term> {
+
+	private final SmtLibParser parser;
+	private final Map<SolverVariable, String> defs;
+	private final Map<SolverVariable, Term> values = new ConcurrentHashMap<>();
+	private volatile Map<SolverVariable, Term> all;
+
+	LazyModel(SmtLibParser parser, Map<SolverVariable, String> defs) {
+		this.parser = parser;
+		this.defs = defs;
+	}
+
+	/**
+	 * Returns a key that is equal for two lazy models exactly when they have the
+	 * same unparsed definitions (in which case they have the same values).
+	 */
+	public Object getKey() {
+		return defs;
+	}
+
+	@Override
+	public Term get(Object key) {
+		String def = defs.get(key);
+		if (def == null) {
+			return null;
+		}
+		SolverVariable x = (SolverVariable) key;
+		Term t = values.get(x);
+		if (t == null) {
+			try {
+				t = parser.parseValue(x, def);
+			} catch (IOException | SmtLibParseException e) {
+				throw new UncheckedEvaluationException("Problem parsing Z3 output: " + e.getMessage(), e);
+			}
+			values.put(x, t);
+		}
+		return t;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return defs.containsKey(key);
+	}
+
+	@Override
+	public int size() {
+		return defs.size();
+	}
+
+	@Override
+	public Set<Map.Entry<SolverVariable, Term>> entrySet() {
+		if (all == null) {
+			Map<SolverVariable, Term> m = new LinkedHashMap<>();
+			for (SolverVariable x : defs.keySet()) {
+				m.put(x, get(x));
+			}
+			all = Collections.unmodifiableMap(m);
+		}
+		return all.entrySet();
+	}
+
+}
@@ -0,0 +1,97 @@
+package edu.harvard.seas.pl.formulog.smt;
+
+/*-
+ * #%L
+ * FormuLog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import edu.harvard.seas.pl.formulog.ast.Constructors.SolverVariable;
+import edu.harvard.seas.pl.formulog.ast.SmtLibTerm;
+import edu.harvard.seas.pl.formulog.ast.Term;
+import edu.harvard.seas.pl.formulog.eval.EvaluationException;
+import edu.harvard.seas.pl.formulog.smt.SmtLibShim.SmtStatus;
+import edu.harvard.seas.pl.formulog.util.Pair;
+
+/**
+ * Tells the fork-join pool that evaluation runs on when a worker is about to
+ * wait on the solver for another SMT manager, so that the pool can bring in
+ * another worker in the meantime. Evaluation keeps going while queries are in
+ * flight, and there can be more solvers busy than evaluation threads (as many
+ * as the other manager provides).
+ */
+public class ManagedBlockingSmtManager extends AbstractSmtManager {
+
+	private final SmtManager delegate;
+
+	public ManagedBlockingSmtManager(SmtManager delegate) {
+		this.delegate = delegate;
+	}
+
+	@Override
+	public Pair<SmtStatus, Map<SolverVariable, Term>> check(List<SmtLibTerm> conjuncts, boolean getModel, int timeout)
+			throws EvaluationException {
+		Query q = new Query(conjuncts, getModel, timeout);
+		try {
+			ForkJoinPool.managedBlock(q);
+		} catch (InterruptedException e) {
+			throw new EvaluationException(e);
+		}
+		if (q.exn != null) {
+			throw q.exn;
+		}
+		return q.res;
+	}
+
+	private class Query implements ForkJoinPool.ManagedBlocker {
+
+		private final List<SmtLibTerm> conjuncts;
+		private final boolean getModel;
+		private final int timeout;
+		private Pair<SmtStatus, Map<SolverVariable, Term>> res;
+		private EvaluationException exn;
+		private boolean done;
+
+		public Query(List<SmtLibTerm> conjuncts, boolean getModel, int timeout) {
+			this.conjuncts = conjuncts;
+			this.getModel = getModel;
+			this.timeout = timeout;
+		}
+
+		@Override
+		public boolean block() {
+			try {
+				res = delegate.check(conjuncts, getModel, timeout);
+			} catch (EvaluationException e) {
+				exn = e;
+			}
+			done = true;
+			return true;
+		}
+
+		@Override
+		public boolean isReleasable() {
+			return done;
+		}
+
+	}
+
+}
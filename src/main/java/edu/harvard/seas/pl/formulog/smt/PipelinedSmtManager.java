@@ -0,0 +1,68 @@
+package edu.harvard.seas.pl.formulog.smt;
+
+/*-
+ * #%L
+ * FormuLog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.harvard.seas.pl.formulog.ast.Constructors.SolverVariable;
+import edu.harvard.seas.pl.formulog.ast.Program;
+import edu.harvard.seas.pl.formulog.ast.SmtLibTerm;
+import edu.harvard.seas.pl.formulog.ast.Term;
+import edu.harvard.seas.pl.formulog.eval.EvaluationException;
+import edu.harvard.seas.pl.formulog.smt.SmtLibShim.SmtStatus;
+import edu.harvard.seas.pl.formulog.util.Pair;
+
+public class PipelinedSmtManager extends AbstractSmtManager {
+
+	private final Program<?, ?> prog;
+	private final PipelinedSolver[] solvers;
+	private final AtomicInteger next = new AtomicInteger();
+
+	public PipelinedSmtManager(Program<?, ?> prog, int size) {
+		this.prog = prog;
+		solvers = new PipelinedSolver[size];
+	}
+
+	// Solvers are only started once they are needed, and are replaced once they
+	// have failed.
+	private synchronized PipelinedSolver getSolver(int i) {
+		PipelinedSolver solver = solvers[i];
+		if (solver == null || solver.hasFailed()) {
+			if (solver != null) {
+				solver.destroy();
+			}
+			solver = new PipelinedSolver();
+			solver.start(prog);
+			solvers[i] = solver;
+		}
+		return solver;
+	}
+
+	@Override
+	public Pair<SmtStatus, Map<SolverVariable, Term>> check(List<SmtLibTerm> conjuncts, boolean getModel, int timeout)
+			throws EvaluationException {
+		int i = Math.floorMod(next.getAndIncrement(), solvers.length);
+		return getSolver(i).check(conjuncts, getModel, timeout);
+	}
+
+}
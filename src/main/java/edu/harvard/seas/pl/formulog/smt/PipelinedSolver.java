@@ -0,0 +1,207 @@
+package edu.harvard.seas.pl.formulog.smt;
+
+/*-
+ * #%L
+ * FormuLog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+
+import edu.harvard.seas.pl.formulog.Configuration;
+import edu.harvard.seas.pl.formulog.ast.Constructors.SolverVariable;
+import edu.harvard.seas.pl.formulog.ast.SmtLibTerm;
+import edu.harvard.seas.pl.formulog.ast.Term;
+import edu.harvard.seas.pl.formulog.eval.EvaluationException;
+import edu.harvard.seas.pl.formulog.smt.SmtLibShim.SmtStatus;
+import edu.harvard.seas.pl.formulog.util.Pair;
+
+/**
+ * A solver that can be used by several threads at once. Queries that do not ask
+ * for a model are written to the solver back-to-back (each in its own push/pop
+ * frame) without waiting for the results of earlier ones; since the solver
+ * answers in order, the results are matched up with the queries on the way
+ * back. A query that asks for a model waits until the pipeline has drained.
+ *
+ * If a result cannot be read, the results still to come can no longer be
+ * matched up with their queries: every pending query fails, the solver process
+ * is killed, and the solver rejects any further queries (so it has to be
+ * replaced).
+ */
+public class PipelinedSolver extends AbstractSmtLibSolver {
+
+	private final static Pair<List<SolverVariable>, List<SolverVariable>> emptyListPair = new Pair<>(
+			Collections.emptyList(), Collections.emptyList());
+
+	// Queries that have been sent but whose results have not been read yet.
+	private final Queue<CompletableFuture<SmtStatus>> pending = new ConcurrentLinkedQueue<>();
+	private final Object readLock = new Object();
+	private CompletableFuture<SmtStatus> last;
+	private volatile EvaluationException failure;
+
+	@Override
+	protected Pair<List<SolverVariable>, List<SolverVariable>> makeAssertions(List<SmtLibTerm> assertions, int id) {
+		shim.push();
+		ByteArrayOutputStream baos = null;
+		if (debugShim != null) {
+			baos = new ByteArrayOutputStream();
+			debugShim.redirectOutput(new PrintWriter(baos));
+			debugShim.push();
+		}
+		for (SmtLibTerm assertion : assertions) {
+			shim.makeAssertion(assertion);
+			if (debugShim != null) {
+				debugShim.makeAssertion(assertion);
+			}
+		}
+		if (debugShim != null) {
+			String msg = "\nBEGIN SMT JOB #" + id + " (SMT solver #" + hashCode() + "):\n";
+			msg += baos.toString();
+			msg += "END SMT JOB #" + id;
+			System.err.println(msg);
+		}
+		return emptyListPair;
+	}
+
+	@Override
+	protected void cleanup() {
+		shim.pop();
+		if (debugShim != null) {
+			debugShim.pop();
+		}
+	}
+
+	@Override
+	public Pair<SmtStatus, Map<SolverVariable, Term>> check(List<SmtLibTerm> assertions, boolean getModel,
+			int timeout) throws EvaluationException {
+		if (getModel) {
+			synchronized (this) {
+				checkUsable();
+				if (last != null) {
+					await(last);
+				}
+				try {
+					return super.check(assertions, getModel, timeout);
+				} catch (EvaluationException e) {
+					fail(e);
+					throw e;
+				} catch (RuntimeException e) {
+					fail(new EvaluationException(e));
+					throw e;
+				}
+			}
+		}
+		CompletableFuture<SmtStatus> fut = new CompletableFuture<>();
+		synchronized (this) {
+			checkUsable();
+			makeAssertions(assertions, 0);
+			shim.printCheckSatAssuming(Collections.emptyList(), Collections.emptyList(), timeout);
+			pending.add(fut);
+			cleanup();
+			last = fut;
+		}
+		long start = 0;
+		if (Configuration.timeSmt) {
+			start = System.currentTimeMillis();
+		}
+		SmtStatus status = await(fut);
+		if (Configuration.timeSmt) {
+			Configuration.recordSmtEvalTime(System.currentTimeMillis() - start);
+		}
+		return new Pair<>(status, null);
+	}
+
+	/*
+	 * Reads results (one at a time, so that other waiting threads get a chance to
+	 * notice that theirs has arrived) until the given one is in.
+	 */
+	private SmtStatus await(CompletableFuture<SmtStatus> fut) throws EvaluationException {
+		while (!fut.isDone()) {
+			synchronized (readLock) {
+				if (fut.isDone()) {
+					break;
+				}
+				CompletableFuture<SmtStatus> next = pending.poll();
+				if (next == null) {
+					EvaluationException e = new EvaluationException(
+							"Problem with evaluating Z3! Lost track of the queries in the pipeline");
+					fut.completeExceptionally(e);
+					fail(e);
+					break;
+				}
+				try {
+					next.complete(shim.readStatus());
+				} catch (EvaluationException e) {
+					next.completeExceptionally(e);
+					fail(e);
+				} catch (RuntimeException e) {
+					EvaluationException e2 = new EvaluationException(e);
+					next.completeExceptionally(e2);
+					fail(e2);
+				}
+			}
+		}
+		try {
+			return fut.get();
+		} catch (ExecutionException e) {
+			throw (EvaluationException) e.getCause();
+		} catch (InterruptedException e) {
+			throw new EvaluationException(e);
+		}
+	}
+
+	/*
+	 * Fails every query in the pipeline, and kills the solver process (so that
+	 * any query that slips into the pipeline afterwards fails, too).
+	 */
+	private void fail(EvaluationException e) {
+		if (failure == null) {
+			failure = e;
+		}
+		CompletableFuture<SmtStatus> fut;
+		while ((fut = pending.poll()) != null) {
+			fut.completeExceptionally(new EvaluationException(
+					"Problem with evaluating Z3! An earlier query in the pipeline failed: " + e.getMessage(), e));
+		}
+		kill();
+	}
+
+	private void checkUsable() throws EvaluationException {
+		EvaluationException e = failure;
+		if (e != null) {
+			throw new EvaluationException("Problem with evaluating Z3! The solver failed on an earlier query: "
+					+ e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Returns whether reading a result failed, in which case the solver does not
+	 * accept any more queries.
+	 */
+	public boolean hasFailed() {
+		return failure != null;
+	}
+
+}
@@ -0,0 +1,197 @@
+package edu.harvard.seas.pl.formulog.smt;
+
+/*-
+ * #%L
+ * FormuLog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import edu.harvard.seas.pl.formulog.Configuration;
+import edu.harvard.seas.pl.formulog.ast.Constructors.SolverVariable;
+import edu.harvard.seas.pl.formulog.ast.Program;
+import edu.harvard.seas.pl.formulog.ast.SmtLibTerm;
+import edu.harvard.seas.pl.formulog.ast.Term;
+import edu.harvard.seas.pl.formulog.eval.EvaluationException;
+import edu.harvard.seas.pl.formulog.smt.SmtLibShim.SmtStatus;
+import edu.harvard.seas.pl.formulog.util.Pair;
+
+/**
+ * Races differently configured solvers against each other. Each query is sent
+ * to one solver per configuration (set with the system property smtPortfolio,
+ * as a semicolon-separated list of command lines); the first definitive answer
+ * is used. The other solvers get a grace period (smtPortfolioGrace, in
+ * milliseconds) to finish the query, so that they can be reused; the ones that
+ * are still working on it after that are killed (and restarted the next time
+ * they are needed).
+ */
+public class PortfolioSmtManager extends AbstractSmtManager {
+
+	private static final List<String> configs = Configuration.smtPortfolio;
+	private static final AtomicLongArray wins = new AtomicLongArray(configs.size());
+	private static final long grace = Configuration.smtPortfolioGrace;
+
+	private final Program<?, ?> prog;
+	private final ExternalSolverProcessFactory[] factories;
+	private final ArrayBlockingQueue<CheckSatAssumingSolver[]> teams;
+	private final ExecutorService exec = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r);
+		t.setDaemon(true);
+		return t;
+	});
+
+	public PortfolioSmtManager(Program<?, ?> prog, int size) {
+		this.prog = prog;
+		factories = new ExternalSolverProcessFactory[configs.size()];
+		for (int i = 0; i < factories.length; ++i) {
+			factories[i] = new CommandProcessFactory(configs.get(i));
+		}
+		teams = new ArrayBlockingQueue<>(size);
+		for (int i = 0; i < size; ++i) {
+			teams.add(new CheckSatAssumingSolver[factories.length]);
+		}
+	}
+
+	@Override
+	public Pair<SmtStatus, Map<SolverVariable, Term>> check(List<SmtLibTerm> conjuncts, boolean getModel, int timeout)
+			throws EvaluationException {
+		CheckSatAssumingSolver[] team;
+		try {
+			team = teams.take();
+		} catch (InterruptedException e) {
+			throw new EvaluationException(e);
+		}
+		try {
+			return race(team, conjuncts, getModel, timeout);
+		} finally {
+			teams.add(team);
+		}
+	}
+
+	private Pair<SmtStatus, Map<SolverVariable, Term>> race(CheckSatAssumingSolver[] team, List<SmtLibTerm> conjuncts,
+			boolean getModel, int timeout) throws EvaluationException {
+		ExecutorCompletionService<Pair<SmtStatus, Map<SolverVariable, Term>>> ecs = new ExecutorCompletionService<>(
+				exec);
+		Map<Future<Pair<SmtStatus, Map<SolverVariable, Term>>>, Integer> running = new HashMap<>();
+		for (int i = 0; i < team.length; ++i) {
+			if (team[i] == null) {
+				team[i] = new CheckSatAssumingSolver();
+				team[i].start(prog, factories[i]);
+			}
+			CheckSatAssumingSolver solver = team[i];
+			running.put(ecs.submit(() -> solver.check(conjuncts, getModel, timeout)), i);
+		}
+		Pair<SmtStatus, Map<SolverVariable, Term>> res = null;
+		EvaluationException exn = null;
+		boolean interrupted = false;
+		try {
+			while (!running.isEmpty()) {
+				Future<Pair<SmtStatus, Map<SolverVariable, Term>>> fut = ecs.take();
+				int i = running.remove(fut);
+				try {
+					Pair<SmtStatus, Map<SolverVariable, Term>> p = fut.get();
+					if (!p.fst().equals(SmtStatus.UNKNOWN)) {
+						wins.incrementAndGet(i);
+						return p;
+					}
+					res = p;
+				} catch (ExecutionException e) {
+					// The solver might be out of sync, so get rid of it.
+					discard(team, i);
+					if (exn == null) {
+						Throwable cause = e.getCause();
+						exn = cause instanceof EvaluationException ? (EvaluationException) cause
+								: new EvaluationException(cause);
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			interrupted = true;
+			throw new EvaluationException(e);
+		} finally {
+			if (!running.isEmpty()) {
+				finishLosers(team, ecs, running, interrupted);
+			}
+		}
+		if (res != null) {
+			return res;
+		}
+		throw exn;
+	}
+
+	/*
+	 * Waits up to the grace period for the solvers that are still working on the
+	 * query, and kills the ones that do not finish in time.
+	 */
+	private void finishLosers(CheckSatAssumingSolver[] team,
+			ExecutorCompletionService<Pair<SmtStatus, Map<SolverVariable, Term>>> ecs,
+			Map<Future<Pair<SmtStatus, Map<SolverVariable, Term>>>, Integer> running, boolean interrupted) {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(grace);
+		try {
+			long left;
+			while (!interrupted && !running.isEmpty() && (left = deadline - System.nanoTime()) > 0) {
+				Future<Pair<SmtStatus, Map<SolverVariable, Term>>> fut = ecs.poll(left, TimeUnit.NANOSECONDS);
+				if (fut == null) {
+					break;
+				}
+				int i = running.remove(fut);
+				try {
+					fut.get();
+				} catch (ExecutionException e) {
+					discard(team, i);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (int i : running.values()) {
+			CheckSatAssumingSolver solver = team[i];
+			team[i] = null;
+			solver.kill();
+			// The query fails once its process is gone; clean up after it without
+			// holding up the caller.
+			exec.execute(solver::destroy);
+		}
+	}
+
+	private void discard(CheckSatAssumingSolver[] team, int i) {
+		team[i].destroy();
+		team[i] = null;
+	}
+
+	public static Map<String, Long> getWins() {
+		Map<String, Long> m = new LinkedHashMap<>();
+		for (int i = 0; i < configs.size(); ++i) {
+			m.put(configs.get(i), wins.get(i));
+		}
+		return Collections.unmodifiableMap(m);
+	}
+
+}
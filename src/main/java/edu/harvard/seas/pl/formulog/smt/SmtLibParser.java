@@ -24,8 +24,10 @@ import java.io.IOException;
 import java.io.Reader;
 import java.io.StreamTokenizer;
 import java.io.StringReader;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -79,6 +81,155 @@ public class SmtLibParser {
 		return m;
 	}
 
+	/**
+	 * Reads a model, but only splits it into definitions: the value of a variable
+	 * is parsed the first time it is looked up in the returned map.
+	 */
+	public Map<SolverVariable, Term> getLazyModel(Reader r) throws IOException, SmtLibParseException {
+		String s = readSExp(r);
+		if (!s.startsWith("(model")) {
+			die("expected a model, but found: " + s);
+		}
+		Map<SolverVariable, String> defs = new LinkedHashMap<>();
+		int i = "(model".length();
+		while (true) {
+			i = skipWhitespaceAndComments(s, i);
+			if (i >= s.length() || s.charAt(i) == ')') {
+				break;
+			}
+			int end = findEndOfSExp(s, i);
+			String def = s.substring(i, end);
+			SolverVariable x = lookupDefinedVariable(def);
+			if (x != null) {
+				defs.put(x, def);
+			}
+			i = end;
+		}
+		return new LazyModel(new SmtLibParser(symbolManager, Collections.emptyMap()), defs);
+	}
+
+	/*
+	 * Returns the variable defined by the given definition, if it is one whose
+	 * value should be recorded.
+	 */
+	private SolverVariable lookupDefinedVariable(String def) throws IOException, SmtLibParseException {
+		Tokenizer t = new Tokenizer(new StringReader(def));
+		t.consume("(");
+		if (t.peek().equals("forall") || t.peek().equals("declare")) {
+			return null;
+		}
+		t.consume("define-fun");
+		if (t.peek().equals("-")) {
+			return null;
+		}
+		SolverVariable x = variables.get(parseIdentifier(t));
+		if (x == null || !shouldRecord(getValueType(x))) {
+			return null;
+		}
+		return x;
+	}
+
+	Term parseValue(SolverVariable x, String def) throws IOException, SmtLibParseException {
+		Tokenizer t = new Tokenizer(new StringReader(def));
+		t.consume("(define-fun");
+		parseIdentifier(t);
+		t.consume("(");
+		skipRestOfSExp(t);
+		parseType(t);
+		return parseTerm(t, getValueType(x));
+	}
+
+	private AlgebraicDataType getValueType(SolverVariable x) {
+		FunctorType ft = (FunctorType) x.getSymbol().getCompileTimeType();
+		return stripSymType((AlgebraicDataType) ft.getRetType());
+	}
+
+	/*
+	 * Reads the next s-expression (and the rest of the line it ends on).
+	 */
+	private static String readSExp(Reader r) throws IOException, SmtLibParseException {
+		StringBuilder sb = new StringBuilder();
+		int depth = 0;
+		boolean str = false;
+		boolean bar = false;
+		boolean comment = false;
+		int c;
+		while ((c = r.read()) != -1) {
+			if (sb.length() == 0 && Character.isWhitespace(c)) {
+				continue;
+			}
+			sb.append((char) c);
+			if (comment) {
+				comment = c != '\n';
+			} else if (str) {
+				str = c != '"';
+			} else if (bar) {
+				bar = c != '|';
+			} else if (c == '"') {
+				str = true;
+			} else if (c == '|') {
+				bar = true;
+			} else if (c == ';') {
+				comment = true;
+			} else if (c == '(') {
+				depth++;
+			} else if (c == ')' && --depth == 0) {
+				break;
+			}
+		}
+		if (c == -1) {
+			throw new SmtLibParseException("Unexpected EOF.");
+		}
+		// Remove EOL
+		while ((c = r.read()) != -1 && c != '\n') {
+			// do nothing
+		}
+		return sb.toString();
+	}
+
+	private static int skipWhitespaceAndComments(String s, int i) {
+		while (i < s.length()) {
+			char c = s.charAt(i);
+			if (c == ';') {
+				while (i < s.length() && s.charAt(i) != '\n') {
+					i++;
+				}
+			} else if (Character.isWhitespace(c)) {
+				i++;
+			} else {
+				break;
+			}
+		}
+		return i;
+	}
+
+	/*
+	 * Returns the index just past the end of the s-expression that starts at the
+	 * given index.
+	 */
+	private static int findEndOfSExp(String s, int i) throws SmtLibParseException {
+		int depth = 0;
+		boolean str = false;
+		boolean bar = false;
+		for (; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (str) {
+				str = c != '"';
+			} else if (bar) {
+				bar = c != '|';
+			} else if (c == '"') {
+				str = true;
+			} else if (c == '|') {
+				bar = true;
+			} else if (c == '(') {
+				depth++;
+			} else if (c == ')' && --depth == 0) {
+				return i + 1;
+			}
+		}
+		throw new SmtLibParseException("Unterminated s-expression: " + s);
+	}
+
 	private void consumeComment(Tokenizer t) throws IOException, SmtLibParseException {
 		t.consume(";;");
 		t.ignoreWhitespace(false);
@@ -24,6 +24,7 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.Reader;
+import java.io.StringWriter;
 import java.io.Writer;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
@@ -31,11 +32,16 @@ import java.util.Collections;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.jgrapht.Graph;
 import org.jgrapht.alg.KosarajuStrongConnectivityInspector;
@@ -56,12 +62,15 @@ import edu.harvard.seas.pl.formulog.ast.Terms.TermVisitor;
 import edu.harvard.seas.pl.formulog.ast.Var;
 import edu.harvard.seas.pl.formulog.eval.EvaluationException;
 import edu.harvard.seas.pl.formulog.smt.SmtLibParser.SmtLibParseException;
+import edu.harvard.seas.pl.formulog.symbols.BuiltInConstructorSymbol;
 import edu.harvard.seas.pl.formulog.symbols.BuiltInTypeSymbol;
 import edu.harvard.seas.pl.formulog.symbols.ConstructorSymbol;
 import edu.harvard.seas.pl.formulog.symbols.ConstructorSymbolType;
 import edu.harvard.seas.pl.formulog.symbols.Symbol;
 import edu.harvard.seas.pl.formulog.symbols.SymbolManager;
 import edu.harvard.seas.pl.formulog.symbols.TypeSymbol;
+import edu.harvard.seas.pl.formulog.symbols.parameterized.BuiltInConstructorSymbolBase;
+import edu.harvard.seas.pl.formulog.symbols.parameterized.ParameterizedConstructorSymbol;
 import edu.harvard.seas.pl.formulog.types.FunctorType;
 import edu.harvard.seas.pl.formulog.types.TypeChecker;
 import edu.harvard.seas.pl.formulog.types.Types;
@@ -91,13 +100,74 @@ public class SmtLibShim {
 	private final SymbolManager symbolManager;
 	private Iterator<Pair<ConstructorSymbol, Type>> typeAnnotations;
 	private int cnt;
+	private final Map<SmtLibTerm, SerializedAssertion> serialCache;
+	private SerializedAssertion recording;
+	private Map<Constructor, Pair<String, Integer>> lets;
+	private final Prelude prelude;
+	private final boolean lazyDeclarations;
+	private final boolean shareSubterms;
+	private final Set<Declaration> declared = new HashSet<>();
+	private final Deque<Set<Declaration>> declarationsByStackPos = new ArrayDeque<>();
 
 	public SmtLibShim(Reader in, Writer out, Program<?, ?> prog) {
+		this(in, out, prog, Configuration.smtLazyDeclarations);
+	}
+
+	/**
+	 * If lazyDeclarations is set, sorts and uninterpreted functions are only
+	 * declared once an assertion refers to them (and declared again if they are
+	 * popped); otherwise, they are all declared up front.
+	 */
+	public SmtLibShim(Reader in, Writer out, Program<?, ?> prog, boolean lazyDeclarations) {
+		this(in, out, prog, lazyDeclarations, Configuration.smtShareSubterms, Configuration.smtSerialCacheSize);
+	}
+
+	/**
+	 * If shareSubterms is set, subterms that occur more than once in an assertion
+	 * are bound by a let and printed only once. Serializations of up to
+	 * serialCacheSize assertions are kept, so that they can be written out again
+	 * without traversing the assertions.
+	 */
+	public SmtLibShim(Reader in, Writer out, Program<?, ?> prog, boolean lazyDeclarations, boolean shareSubterms,
+			int serialCacheSize) {
 		this.in = in != null ? new BufferedReader(in) : null;
 		this.out = new PrintWriter(out);
 		this.symbolManager = prog.getSymbolManager();
+		this.lazyDeclarations = lazyDeclarations;
+		this.shareSubterms = shareSubterms;
+		serialCache = makeSerialCache(serialCacheSize);
 		symbolsByStackPos.add(new HashSet<>());
-		makeDeclarations(prog);
+		declarationsByStackPos.add(new HashSet<>());
+		prelude = Prelude.get(prog);
+		makeDeclarations();
+	}
+
+	private void makeDeclarations() {
+		if (!lazyDeclarations) {
+			out.print(prelude.text);
+		}
+		out.flush();
+	}
+
+	/*
+	 * Terms are hash-consed, so an assertion that is made again is (almost always)
+	 * the same object; the least recently used serializations are dropped once
+	 * the cache is full.
+	 */
+	private static Map<SmtLibTerm, SerializedAssertion> makeSerialCache(int size) {
+		if (size <= 0) {
+			return null;
+		}
+		return new LinkedHashMap<SmtLibTerm, SerializedAssertion>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<SmtLibTerm, SerializedAssertion> eldest) {
+				return size() > size;
+			}
+
+		};
 	}
 
 	public void redirectOutput(Writer out) {
@@ -110,21 +180,57 @@ public class SmtLibShim {
 		if (recordTime) {
 			start = System.currentTimeMillis();
 		}
-		declareSymbols(assertion);
+		SerializedAssertion ser = serialCache == null ? null : serialCache.get(assertion);
+		if (ser != null) {
+			// Replay the declarations in the order they were made the first time,
+			// so that the output does not depend on whether the cache was hit.
+			for (Object step : ser.steps) {
+				if (step instanceof Declaration) {
+					declare((Declaration) step);
+				} else {
+					declareSymbol((SolverVariable) step);
+				}
+			}
+			if (recordTime) {
+				end = System.currentTimeMillis();
+				Configuration.recordSmtDeclTime(end - start);
+				start = end;
+			}
+			ser.write();
+			if (recordTime) {
+				end = System.currentTimeMillis();
+				Configuration.recordSmtSerialTime(end - start);
+			}
+			out.flush();
+			return;
+		}
+		List<Object> steps = new ArrayList<>();
+		declareSymbols(assertion, steps);
 		if (recordTime) {
 			end = System.currentTimeMillis();
 			Configuration.recordSmtDeclTime(end - start);
 			start = end;
 		}
-		typeAnnotations = new MiniTypeInferer().inferTypes(assertion).iterator();
+		List<Pair<ConstructorSymbol, Type>> types = new MiniTypeInferer().inferTypes(assertion);
 		if (recordTime) {
 			end = System.currentTimeMillis();
 			Configuration.recordSmtInferTime(end - start);
 			start = end;
 		}
-		print("(assert ");
-		assertion.toSmtLib(this);
-		println(")");
+		if (serialCache == null) {
+			printAssertion(assertion, types);
+		} else {
+			ser = new SerializedAssertion(steps);
+			recording = ser;
+			try {
+				printAssertion(assertion, types);
+			} finally {
+				recording = null;
+			}
+			ser.finish();
+			serialCache.put(assertion, ser);
+			ser.write();
+		}
 		if (recordTime) {
 			end = System.currentTimeMillis();
 			Configuration.recordSmtSerialTime(end - start);
@@ -133,18 +239,226 @@ public class SmtLibShim {
 		out.flush();
 	}
 
+	private void printAssertion(SmtLibTerm assertion, List<Pair<ConstructorSymbol, Type>> types) {
+		print("(assert ");
+		if (!shareSubterms) {
+			typeAnnotations = types.iterator();
+			assertion.toSmtLib(this);
+			println(")");
+			return;
+		}
+		SharedSubtermFinder finder = new SharedSubtermFinder(types);
+		List<Constructor> shared = finder.find(assertion);
+		lets = new IdentityHashMap<>();
+		try {
+			for (Constructor c : shared) {
+				int[] range = finder.ranges.get(c);
+				String name = "l" + lets.size();
+				print("(let ((" + name + " ");
+				typeAnnotations = types.subList(range[0], range[1]).iterator();
+				c.toSmtLib(this);
+				assert !typeAnnotations.hasNext() : typeAnnotations.next();
+				print(")) ");
+				lets.put(c, new Pair<>(name, range[1] - range[0]));
+			}
+			typeAnnotations = types.iterator();
+			assertion.toSmtLib(this);
+		} finally {
+			lets = null;
+		}
+		for (int i = 0; i < shared.size(); ++i) {
+			print(")");
+		}
+		println(")");
+	}
+
+	/*
+	 * Finds the subterms of an assertion that occur more than once, so that they
+	 * can be bound by a let (and so printed only once). A subterm only qualifies
+	 * if each of its occurrences needs the same type annotations, and if it is not
+	 * under a binder (since it might mention the bound variables). The subterms
+	 * are returned in an order such that each comes after the shared subterms it
+	 * contains; for each, the range of annotations it uses is recorded in ranges.
+	 */
+	private class SharedSubtermFinder {
+
+		private final List<Pair<ConstructorSymbol, Type>> types;
+		private final Map<Constructor, Integer> refs = new IdentityHashMap<>();
+		private final Map<Constructor, int[]> ranges = new IdentityHashMap<>();
+		private final Set<Constructor> inconsistent = Collections.newSetFromMap(new IdentityHashMap<>());
+		private final List<Constructor> order = new ArrayList<>();
+		private int idx;
+
+		public SharedSubtermFinder(List<Pair<ConstructorSymbol, Type>> types) {
+			this.types = types;
+		}
+
+		public List<Constructor> find(SmtLibTerm t) {
+			boolean anyShared = count(t);
+			List<Constructor> shared = new ArrayList<>();
+			if (anyShared) {
+				idx = 0;
+				walk(t, false);
+				assert idx == types.size();
+				for (Constructor c : order) {
+					if (!inconsistent.contains(c)) {
+						shared.add(c);
+					}
+				}
+			}
+			return shared;
+		}
+
+		private boolean count(Term t) {
+			if (!(t instanceof Constructor) || t instanceof SolverVariable) {
+				return false;
+			}
+			Constructor c = (Constructor) t;
+			int n = refs.merge(c, 1, Integer::sum);
+			if (n > 1) {
+				return isCandidate(c);
+			}
+			if (isBinder(c.getSymbol())) {
+				return false;
+			}
+			boolean anyShared = false;
+			for (Term arg : c.getArgs()) {
+				anyShared |= count(arg);
+			}
+			return anyShared;
+		}
+
+		// Mirrors the order in which MiniTypeInferer generates annotations.
+		private void walk(Term t, boolean underBinder) {
+			if (!(t instanceof Constructor)) {
+				return;
+			}
+			Constructor c = (Constructor) t;
+			ConstructorSymbol sym = c.getSymbol();
+			Integer n = refs.get(c);
+			boolean shared = !underBinder && n != null && n > 1 && isCandidate(c);
+			if (shared) {
+				int[] range = ranges.get(c);
+				if (range != null) {
+					int len = range[1] - range[0];
+					if (!types.subList(range[0], range[1]).equals(types.subList(idx, idx + len))) {
+						inconsistent.add(c);
+					}
+					idx += len;
+					return;
+				}
+			}
+			int start = idx;
+			if (needsTypeAnnotation(sym)) {
+				idx++;
+			}
+			if (!(c instanceof SolverVariable)) {
+				boolean binder = underBinder || isBinder(sym);
+				for (Term arg : c.getArgs()) {
+					walk(arg, binder);
+				}
+			}
+			if (shared) {
+				ranges.put(c, new int[] { start, idx });
+				order.add(c);
+			}
+		}
+
+		private boolean isCandidate(Constructor c) {
+			for (Term arg : c.getArgs()) {
+				if (arg instanceof Constructor) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+	}
+
+	private static boolean isBinder(ConstructorSymbol sym) {
+		if (sym instanceof ParameterizedConstructorSymbol) {
+			return ((ParameterizedConstructorSymbol) sym).getBase().equals(BuiltInConstructorSymbolBase.SMT_LET);
+		}
+		return sym.equals(BuiltInConstructorSymbol.SMT_FORALL) || sym.equals(BuiltInConstructorSymbol.SMT_EXISTS);
+	}
+
+	/**
+	 * Prints a subterm of the assertion being made (using the name it is bound
+	 * to, if it is shared).
+	 */
+	public void print(SmtLibTerm t) {
+		Pair<String, Integer> let = lets == null ? null : lets.get(t);
+		if (let == null) {
+			t.toSmtLib(this);
+			return;
+		}
+		print(let.fst());
+		for (int i = 0; i < let.snd(); ++i) {
+			typeAnnotations.next();
+		}
+	}
+
+	/*
+	 * The serialization of an assertion, split up around the solver variables it
+	 * mentions (which can have different names each time the assertion is made).
+	 */
+	private class SerializedAssertion {
+
+		// The declarations and solver variables the assertion needs, in the order
+		// they were first declared.
+		final List<Object> steps;
+		final List<String> fragments = new ArrayList<>();
+		final List<SolverVariable> vars = new ArrayList<>();
+		private StringBuilder sb = new StringBuilder();
+
+		SerializedAssertion(List<Object> steps) {
+			this.steps = steps;
+		}
+
+		void append(String s) {
+			sb.append(s);
+		}
+
+		void append(SolverVariable x) {
+			fragments.add(sb.toString());
+			vars.add(x);
+			sb.setLength(0);
+		}
+
+		void finish() {
+			fragments.add(sb.toString());
+			sb = null;
+		}
+
+		void write() {
+			Iterator<SolverVariable> it = vars.iterator();
+			for (String fragment : fragments) {
+				out.print(fragment);
+				if (it.hasNext()) {
+					out.print(declaredSymbols.get(it.next()));
+				}
+			}
+		}
+
+	}
+
 	public void reset() {
 		declaredSymbols.clear();
 		symbolLookup.clear();
 		symbolsByStackPos.clear();
+		symbolsByStackPos.add(new HashSet<>());
+		declared.clear();
+		declarationsByStackPos.clear();
+		declarationsByStackPos.add(new HashSet<>());
 		println("(reset)");
-		out.flush();
+		makeDeclarations();
 	}
 
 	public void push() {
 		println("(push)");
 		out.flush();
 		symbolsByStackPos.addLast(new HashSet<>());
+		declarationsByStackPos.addLast(new HashSet<>());
 	}
 
 	public void pop() {
@@ -154,14 +468,54 @@ public class SmtLibShim {
 			String s = declaredSymbols.remove(x);
 			symbolLookup.remove(s);
 		}
+		declared.removeAll(declarationsByStackPos.removeLast());
 	}
 	
+	/**
+	 * Returns the declarations and assertions for the given conjuncts, with solver
+	 * variables named in order of first occurrence, so that alpha-equivalent lists
+	 * of conjuncts have the same serialization (across runs, too). This should only
+	 * be used with a shim that has not declared any solver variables.
+	 */
+	public String canonicalize(List<SmtLibTerm> conjuncts) {
+		assert declaredSymbols.isEmpty();
+		PrintWriter oldOut = out;
+		StringWriter sw = new StringWriter();
+		// The push and pop (which scope the declarations) go to the scratch writer
+		// too, but are not part of the result.
+		out = new PrintWriter(sw);
+		int oldCnt = cnt;
+		cnt = 0;
+		push();
+		try {
+			int start = sw.getBuffer().length();
+			for (SmtLibTerm conjunct : conjuncts) {
+				makeAssertion(conjunct);
+			}
+			out.flush();
+			return sw.getBuffer().substring(start);
+		} finally {
+			pop();
+			cnt = oldCnt;
+			out = oldOut;
+		}
+	}
+
 	public SmtStatus checkSat(int timeout) throws EvaluationException {
 		return checkSatAssuming(Collections.emptyList(), Collections.emptyList(), timeout);
 	}
 
 	public SmtStatus checkSatAssuming(List<SolverVariable> onVars, List<SolverVariable> offVars, int timeout)
 			throws EvaluationException {
+		printCheckSatAssuming(onVars, offVars, timeout);
+		return readStatus();
+	}
+
+	/**
+	 * Sends a check-sat-assuming command without waiting for its result, which
+	 * has to be picked up later by {@link #readStatus()}.
+	 */
+	public void printCheckSatAssuming(List<SolverVariable> onVars, List<SolverVariable> offVars, int timeout) {
 		if (timeout < 0) {
 			System.err.println("Warning: negative timeout provided to Z3 - ignored");
 			timeout = Integer.MAX_VALUE;
@@ -179,10 +533,15 @@ public class SmtLibShim {
 		}
 		println("))");
 		out.flush();
+	}
+
+	public SmtStatus readStatus() throws EvaluationException {
 		String result;
 		try {
 			result = in.readLine();
-			if (result.equals("sat")) {
+			if (result == null) {
+				throw new EvaluationException("Problem with evaluating Z3! The solver process has terminated");
+			} else if (result.equals("sat")) {
 				return SmtStatus.SATISFIABLE;
 			} else if (result.equals("unsat")) {
 				return SmtStatus.UNSATISFIABLE;
@@ -210,15 +569,27 @@ public class SmtLibShim {
 
 	public Map<SolverVariable, Term> parseModel() throws EvaluationException, IOException, SmtLibParseException {
 		SmtLibParser p = new SmtLibParser(symbolManager, symbolLookup);
+		if (Configuration.smtLazyModels) {
+			return p.getLazyModel(in);
+		}
 		return p.getModel(in);
 	}
 
 	public void print(String s) {
-		out.print(s);
+		if (recording != null) {
+			recording.append(s);
+		} else {
+			out.print(s);
+		}
 	}
 
 	public void println(String s) {
-		out.println(s);
+		if (recording != null) {
+			recording.append(s);
+			recording.append(System.lineSeparator());
+		} else {
+			out.println(s);
+		}
 	}
 
 	public void print(SolverVariable x) {
@@ -226,7 +597,11 @@ public class SmtLibShim {
 		if (s == null) {
 			throw new NoSuchElementException(x.toString());
 		}
-		print(s);
+		if (recording != null) {
+			recording.append(x);
+		} else {
+			out.print(s);
+		}
 	}
 
 	public void print(Symbol sym) {
@@ -250,7 +625,16 @@ public class SmtLibShim {
 		return "x" + cnt++;
 	}
 
-	private void declareSymbols(SmtLibTerm t) {
+	/*
+	 * Declares the solver variables in the given term that have not been declared
+	 * yet, along with the sorts and functions the term needs (if declarations are
+	 * made lazily). Each solver variable and declaration of the term is added to
+	 * steps, in the order in which it is first needed.
+	 */
+	private void declareSymbols(SmtLibTerm t, List<Object> steps) {
+		Set<SolverVariable> symbols = new HashSet<>();
+		Set<Declaration> decls = new HashSet<>();
+		Set<Constructor> seen = Collections.newSetFromMap(new IdentityHashMap<>());
 		t.accept(new TermVisitor<Void, Void>() {
 
 			@Override
@@ -262,18 +646,17 @@ public class SmtLibShim {
 			public Void visit(Constructor c, Void in) {
 				if (c instanceof SolverVariable) {
 					SolverVariable var = (SolverVariable) c;
-					if (!declaredSymbols.containsKey(var)) {
-						String s = freshSymbol();
-						declaredSymbols.put(var, s);
-						symbolLookup.put(s, var);
-						symbolsByStackPos.getLast().add(var);
-						print("(declare-const " + s + " ");
-						FunctorType ft = (FunctorType) var.getSymbol().getCompileTimeType();
-						print(stringifyType(ft.getRetType()));
-						println(")");
+					if (symbols.add(var)) {
+						require(var.getSymbol(), decls, steps);
+						declareSymbol(var);
+						steps.add(var);
 					}
 					return null;
 				}
+				if (!seen.add(c)) {
+					return null;
+				}
+				require(c.getSymbol(), decls, steps);
 				for (Term arg : c.getArgs()) {
 					arg.accept(this, in);
 				}
@@ -293,101 +676,243 @@ public class SmtLibShim {
 		}, null);
 	}
 
-	private void makeDeclarations(Program<?, ?> prog) {
-		declareSorts(prog.getTypeSymbols());
-		declareUninterpretedFunctions(prog.getUninterpretedFunctionSymbols());
-		out.flush();
+	private void declareSymbol(SolverVariable var) {
+		if (!declaredSymbols.containsKey(var)) {
+			String s = freshSymbol();
+			declaredSymbols.put(var, s);
+			symbolLookup.put(s, var);
+			symbolsByStackPos.getLast().add(var);
+			out.print("(declare-const " + s + " ");
+			FunctorType ft = (FunctorType) var.getSymbol().getCompileTimeType();
+			out.print(stringifyType(ft.getRetType()));
+			out.println(")");
+		}
 	}
 
-	private void declareUninterpretedFunctions(Set<ConstructorSymbol> funcs) {
-		for (ConstructorSymbol func : funcs) {
-			print("(declare-fun " + stringifySymbol(func) + " (");
-			FunctorType ft = func.getCompileTimeType();
-			for (Iterator<Type> it = ft.getArgTypes().iterator(); it.hasNext();) {
-				print(stringifyType(it.next()));
-				if (it.hasNext()) {
-					print(" ");
-				}
-			}
-			println(") " + stringifyType(ft.getRetType()) + ")");
+	/**
+	 * Returns the declarations of all the sorts and uninterpreted functions of the
+	 * given program, in the order they would be made by a shim that declares
+	 * everything up front.
+	 */
+	public static String getDeclarations(Program<?, ?> prog) {
+		return Prelude.get(prog).text;
+	}
 
+	/*
+	 * Makes the declarations that the given symbol depends on, and adds them to
+	 * the given set and to steps (if they are not in the set already).
+	 */
+	private void require(ConstructorSymbol sym, Set<Declaration> decls, List<Object> steps) {
+		if (!lazyDeclarations) {
+			return;
+		}
+		for (Declaration decl : prelude.getDependencies(sym)) {
+			if (decls.add(decl)) {
+				declare(decl);
+				steps.add(decl);
+			}
 		}
 	}
 
-	private void declareSorts(Set<TypeSymbol> sorts) {
-		SortDependencyFinder depends = new SortDependencyFinder(sorts);
-		StrongConnectivityAlgorithm<TypeSymbol, DefaultEdge> k = new KosarajuStrongConnectivityInspector<>(
-				depends.compute());
-		TopologicalOrderIterator<Graph<TypeSymbol, DefaultEdge>, DefaultEdge> topo = new TopologicalOrderIterator<>(
-				k.getCondensation());
-		while (topo.hasNext()) {
-			Graph<TypeSymbol, DefaultEdge> scc = topo.next();
-			declareScc(scc.vertexSet());
+	private void declare(Declaration decl) {
+		if (declared.contains(decl)) {
+			return;
 		}
+		for (Declaration dep : decl.deps) {
+			declare(dep);
+		}
+		out.print(decl.text);
+		declared.add(decl);
+		declarationsByStackPos.getLast().add(decl);
 	}
 
-	private void declareScc(Set<TypeSymbol> sorts) {
-		assert !sorts.isEmpty();
-		TypeSymbol sym = sorts.iterator().next();
-		if (sym.isUninterpretedSort()) {
-			assert sorts.size() == 1;
-			declareUninterpretedSort(sym);
-		} else {
-			assert sym.isNormalType();
-			declareAdtSorts(sorts);
+	/*
+	 * A declaration of a sort (or a group of mutually recursive sorts) or of an
+	 * uninterpreted function, along with the declarations it refers to.
+	 */
+	private static class Declaration {
+
+		final String text;
+		final List<Declaration> deps;
+
+		Declaration(String text, List<Declaration> deps) {
+			this.text = text;
+			this.deps = deps;
 		}
-	}
 
-	private void declareUninterpretedSort(TypeSymbol sort) {
-		assert sort.isUninterpretedSort();
-		println("(declare-sort " + stringifySymbol(sort) + " " + sort.getArity() + ")");
 	}
 
-	private void declareAdtSorts(Set<TypeSymbol> sorts) {
-		assert !sorts.isEmpty();
-		print("(declare-datatypes ( ");
-		for (TypeSymbol sym : sorts) {
-			assert sym.isNormalType();
-			print("(" + stringifySymbol(sym) + " " + sym.getArity() + ") ");
+	/*
+	 * The declarations for a program, which are worked out (and serialized) once
+	 * and shared by all of the shims for that program.
+	 */
+	private static class Prelude {
+
+		private static final Map<Program<?, ?>, Prelude> preludes = new WeakHashMap<>();
+
+		final String text;
+		private final Map<TypeSymbol, Declaration> sorts = new HashMap<>();
+		private final Map<ConstructorSymbol, Declaration> funcs = new HashMap<>();
+		private final Map<ConstructorSymbol, List<Declaration>> dependencies = new ConcurrentHashMap<>();
+
+		public static synchronized Prelude get(Program<?, ?> prog) {
+			Prelude prelude = preludes.get(prog);
+			if (prelude == null) {
+				prelude = new Prelude(prog);
+				preludes.put(prog, prelude);
+			}
+			return prelude;
+		}
+
+		private Prelude(Program<?, ?> prog) {
+			StringBuilder sb = new StringBuilder();
+			declareSorts(prog.getTypeSymbols(), sb);
+			declareUninterpretedFunctions(prog.getUninterpretedFunctionSymbols(), sb);
+			text = sb.toString();
 		}
-		print(") (");
-		for (TypeSymbol sym : sorts) {
-			declareAdtSort(AlgebraicDataType.makeWithFreshArgs(sym));
+
+		public List<Declaration> getDependencies(ConstructorSymbol sym) {
+			List<Declaration> deps = dependencies.get(sym);
+			if (deps == null) {
+				deps = new ArrayList<>();
+				Declaration func = funcs.get(sym);
+				if (func != null) {
+					deps.add(func);
+				} else {
+					FunctorType ft = sym.getCompileTimeType();
+					deps.addAll(lookupSorts(ft.getArgTypes()));
+					deps.addAll(lookupSorts(Collections.singletonList(ft.getRetType())));
+				}
+				dependencies.put(sym, deps);
+			}
+			return deps;
 		}
-		println("))");
-	}
 
-	private void declareAdtSort(AlgebraicDataType type) {
-		print("\n  (par (");
-		for (Iterator<Type> it = type.getTypeArgs().iterator(); it.hasNext();) {
-			print(stringifyType(it.next()));
-			if (it.hasNext()) {
-				print(" ");
+		private Set<Declaration> lookupSorts(List<Type> types) {
+			Set<Declaration> decls = new LinkedHashSet<>();
+			for (Type type : types) {
+				for (TypeSymbol sym : SortDependencyFinder.extractTypeSymbols(type)) {
+					Declaration decl = sorts.get(sym);
+					if (decl != null) {
+						decls.add(decl);
+					}
+				}
 			}
+			return decls;
 		}
-		print(") (");
-		for (ConstructorScheme c : type.getConstructors()) {
-			declareConstructor(c);
+
+		private void declareUninterpretedFunctions(Set<ConstructorSymbol> funcs, StringBuilder out) {
+			for (ConstructorSymbol func : funcs) {
+				StringBuilder sb = new StringBuilder();
+				sb.append("(declare-fun " + stringifySymbol(func) + " (");
+				FunctorType ft = func.getCompileTimeType();
+				for (Iterator<Type> it = ft.getArgTypes().iterator(); it.hasNext();) {
+					sb.append(stringifyType(it.next()));
+					if (it.hasNext()) {
+						sb.append(" ");
+					}
+				}
+				sb.append(") " + stringifyType(ft.getRetType()) + ")\n");
+				List<Type> types = new ArrayList<>(ft.getArgTypes());
+				types.add(ft.getRetType());
+				Declaration decl = new Declaration(sb.toString(), new ArrayList<>(lookupSorts(types)));
+				this.funcs.put(func, decl);
+				out.append(decl.text);
+			}
 		}
-		print("))");
-	}
 
-	private void declareConstructor(ConstructorScheme c) {
-		print("\n    (");
-		print(stringifySymbol(c.getSymbol()));
-		Iterator<ConstructorSymbol> getterSyms = c.getGetterSymbols().iterator();
-		for (Type t : c.getTypeArgs()) {
-			String getter = stringifySymbol(getterSyms.next());
-			print(" (" + getter + " " + stringifyType(t) + ")");
+		private void declareSorts(Set<TypeSymbol> sorts, StringBuilder out) {
+			SortDependencyFinder depends = new SortDependencyFinder(sorts);
+			StrongConnectivityAlgorithm<TypeSymbol, DefaultEdge> k = new KosarajuStrongConnectivityInspector<>(
+					depends.compute());
+			TopologicalOrderIterator<Graph<TypeSymbol, DefaultEdge>, DefaultEdge> topo = new TopologicalOrderIterator<>(
+					k.getCondensation());
+			while (topo.hasNext()) {
+				Graph<TypeSymbol, DefaultEdge> scc = topo.next();
+				declareScc(scc.vertexSet(), out);
+			}
 		}
-		print(")");
-	}
 
-	private String stringifySymbol(Symbol sym) {
+		private void declareScc(Set<TypeSymbol> scc, StringBuilder out) {
+			assert !scc.isEmpty();
+			StringBuilder sb = new StringBuilder();
+			TypeSymbol sym = scc.iterator().next();
+			if (sym.isUninterpretedSort()) {
+				assert scc.size() == 1;
+				declareUninterpretedSort(sym, sb);
+			} else {
+				assert sym.isNormalType();
+				declareAdtSorts(scc, sb);
+			}
+			// The SCCs come in topological order, so the sorts that this one refers to
+			// have already been declared.
+			Set<Declaration> deps = new LinkedHashSet<>();
+			for (TypeSymbol member : scc) {
+				if (member.isUninterpretedSort()) {
+					continue;
+				}
+				for (ConstructorScheme c : AlgebraicDataType.makeWithFreshArgs(member).getConstructors()) {
+					deps.addAll(lookupSorts(c.getTypeArgs()));
+				}
+			}
+			Declaration decl = new Declaration(sb.toString(), new ArrayList<>(deps));
+			for (TypeSymbol member : scc) {
+				sorts.put(member, decl);
+			}
+			out.append(decl.text);
+		}
+
+		private void declareUninterpretedSort(TypeSymbol sort, StringBuilder sb) {
+			assert sort.isUninterpretedSort();
+			sb.append("(declare-sort " + stringifySymbol(sort) + " " + sort.getArity() + ")\n");
+		}
+
+		private void declareAdtSorts(Set<TypeSymbol> sorts, StringBuilder sb) {
+			assert !sorts.isEmpty();
+			sb.append("(declare-datatypes ( ");
+			for (TypeSymbol sym : sorts) {
+				assert sym.isNormalType();
+				sb.append("(" + stringifySymbol(sym) + " " + sym.getArity() + ") ");
+			}
+			sb.append(") (");
+			for (TypeSymbol sym : sorts) {
+				declareAdtSort(AlgebraicDataType.makeWithFreshArgs(sym), sb);
+			}
+			sb.append("))\n");
+		}
+
+		private void declareAdtSort(AlgebraicDataType type, StringBuilder sb) {
+			sb.append("\n  (par (");
+			for (Iterator<Type> it = type.getTypeArgs().iterator(); it.hasNext();) {
+				sb.append(stringifyType(it.next()));
+				if (it.hasNext()) {
+					sb.append(" ");
+				}
+			}
+			sb.append(") (");
+			for (ConstructorScheme c : type.getConstructors()) {
+				declareConstructor(c, sb);
+			}
+			sb.append("))");
+		}
+
+		private void declareConstructor(ConstructorScheme c, StringBuilder sb) {
+			sb.append("\n    (");
+			sb.append(stringifySymbol(c.getSymbol()));
+			Iterator<ConstructorSymbol> getterSyms = c.getGetterSymbols().iterator();
+			for (Type t : c.getTypeArgs()) {
+				String getter = stringifySymbol(getterSyms.next());
+				sb.append(" (" + getter + " " + stringifyType(t) + ")");
+			}
+			sb.append(")");
+		}
+
+	}
+	private static String stringifySymbol(Symbol sym) {
 		return "|" + sym + "|";
 	}
 
-	private String stringifyType(Type type) {
+	private static String stringifyType(Type type) {
 		return type.accept(new TypeVisitor<Void, String>() {
 
 			@Override
@@ -457,7 +982,7 @@ public class SmtLibShim {
 		}, null);
 	}
 
-	private class SortDependencyFinder {
+	private static class SortDependencyFinder {
 
 		private final DedupWorkList<TypeSymbol> w = new DedupWorkList<>();
 
@@ -498,7 +1023,7 @@ public class SmtLibShim {
 			return g;
 		}
 
-		private Set<TypeSymbol> extractTypeSymbols(Type type) {
+		static Set<TypeSymbol> extractTypeSymbols(Type type) {
 			Set<TypeSymbol> syms = new HashSet<>();
 			type.accept(new TypeVisitor<Void, Void>() {
 
@@ -530,7 +1055,7 @@ public class SmtLibShim {
 			return syms;
 		}
 		
-		private boolean isDeclarableTypeSymbol(TypeSymbol sym) {
+		private static boolean isDeclarableTypeSymbol(TypeSymbol sym) {
 			if (sym.isAlias()) {
 				return false;
 			}
@@ -580,6 +1105,12 @@ public class SmtLibShim {
 
 		private List<Pair<ConstructorSymbol, Type>> inferTypes1(Term t) {
 			List<Pair<ConstructorSymbol, Type>> types = new ArrayList<>();
+			/*
+			 * The type of a subterm that needs no annotations is determined by its
+			 * leaves, so when it is shared, all of its occurrences can have the same
+			 * type (and it only needs to be looked at once).
+			 */
+			Map<Constructor, Type> closed = new IdentityHashMap<>();
 			t.accept(new TermVisitor<Void, Type>() {
 
 				@Override
@@ -589,9 +1120,14 @@ public class SmtLibShim {
 
 				@Override
 				public Type visit(Constructor c, Void in) {
+					Type ty = closed.get(c);
+					if (ty != null) {
+						return ty;
+					}
+					int numTypes = types.size();
 					ConstructorSymbol sym = c.getSymbol();
 					FunctorType ft = sym.getCompileTimeType().freshen();
-					Type ty = ft.getRetType();
+					ty = ft.getRetType();
 					if (needsTypeAnnotation(sym)) {
 						types.add(new Pair<>(sym, ty));
 					}
@@ -600,6 +1136,9 @@ public class SmtLibShim {
 						for (Term tt : c.getArgs()) {
 							constraints.add(new Pair<>(tt.accept(this, in), it.next()));
 						}
+						if (types.size() == numTypes) {
+							closed.put(c, ty);
+						}
 					}
 					return ty;
 				}
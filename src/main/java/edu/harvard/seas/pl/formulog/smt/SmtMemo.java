@@ -0,0 +1,390 @@
+package edu.harvard.seas.pl.formulog.smt;
+
+/*-
+ * #%L
+ * FormuLog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.harvard.seas.pl.formulog.Configuration;
+import edu.harvard.seas.pl.formulog.ast.Constructor;
+import edu.harvard.seas.pl.formulog.ast.Constructors.SolverVariable;
+import edu.harvard.seas.pl.formulog.ast.Model;
+import edu.harvard.seas.pl.formulog.ast.SmtLibTerm;
+import edu.harvard.seas.pl.formulog.ast.Term;
+import edu.harvard.seas.pl.formulog.eval.EvaluationException;
+import edu.harvard.seas.pl.formulog.smt.SmtLibShim.SmtStatus;
+import edu.harvard.seas.pl.formulog.symbols.ConstructorSymbol;
+import edu.harvard.seas.pl.formulog.symbols.ConstructorSymbolType;
+import edu.harvard.seas.pl.formulog.util.Pair;
+import edu.harvard.seas.pl.formulog.util.UnionFind;
+
+/**
+ * A bounded memo table for SMT queries. Queries are keyed by their sets of
+ * conjuncts, and a single entry per key holds the strongest answer seen so far:
+ * a model answers queries that do not need one, and a definitive answer
+ * (obtained under any timeout) answers queries with any timeout.
+ *
+ * Each entry is weighted by the number of conjuncts and model entries it
+ * retains; once the total weight exceeds the capacity, entries are evicted in
+ * (approximately) least recently used order using the CLOCK algorithm.
+ *
+ * If slicing is turned on (with the system property sliceSmt), the conjuncts of
+ * a query are first partitioned into components that share no solver variables
+ * (or uninterpreted functions), and each component is solved and memoized on
+ * its own.
+ *
+ * Before a query that is not in the memo goes to the solver, it is looked up in
+ * a {@link CounterexampleCache}, if one is turned on (with the system properties
+ * smtModelCacheSize and smtUnsatCacheSize).
+ */
+public class SmtMemo {
+
+	private final long capacity;
+	private final boolean slice;
+	private final Map<Set<SmtLibTerm>, Entry> memo = new ConcurrentHashMap<>();
+	private final ConcurrentLinkedQueue<Entry> clock = new ConcurrentLinkedQueue<>();
+	private final AtomicLong weight = new AtomicLong();
+	private final CounterexampleCache cex;
+
+	private static final AtomicLong hits = new AtomicLong();
+	private static final AtomicLong misses = new AtomicLong();
+	private static final AtomicLong evictions = new AtomicLong();
+
+	public SmtMemo(long capacity) {
+		this(capacity, Configuration.sliceSmt, Configuration.smtModelCacheSize, Configuration.smtUnsatCacheSize);
+	}
+
+	public SmtMemo(long capacity, boolean slice, int modelCacheSize, int unsatCacheSize) {
+		this.capacity = capacity;
+		this.slice = slice;
+		cex = modelCacheSize > 0 || unsatCacheSize > 0 ? new CounterexampleCache(modelCacheSize, unsatCacheSize)
+				: null;
+	}
+
+	private static class Entry {
+
+		final Set<SmtLibTerm> key;
+		final boolean getModel;
+		final int timeout;
+		final CompletableFuture<Pair<SmtStatus, Model>> fut = new CompletableFuture<>();
+		final AtomicBoolean live = new AtomicBoolean();
+		volatile boolean referenced;
+		long weight;
+
+		Entry(Set<SmtLibTerm> key, boolean getModel, int timeout) {
+			this.key = key;
+			this.getModel = getModel;
+			this.timeout = timeout;
+		}
+
+	}
+
+	public Pair<SmtStatus, Model> query(Object assertions, boolean getModel, int timeout, SmtManager smt)
+			throws EvaluationException {
+		if (timeout < 0) {
+			timeout = Integer.MAX_VALUE;
+		}
+		List<SmtLibTerm> conjuncts = canonicalize(assertions);
+		if (slice) {
+			Collection<List<SmtLibTerm>> components = slice(conjuncts);
+			if (components.size() > 1) {
+				return querySlices(components, getModel, timeout, smt);
+			}
+		}
+		return queryConjuncts(conjuncts, getModel, timeout, smt);
+	}
+
+	/*
+	 * The components share the timeout (in milliseconds): each is given whatever
+	 * is left of it, and any left over once it has run out are unknown.
+	 */
+	private Pair<SmtStatus, Model> querySlices(Collection<List<SmtLibTerm>> components, boolean getModel,
+			int timeout, SmtManager smt) throws EvaluationException {
+		boolean bounded = timeout != Integer.MAX_VALUE;
+		long deadline = System.nanoTime() + timeout * 1000000L;
+		SmtStatus status = SmtStatus.SATISFIABLE;
+		Map<SolverVariable, Term> m = getModel ? new HashMap<>() : null;
+		for (List<SmtLibTerm> component : components) {
+			int left = timeout;
+			if (bounded) {
+				long l = (deadline - System.nanoTime()) / 1000000L;
+				if (l <= 0) {
+					status = SmtStatus.UNKNOWN;
+					break;
+				}
+				left = (int) l;
+			}
+			Pair<SmtStatus, Model> res = queryConjuncts(component, getModel, left, smt);
+			switch (res.fst()) {
+			case UNSATISFIABLE:
+				return res;
+			case UNKNOWN:
+				status = SmtStatus.UNKNOWN;
+				break;
+			case SATISFIABLE:
+				if (m != null) {
+					// The solver might also assign variables from other queries, which
+					// would clash with the assignments from other components.
+					Set<Object> vars = new HashSet<>();
+					for (SmtLibTerm conjunct : component) {
+						vars.addAll(atoms(conjunct));
+					}
+					for (Map.Entry<SolverVariable, Term> e : res.snd().getVal().entrySet()) {
+						if (vars.contains(e.getKey())) {
+							m.put(e.getKey(), e.getValue());
+						}
+					}
+				}
+				break;
+			}
+		}
+		if (!status.equals(SmtStatus.SATISFIABLE) || m == null) {
+			return new Pair<>(status, null);
+		}
+		return new Pair<>(status, Model.make(m));
+	}
+
+	private Pair<SmtStatus, Model> queryConjuncts(List<SmtLibTerm> conjuncts, boolean getModel, int timeout,
+			SmtManager smt) throws EvaluationException {
+		Set<SmtLibTerm> key = Collections.unmodifiableSet(new LinkedHashSet<>(conjuncts));
+		while (true) {
+			Entry e = memo.get(key);
+			if (e == null) {
+				Entry mine = new Entry(key, getModel, timeout);
+				if (memo.putIfAbsent(key, mine) == null) {
+					return run(mine, conjuncts, smt);
+				}
+				continue;
+			}
+			Pair<SmtStatus, Model> res = await(e);
+			if (res != null && answers(res, e.timeout, getModel, timeout)) {
+				e.referenced = true;
+				if (Configuration.timeSmt) {
+					hits.incrementAndGet();
+				}
+				return res;
+			}
+			Entry mine = new Entry(key, getModel || e.getModel, timeout);
+			if (memo.replace(key, e, mine)) {
+				retire(e);
+				return run(mine, conjuncts, smt);
+			}
+		}
+	}
+
+	private Pair<SmtStatus, Model> run(Entry e, List<SmtLibTerm> conjuncts, SmtManager smt)
+			throws EvaluationException {
+		if (Configuration.timeSmt) {
+			misses.incrementAndGet();
+		}
+		Pair<SmtStatus, Model> res;
+		try {
+			// Checking cached models against the query can parse their values.
+			res = cex == null ? null : cex.lookup(e.key);
+			if (res == null) {
+				Pair<SmtStatus, Map<SolverVariable, Term>> p = smt.check(conjuncts, e.getModel, e.timeout);
+				Map<SolverVariable, Term> m = p.snd();
+				res = new Pair<>(p.fst(), m == null ? null : Model.make(m));
+				if (cex != null) {
+					cex.record(e.key, res);
+				}
+			}
+		} catch (EvaluationException | RuntimeException exn) {
+			memo.remove(e.key, e);
+			e.fut.completeExceptionally(exn);
+			throw exn;
+		}
+		e.weight = 1 + conjuncts.size() + (res.snd() == null ? 0 : res.snd().getVal().size());
+		weight.addAndGet(e.weight);
+		e.live.set(true);
+		clock.add(e);
+		e.fut.complete(res);
+		evict();
+		return res;
+	}
+
+	private static Pair<SmtStatus, Model> await(Entry e) throws EvaluationException {
+		long start = 0;
+		if (Configuration.timeSmt) {
+			start = System.currentTimeMillis();
+		}
+		try {
+			return e.fut.get();
+		} catch (ExecutionException exn) {
+			// Whoever issued the query reports the failure; try again.
+			return null;
+		} catch (InterruptedException exn) {
+			throw new EvaluationException(exn);
+		} finally {
+			if (Configuration.timeSmt) {
+				long end = System.currentTimeMillis();
+				Configuration.recordSmtWaitTime(end - start);
+			}
+		}
+	}
+
+	private static boolean answers(Pair<SmtStatus, Model> res, int resTimeout, boolean getModel, int timeout) {
+		switch (res.fst()) {
+		case SATISFIABLE:
+			return !getModel || res.snd() != null;
+		case UNSATISFIABLE:
+			return true;
+		case UNKNOWN:
+			return timeout <= resTimeout;
+		}
+		throw new AssertionError("impossible");
+	}
+
+	/*
+	 * Stops accounting for an entry that has been replaced in (or evicted from)
+	 * the memo. It stays in the clock until the next sweep reaches it.
+	 */
+	private boolean retire(Entry e) {
+		if (e.live.compareAndSet(true, false)) {
+			weight.addAndGet(-e.weight);
+			return true;
+		}
+		return false;
+	}
+
+	private void evict() {
+		while (weight.get() > capacity) {
+			Entry e = clock.poll();
+			if (e == null) {
+				return;
+			}
+			if (!e.live.get()) {
+				continue;
+			}
+			if (e.referenced) {
+				e.referenced = false;
+				clock.add(e);
+				continue;
+			}
+			if (retire(e)) {
+				memo.remove(e.key, e);
+				if (Configuration.timeSmt) {
+					evictions.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	private static List<SmtLibTerm> canonicalize(Object assertions) {
+		List<SmtLibTerm> l = new ArrayList<>();
+		if (assertions instanceof SmtLibTerm) {
+			AbstractSmtManager.breakIntoConjuncts((SmtLibTerm) assertions, l);
+		} else {
+			for (Object o : (List<?>) assertions) {
+				AbstractSmtManager.breakIntoConjuncts((SmtLibTerm) o, l);
+			}
+		}
+		return new ArrayList<>(new LinkedHashSet<>(l));
+	}
+
+	/*
+	 * Partitions the conjuncts into groups that do not share any solver variables
+	 * or uninterpreted functions.
+	 */
+	private static Collection<List<SmtLibTerm>> slice(List<SmtLibTerm> conjuncts) {
+		if (conjuncts.size() < 2) {
+			return Collections.singletonList(conjuncts);
+		}
+		UnionFind<Object> uf = new UnionFind<>();
+		List<Object> reps = new ArrayList<>();
+		for (SmtLibTerm conjunct : conjuncts) {
+			Object rep = null;
+			for (Object atom : atoms(conjunct)) {
+				uf.add(atom);
+				if (rep == null) {
+					rep = atom;
+				} else {
+					uf.union(atom, rep);
+				}
+			}
+			reps.add(rep);
+		}
+		Map<Object, List<SmtLibTerm>> components = new LinkedHashMap<>();
+		for (int i = 0; i < conjuncts.size(); ++i) {
+			SmtLibTerm conjunct = conjuncts.get(i);
+			Object rep = reps.get(i);
+			Object key = rep == null ? conjunct : uf.find(rep);
+			components.computeIfAbsent(key, k -> new ArrayList<>()).add(conjunct);
+		}
+		return components.values();
+	}
+
+	private static Set<Object> atoms(Term t) {
+		Set<Object> atoms = new HashSet<>();
+		Set<Term> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+		Deque<Term> todo = new ArrayDeque<>();
+		todo.add(t);
+		while (!todo.isEmpty()) {
+			Term u = todo.pop();
+			if (!(u instanceof Constructor) || !seen.add(u)) {
+				continue;
+			}
+			Constructor c = (Constructor) u;
+			if (c instanceof SolverVariable) {
+				atoms.add(c);
+				continue;
+			}
+			ConstructorSymbol sym = c.getSymbol();
+			if (sym.getConstructorSymbolType().equals(ConstructorSymbolType.SOLVER_UNINTERPRETED_FUNCTION)) {
+				atoms.add(sym);
+			}
+			for (Term arg : c.getArgs()) {
+				todo.push(arg);
+			}
+		}
+		return atoms;
+	}
+
+	public static long getHits() {
+		return hits.get();
+	}
+
+	public static long getMisses() {
+		return misses.get();
+	}
+
+	public static long getEvictions() {
+		return evictions.get();
+	}
+
+}
@@ -34,6 +34,12 @@ public class SmtStrategy {
 		PER_THREAD_PUSH_POP,
 		
 		PER_THREAD_NAIVE,
+
+		PIPELINED,
+
+		ELASTIC,
+
+		PORTFOLIO,
 		
 		;
 	}
@@ -204,6 +204,14 @@ public class TypeChecker {
 		}
 	}
 
+	/**
+	 * Type checks a single fact against the program, e.g., one that is added after
+	 * the program has been type checked.
+	 */
+	public Term[] typeCheckFact(RelationSymbol sym, Term[] args) throws TypeException {
+		return new TypeCheckerContext().typeCheckFact(sym, args);
+	}
+
 	private Map<RelationSymbol, Set<Term[]>> typeCheckFacts(ExecutorService exec) throws TypeException {
 		Map<RelationSymbol, Future<Set<Term[]>>> futures = new HashMap<>();
 		for (RelationSymbol sym : prog.getFactSymbols()) {
@@ -0,0 +1,139 @@
+package edu.harvard.seas.pl.formulog.unification;
+
+/*-
+ * #%L
+ * FormuLog
+ * %%
+ * Copyright (C) 2018 - 2019 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.harvard.seas.pl.formulog.ast.Term;
+import edu.harvard.seas.pl.formulog.ast.Var;
+import edu.harvard.seas.pl.formulog.eval.EvaluationException;
+
+/**
+ * An overwriting substitution for the variables of a single rule. The variables
+ * are numbered densely ahead of time, so that bindings live in an array that
+ * can be accessed directly by slot (and copying the substitution is an array
+ * clone). Variables without a slot (such as the ones bound by patterns inside
+ * match expressions) go into a map on the side.
+ */
+public class SlotSubstitution implements Substitution {
+
+	private final Map<Var, Integer> slots;
+	private final Term[] vals;
+	private Map<Var, Term> others;
+
+	public SlotSubstitution(Map<Var, Integer> slots) {
+		this(slots, new Term[slots.size()], null);
+	}
+
+	private SlotSubstitution(Map<Var, Integer> slots, Term[] vals, Map<Var, Term> others) {
+		this.slots = slots;
+		this.vals = vals;
+		this.others = others;
+	}
+
+	public void put(int slot, Term t) {
+		vals[slot] = t;
+	}
+
+	public Term get(int slot) {
+		assert vals[slot] != null;
+		return vals[slot];
+	}
+
+	/**
+	 * Normalizes a term, reading its binding straight out of the given slot if it
+	 * is a variable that has one (i.e., the slot is nonnegative).
+	 */
+	public Term normalize(Term t, int slot) throws EvaluationException {
+		if (slot < 0) {
+			return t.normalize(this);
+		}
+		Term val = vals[slot];
+		if (val == null) {
+			throw new EvaluationException("No binding for " + t);
+		}
+		return val;
+	}
+
+	@Override
+	public void put(Var v, Term t) {
+		Integer slot = slots.get(v);
+		if (slot != null) {
+			vals[slot] = t;
+		} else {
+			if (others == null) {
+				others = new HashMap<>();
+			}
+			others.put(v, t);
+		}
+	}
+
+	@Override
+	public Term get(Var v) {
+		Integer slot = slots.get(v);
+		if (slot != null) {
+			assert vals[slot] != null;
+			return vals[slot];
+		}
+		assert others != null && others.containsKey(v);
+		return others.get(v);
+	}
+
+	@Override
+	public boolean containsKey(Var v) {
+		Integer slot = slots.get(v);
+		if (slot != null) {
+			return vals[slot] != null;
+		}
+		return others != null && others.containsKey(v);
+	}
+
+	@Override
+	public Iterable<Var> iterateKeys() {
+		List<Var> keys = new ArrayList<>();
+		for (Map.Entry<Var, Integer> e : slots.entrySet()) {
+			if (vals[e.getValue()] != null) {
+				keys.add(e.getKey());
+			}
+		}
+		if (others != null) {
+			keys.addAll(others.keySet());
+		}
+		return keys;
+	}
+
+	public SlotSubstitution copy() {
+		return new SlotSubstitution(slots, vals.clone(), others == null ? null : new HashMap<>(others));
+	}
+
+	@Override
+	public String toString() {
+		Map<Var, Term> m = new HashMap<>();
+		for (Var v : iterateKeys()) {
+			m.put(v, get(v));
+		}
+		return m.toString();
+	}
+
+}
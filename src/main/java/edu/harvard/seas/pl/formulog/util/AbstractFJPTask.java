@@ -23,6 +23,7 @@ package edu.harvard.seas.pl.formulog.util;
 import java.util.concurrent.RecursiveAction;
 
 import edu.harvard.seas.pl.formulog.eval.EvaluationException;
+import edu.harvard.seas.pl.formulog.eval.UncheckedEvaluationException;
 
 @SuppressWarnings("serial")
 public abstract class AbstractFJPTask extends RecursiveAction {
@@ -40,6 +41,8 @@ public abstract class AbstractFJPTask extends RecursiveAction {
 			exec.reportTaskCompletion();
 		} catch (EvaluationException e) {
 			exec.fail(e);
+		} catch (UncheckedEvaluationException e) {
+			exec.fail(new EvaluationException(e.getMessage(), e));
 		}
 	}
 	
@@ -39,5 +39,7 @@ public interface CountingFJP {
 	boolean hasFailed();
 	
 	EvaluationException getFailureCause();
+
+	int getParallelism();
 	
 }
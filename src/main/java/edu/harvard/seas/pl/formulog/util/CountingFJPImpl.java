@@ -106,4 +106,9 @@ public class CountingFJPImpl implements CountingFJP {
 		return failureCause;
 	}
 
+	@Override
+	public int getParallelism() {
+		return exec.getParallelism();
+	}
+
 }
@@ -67,4 +67,9 @@ public class MockCountingFJP implements CountingFJP {
 		
 	}
 
+	@Override
+	public int getParallelism() {
+		return 1;
+	}
+
 }
@@ -30,7 +30,9 @@ import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.Spliterator;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
@@ -104,26 +106,8 @@ public final class Util {
 		}
 
 		@Override
-		public Iterator<Iterable<T>> iterator() {
-			Iterator<T> it = iterable.iterator();
-			return new Iterator<Iterable<T>>() {
-
-				@Override
-				public boolean hasNext() {
-					return it.hasNext();
-				}
-
-				@Override
-				public Iterable<T> next() {
-					assert hasNext();
-					List<T> l = new ArrayList<>(size);
-					for (int i = 0; i < size && it.hasNext(); ++i) {
-						l.add(it.next());
-					}
-					return l;
-				}
-
-			};
+		public ChunkIterator<T> iterator() {
+			return new ChunkIterator<>(iterable.spliterator(), size);
 		}
 
 		@Override
@@ -159,7 +143,66 @@ public final class Util {
 
 	}
 
-	public static <T> Iterable<Iterable<T>> splitIterable(Iterable<T> iterable, int segmentSize) {
+	/**
+	 * Iterates over the elements of a spliterator in chunks. If the spliterator
+	 * knows (roughly) how many elements it has left, the remaining chunks can also
+	 * be split in two, so that they can be handed out to tasks as a balanced tree
+	 * instead of one after the other.
+	 */
+	public static class ChunkIterator<T> implements Iterator<Iterable<T>> {
+
+		private final Spliterator<T> src;
+		private final int size;
+		private List<T> next;
+
+		public ChunkIterator(Spliterator<T> src, int size) {
+			this.src = src;
+			this.size = size;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (next == null) {
+				List<T> l = new ArrayList<>(size);
+				while (l.size() < size && src.tryAdvance(l::add)) {
+				}
+				next = l;
+			}
+			return !next.isEmpty();
+		}
+
+		@Override
+		public Iterable<T> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			List<T> l = next;
+			next = null;
+			return l;
+		}
+
+		/**
+		 * Splits off (roughly) the first half of the remaining chunks, or returns null
+		 * if they cannot be split or are not worth splitting.
+		 */
+		public ChunkIterator<T> trySplit() {
+			long est = src.estimateSize();
+			if (est == Long.MAX_VALUE || est <= size) {
+				return null;
+			}
+			Spliterator<T> prefix = src.trySplit();
+			if (prefix == null) {
+				return null;
+			}
+			ChunkIterator<T> it = new ChunkIterator<>(prefix, size);
+			it.next = next;
+			next = null;
+			return it;
+		}
+
+	}
+
+	public static <T> IterableOfIterables<T> splitIterable(Iterable<T> iterable, int segmentSize) {
 		return new IterableOfIterables<>(iterable, segmentSize);
 	}
 
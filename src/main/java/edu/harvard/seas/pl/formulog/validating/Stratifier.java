@@ -21,9 +21,12 @@ package edu.harvard.seas.pl.formulog.validating;
  */
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -58,6 +61,7 @@ import edu.harvard.seas.pl.formulog.symbols.BuiltInFunctionSymbol;
 import edu.harvard.seas.pl.formulog.symbols.FunctionSymbol;
 import edu.harvard.seas.pl.formulog.symbols.PredicateFunctionSymbol;
 import edu.harvard.seas.pl.formulog.symbols.RelationSymbol;
+import edu.harvard.seas.pl.formulog.util.Util;
 
 public class Stratifier {
 
@@ -69,6 +73,9 @@ public class Stratifier {
 
 	public List<Stratum> stratify() throws InvalidProgramException {
 		Graph<RelationSymbol, DependencyTypeWrapper> g = new DefaultDirectedGraph<>(DependencyTypeWrapper.class);
+		// The graph keeps a single edge between two relations, so this records the
+		// relations that are ever used non-monotonically.
+		Map<RelationSymbol, Set<RelationSymbol>> nonMonotone = new HashMap<>();
 		for (RelationSymbol sym : prog.getRuleSymbols()) {
 			for (BasicRule r : prog.getRules(sym)) {
 				DependencyFinder depends = new DependencyFinder();
@@ -83,7 +90,11 @@ public class Stratifier {
 				g.addVertex(hdSym);
 				for (RelationSymbol bdSym : depends) {
 					g.addVertex(bdSym);
-					g.addEdge(bdSym, hdSym, new DependencyTypeWrapper(depends.getDependencyType(bdSym)));
+					DependencyType d = depends.getDependencyType(bdSym);
+					g.addEdge(bdSym, hdSym, new DependencyTypeWrapper(d));
+					if (!d.equals(DependencyType.POSITIVE)) {
+						Util.lookupOrCreate(nonMonotone, hdSym, () -> new HashSet<>()).add(bdSym);
+					}
 				}
 			}
 		}
@@ -112,7 +123,23 @@ public class Stratifier {
 				}
 				hasRecursiveNegationOrAggregation |= d.equals(DependencyType.NEG_OR_AGG_IN_REL);
 			}
-			strata.add(new Stratum(rank, component.vertexSet(), hasRecursiveNegationOrAggregation));
+			Set<RelationSymbol> dependencies = new HashSet<>();
+			Set<RelationSymbol> nonMonotoneDependencies = new HashSet<>();
+			for (RelationSymbol sym : component.vertexSet()) {
+				for (DependencyTypeWrapper dw : g.incomingEdgesOf(sym)) {
+					RelationSymbol other = g.getEdgeSource(dw);
+					if (!component.containsVertex(other)) {
+						dependencies.add(other);
+					}
+				}
+				for (RelationSymbol other : nonMonotone.getOrDefault(sym, Collections.emptySet())) {
+					if (!component.containsVertex(other)) {
+						nonMonotoneDependencies.add(other);
+					}
+				}
+			}
+			strata.add(new Stratum(rank, component.vertexSet(), hasRecursiveNegationOrAggregation, dependencies,
+					nonMonotoneDependencies));
 			rank++;
 		}
 		return strata;
@@ -20,6 +20,7 @@ package edu.harvard.seas.pl.formulog.validating;
  * #L%
  */
 
+import java.util.Collections;
 import java.util.Set;
 
 import edu.harvard.seas.pl.formulog.symbols.RelationSymbol;
@@ -29,11 +30,21 @@ public class Stratum {
 	private final int rank;
 	private final Set<RelationSymbol> predicateSyms;
 	private final boolean hasRecursiveNegationOrAggregation;
+	private final Set<RelationSymbol> dependencies;
+	private final Set<RelationSymbol> nonMonotoneDependencies;
 
 	public Stratum(int rank, Set<RelationSymbol> predicateSyms, boolean hasRecursiveNegationOrAggregation) {
+		this(rank, predicateSyms, hasRecursiveNegationOrAggregation, Collections.emptySet(),
+				Collections.emptySet());
+	}
+
+	public Stratum(int rank, Set<RelationSymbol> predicateSyms, boolean hasRecursiveNegationOrAggregation,
+			Set<RelationSymbol> dependencies, Set<RelationSymbol> nonMonotoneDependencies) {
 		this.rank = rank;
 		this.predicateSyms = predicateSyms;
 		this.hasRecursiveNegationOrAggregation = hasRecursiveNegationOrAggregation;
+		this.dependencies = dependencies;
+		this.nonMonotoneDependencies = nonMonotoneDependencies;
 	}
 
 	public int getRank() {
@@ -48,6 +59,22 @@ public class Stratum {
 		return hasRecursiveNegationOrAggregation;
 	}
 
+	/**
+	 * Returns the relations outside this stratum that its rules refer to.
+	 */
+	public Set<RelationSymbol> getDependencies() {
+		return dependencies;
+	}
+
+	/**
+	 * Returns the relations outside this stratum that its rules refer to
+	 * negatively, or through a function (adding a tuple to one of these can take
+	 * tuples away from this stratum).
+	 */
+	public Set<RelationSymbol> getNonMonotoneDependencies() {
+		return nonMonotoneDependencies;
+	}
+
 	@Override
 	public String toString() {
 		return "Stratum [rank=" + rank + ", predicateSyms=" + predicateSyms + ", hasRecursiveNegationOrAggregation="
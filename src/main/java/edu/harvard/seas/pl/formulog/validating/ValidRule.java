@@ -47,24 +47,44 @@ public class ValidRule extends AbstractRule<UserPredicate, ComplexLiteral> {
 			order(body, score, vars, rule.countVariables());
 			// Set<Var> vars = checkBody(rule);
 			UserPredicate head = rule.getHead();
-			if (!head.getSymbol().isIdbSymbol()) {
-				throw new InvalidProgramException("Cannot create a rule for non-IDB symbol " + head.getSymbol());
-			}
-			if (!vars.containsAll(head.varSet())) {
-				String msg = "There are unbound variables in the head of a rule:";
-				for (Var x : head.varSet()) {
-					if (!vars.contains(x)) {
-						msg += " " + x;
-					}
-				}
-				throw new InvalidProgramException(msg);
-			}
+			checkHead(head, vars);
 			return new ValidRule(head, body);
 		} catch (InvalidProgramException e) {
 			throw new InvalidProgramException(e.getMessage() + "\n" + rule);
 		}
 	}
 
+	/**
+	 * Makes a valid rule whose body is evaluated in exactly the given order (as
+	 * opposed to {@link #make}, which reorders it). Fails if a literal cannot be
+	 * evaluated in its position.
+	 */
+	public static ValidRule makeInOrder(Rule<UserPredicate, ComplexLiteral> rule) throws InvalidProgramException {
+		Set<Var> vars = checkBody(rule);
+		UserPredicate head = rule.getHead();
+		try {
+			checkHead(head, vars);
+		} catch (InvalidProgramException e) {
+			throw new InvalidProgramException(e.getMessage() + "\n" + rule);
+		}
+		return new ValidRule(head, Util.iterableToList(rule));
+	}
+
+	private static void checkHead(UserPredicate head, Set<Var> vars) throws InvalidProgramException {
+		if (!head.getSymbol().isIdbSymbol()) {
+			throw new InvalidProgramException("Cannot create a rule for non-IDB symbol " + head.getSymbol());
+		}
+		if (!vars.containsAll(head.varSet())) {
+			String msg = "There are unbound variables in the head of a rule:";
+			for (Var x : head.varSet()) {
+				if (!vars.contains(x)) {
+					msg += " " + x;
+				}
+			}
+			throw new InvalidProgramException(msg);
+		}
+	}
+
 	public static void order(List<ComplexLiteral> atoms, BiFunction<ComplexLiteral, Set<Var>, Integer> score,
 			Set<Var> boundVars, Map<Var, Integer> varCounts) throws InvalidProgramException {
 		List<ComplexLiteral> newList = new ArrayList<>();
@@ -26,6 +26,7 @@ import java.util.Set;
 import edu.harvard.seas.pl.formulog.ast.Term;
 import edu.harvard.seas.pl.formulog.ast.Var;
 import edu.harvard.seas.pl.formulog.eval.EvaluationException;
+import edu.harvard.seas.pl.formulog.unification.SlotSubstitution;
 import edu.harvard.seas.pl.formulog.unification.Substitution;
 
 public class Assignment implements SimpleLiteral {
@@ -45,6 +46,15 @@ public class Assignment implements SimpleLiteral {
 	public void assign(Substitution subst) throws EvaluationException {
 		subst.put(var, rhs.normalize(subst));
 	}
+
+	/**
+	 * Like {@link #assign(Substitution)}, but with the variables resolved to the
+	 * given slots: the first for the variable being defined, the second for the
+	 * right-hand side (or -1 if it is not a variable).
+	 */
+	public void assign(SlotSubstitution subst, int[] slots) throws EvaluationException {
+		subst.put(slots[0], subst.normalize(rhs, slots[1]));
+	}
 	
 	@Override
 	public <I, O> O accept(SimpleLiteralVisitor<I, O> visitor, I input) {
@@ -26,6 +26,7 @@ import java.util.Set;
 import edu.harvard.seas.pl.formulog.ast.Term;
 import edu.harvard.seas.pl.formulog.ast.Var;
 import edu.harvard.seas.pl.formulog.eval.EvaluationException;
+import edu.harvard.seas.pl.formulog.unification.SlotSubstitution;
 import edu.harvard.seas.pl.formulog.unification.Substitution;
 
 public class Check implements SimpleLiteral {
@@ -65,6 +66,20 @@ public class Check implements SimpleLiteral {
 		assert !rhs.containsUnevaluatedTerm();
 		return lhs.equals(rhs) ^ negated;
 	}
+
+	/**
+	 * Like {@link #check(Substitution)}, but with each side that is a variable
+	 * resolved to a slot (and -1 for a side that is not).
+	 */
+	public boolean check(SlotSubstitution subst, int[] slots) throws EvaluationException {
+		Term lhs = subst.normalize(this.lhs, slots[0]);
+		Term rhs = subst.normalize(this.rhs, slots[1]);
+		assert lhs.isGround();
+		assert !lhs.containsUnevaluatedTerm();
+		assert rhs.isGround();
+		assert !rhs.containsUnevaluatedTerm();
+		return lhs.equals(rhs) ^ negated;
+	}
 	
 	@Override
 	public <I, O> O accept(SimpleLiteralVisitor<I, O> visitor, I input) {
@@ -31,6 +31,7 @@ import edu.harvard.seas.pl.formulog.ast.Term;
 import edu.harvard.seas.pl.formulog.ast.Var;
 import edu.harvard.seas.pl.formulog.eval.EvaluationException;
 import edu.harvard.seas.pl.formulog.symbols.ConstructorSymbol;
+import edu.harvard.seas.pl.formulog.unification.SlotSubstitution;
 import edu.harvard.seas.pl.formulog.unification.Substitution;
 
 public class Destructor implements SimpleLiteral {
@@ -85,6 +86,23 @@ public class Destructor implements SimpleLiteral {
 		return true;
 	}
 
+	/**
+	 * Like {@link #destruct(Substitution)}, but with the variables resolved to
+	 * slots: the first is for the scrutinee (or -1 if it is not a variable), and
+	 * the rest are for the bindings.
+	 */
+	public boolean destruct(SlotSubstitution subst, int[] slots) throws EvaluationException {
+		Constructor ctor = (Constructor) subst.normalize(x, slots[0]);
+		if (!ctor.getSymbol().equals(symbol)) {
+			return false;
+		}
+		Term[] args = ctor.getArgs();
+		for (int i = 0; i < args.length; ++i) {
+			subst.put(slots[i + 1], args[i]);
+		}
+		return true;
+	}
+
 	@Override
 	public <I, O> O accept(SimpleLiteralVisitor<I, O> visitor, I input) {
 		return visitor.visit(this, input);
@@ -30,6 +30,7 @@ import edu.harvard.seas.pl.formulog.ast.Term;
 import edu.harvard.seas.pl.formulog.ast.Var;
 import edu.harvard.seas.pl.formulog.eval.EvaluationException;
 import edu.harvard.seas.pl.formulog.symbols.RelationSymbol;
+import edu.harvard.seas.pl.formulog.unification.SlotSubstitution;
 import edu.harvard.seas.pl.formulog.unification.Substitution;
 
 public class SimplePredicate implements SimpleLiteral {
@@ -117,6 +118,18 @@ public class SimplePredicate implements SimpleLiteral {
 		return new SimplePredicate(symbol, newArgs, bindingPattern, negated);
 	}
 
+	/**
+	 * Normalizes the arguments of this predicate, reading the ones that are
+	 * variables straight out of the given slots (which are -1 for the others).
+	 */
+	public Term[] normalizeArgs(SlotSubstitution s, int[] slots) throws EvaluationException {
+		Term[] newArgs = new Term[args.length];
+		for (int i = 0; i < args.length; ++i) {
+			newArgs[i] = s.normalize(args[i], slots[i]);
+		}
+		return newArgs;
+	}
+
 	@Override
 	public int hashCode() {
 		final int prime = 31;
@@ -0,0 +1,160 @@
+package edu.harvard.seas.pl.formulog;
+
+/*-
+ * #%L
+ * FormuLog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import edu.harvard.seas.pl.formulog.eval.SemiNaiveEvaluation;
+import edu.harvard.seas.pl.formulog.parsing.Parser;
+import edu.harvard.seas.pl.formulog.symbols.RelationSymbol;
+import edu.harvard.seas.pl.formulog.types.TypeChecker;
+import edu.harvard.seas.pl.formulog.types.WellTypedProgram;
+import edu.harvard.seas.pl.formulog.util.Util;
+
+public class EvaluationServerTest {
+
+	private static final String RULES = String.join("\n", //
+			"input edge(i32, i32).", //
+			"input scale(i32).", //
+			"output path(i32, i32).", //
+			"output share(i32).", //
+			"path(X, Y) :- edge(X, Y).", //
+			"path(X, Z) :- path(X, Y), edge(Y, Z).", //
+			"share(100 / X) :- scale(X).", //
+			"");
+
+	private static SemiNaiveEvaluation evaluate(Parser parser, TypeChecker typeChecker, boolean incremental)
+			throws Exception {
+		WellTypedProgram prog = typeChecker.typeCheck();
+		SemiNaiveEvaluation eval = SemiNaiveEvaluation.setup(prog, 2, false, incremental);
+		eval.run();
+		return eval;
+	}
+
+	private static EvaluationServer server(String text) throws Exception {
+		Parser parser = new Parser();
+		TypeChecker typeChecker = new TypeChecker(parser.parse(new StringReader(text)));
+		return new EvaluationServer(parser, typeChecker, evaluate(parser, typeChecker, true));
+	}
+
+	private static List<String> send(EvaluationServer server, String... requests) throws Exception {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		String in = String.join("\n", requests) + "\n";
+		server.serve(new BufferedReader(new StringReader(in)), new PrintStream(baos, true));
+		List<String> lines = new ArrayList<>();
+		for (String line : baos.toString().split("\n")) {
+			if (!line.isEmpty()) {
+				lines.add(line);
+			}
+		}
+		return lines;
+	}
+
+	/*
+	 * Prints the facts in a relation as a fresh (non-incremental) evaluation of
+	 * the program computes them, followed by the line the server ends a get with.
+	 */
+	private static List<String> freshGet(String text, String rel) throws Exception {
+		Parser parser = new Parser();
+		TypeChecker typeChecker = new TypeChecker(parser.parse(new StringReader(text)));
+		SemiNaiveEvaluation eval = evaluate(parser, typeChecker, false);
+		RelationSymbol sym = (RelationSymbol) eval.getInputProgram().getSymbolManager().lookupSymbol(rel);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		PrintStream out = new PrintStream(baos, true);
+		Util.printSortedFacts(eval.getResult().getAll(sym), out);
+		List<String> lines = new ArrayList<>(Arrays.asList(baos.toString().split("\n")));
+		lines.removeIf(String::isEmpty);
+		lines.add("ok " + lines.size());
+		return lines;
+	}
+
+	private static void assertOk(List<String> responses) {
+		for (String r : responses) {
+			assertTrue(r, r.startsWith("ok"));
+		}
+	}
+
+	@Test
+	public void testAddCommitGetRetract() throws Exception {
+		EvaluationServer server = server(RULES + "edge(0, 1).\nedge(1, 2).\nedge(2, 3).\n");
+		assertOk(send(server, "add edge 3\t4", "add edge 4\t0", "retract edge 1\t2", "commit"));
+		assertEquals(freshGet(RULES + "edge(0, 1).\nedge(2, 3).\nedge(3, 4).\nedge(4, 0).\n", "path"),
+				send(server, "get path"));
+		assertOk(send(server, "add edge 1\t2", "commit"));
+		assertEquals(freshGet(RULES + "edge(0, 1).\nedge(1, 2).\nedge(2, 3).\nedge(3, 4).\nedge(4, 0).\n", "path"),
+				send(server, "get path"));
+		assertEquals(Arrays.asList("ok 25"), send(server, "count path"));
+		assertFalse(server.hasFailed());
+	}
+
+	@Test
+	public void testQuery() throws Exception {
+		EvaluationServer server = server(RULES + "edge(0, 1).\nedge(1, 2).\n:- path(0, _X).\n");
+		assertEquals(Arrays.asList("query:path(0, 1)", "query:path(0, 2)", "ok 2"), send(server, "query"));
+		assertOk(send(server, "add edge 2\t3", "retract edge 0\t1", "add edge 0\t2", "commit"));
+		assertEquals(Arrays.asList("query:path(0, 2)", "query:path(0, 3)", "ok 2"), send(server, "query"));
+		assertEquals(Arrays.asList("error There is no query"), send(server(RULES), "query"));
+	}
+
+	@Test
+	public void testErrorResponses() throws Exception {
+		EvaluationServer server = server(RULES + "edge(0, 1).\n");
+		List<String> responses = send(server, "frobnicate", "count nosuch", "get", "add path 0\t1",
+				"add edge 0", "add edge zero\t1", "count edge", "quit", "count edge");
+		assertEquals(8, responses.size());
+		for (String r : responses.subList(0, 6)) {
+			assertTrue(r, r.startsWith("error"));
+		}
+		// Bad requests are reported without ending the session or queueing anything.
+		assertEquals(Arrays.asList("ok 1", "ok"), responses.subList(6, 8));
+		assertOk(send(server, "commit"));
+		assertEquals(Arrays.asList("ok 1"), send(server, "count path"));
+		assertFalse(server.hasFailed());
+	}
+
+	@Test
+	public void testShutdownAfterFailedCommit() throws Exception {
+		EvaluationServer server = server(RULES + "scale(5).\n");
+		assertEquals(Arrays.asList("share(20)", "ok 1"), send(server, "get share"));
+		List<String> responses = send(server, "add scale 0", "commit", "count share");
+		assertEquals(2, responses.size());
+		assertEquals("ok", responses.get(0));
+		assertTrue(responses.get(1), responses.get(1).startsWith("error"));
+		assertTrue(server.hasFailed());
+		responses = send(server, "count share");
+		assertEquals(1, responses.size());
+		assertTrue(responses.get(0), responses.get(0).startsWith("error The evaluation failed earlier"));
+	}
+
+}
@@ -0,0 +1,154 @@
+package edu.harvard.seas.pl.formulog.db;
+
+/*-
+ * #%L
+ * FormuLog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+import org.junit.Test;
+
+public class ConcurrentBTreeSetTest {
+
+	private static ConcurrentBTreeSet<Integer> make() {
+		return new ConcurrentBTreeSet<>(Integer::compare);
+	}
+
+	private static List<Integer> toList(Iterable<Integer> it) {
+		List<Integer> l = new ArrayList<>();
+		it.forEach(l::add);
+		return l;
+	}
+
+	@Test
+	public void testConcurrentAdd() throws InterruptedException {
+		ConcurrentBTreeSet<Integer> s = make();
+		int nthreads = 4;
+		int n = 50000;
+		Thread[] ts = new Thread[nthreads];
+		for (int t = 0; t < nthreads; ++t) {
+			int id = t;
+			ts[t] = new Thread(() -> {
+				// Every thread adds every other element, so most are added twice.
+				for (int i = id % 2; i < n; i += 2) {
+					s.add((i * 7919) % n);
+				}
+			});
+			ts[t].start();
+		}
+		for (Thread t : ts) {
+			t.join();
+		}
+		List<Integer> l = toList(s);
+		assertEquals(n, l.size());
+		assertEquals(n, s.size());
+		for (int i = 0; i < n; ++i) {
+			assertEquals(i, (int) l.get(i));
+			assertTrue(s.contains(i));
+		}
+	}
+
+	@Test
+	public void testAddAll() {
+		ConcurrentBTreeSet<Integer> s = make();
+		List<Integer> xs = new ArrayList<>();
+		for (int i = 0; i < 5000; ++i) {
+			xs.add(i % 3000);
+		}
+		Collections.shuffle(xs);
+		assertEquals(3000, s.addAll(xs));
+		assertEquals(0, s.addAll(Arrays.asList(0, 1, 2999)));
+		assertEquals(3000, toList(s).size());
+	}
+
+	@Test
+	public void testRangeAcrossSplits() {
+		ConcurrentBTreeSet<Integer> s = make();
+		TreeSet<Integer> expected = new TreeSet<>();
+		for (int i = 0; i < 10000; ++i) {
+			int x = (i * 31) % 20000;
+			s.add(x);
+			expected.add(x);
+		}
+		int[][] bounds = { { 0, 19999 }, { 5, 5 }, { 6, 6 }, { 1000, 4321 }, { -10, 40 }, { 19990, 30000 } };
+		for (int[] b : bounds) {
+			List<Integer> want = new ArrayList<>(expected.subSet(b[0], true, b[1], true));
+			assertEquals(want, toList(s.range(b[0], b[1])));
+		}
+	}
+
+	@Test
+	public void testSpliterator() {
+		ConcurrentBTreeSet<Integer> s = make();
+		for (int i = 0; i < 10000; ++i) {
+			s.add(i);
+		}
+		Spliterator<Integer> sp = s.range(100, 8999).spliterator();
+		Spliterator<Integer> prefix = sp.trySplit();
+		assertTrue(prefix != null);
+		List<Integer> l = StreamSupport.stream(prefix, false).collect(Collectors.toList());
+		int split = l.size();
+		assertTrue(split > 0 && split < 8900);
+		l.addAll(StreamSupport.stream(sp, false).collect(Collectors.toList()));
+		assertEquals(8900, l.size());
+		for (int i = 0; i < l.size(); ++i) {
+			assertEquals(100 + i, (int) l.get(i));
+		}
+		assertEquals(10000, StreamSupport.stream(s.spliterator(), true).count());
+	}
+
+	@Test
+	public void testRemove() {
+		ConcurrentBTreeSet<Integer> s = make();
+		for (int i = 0; i < 2000; ++i) {
+			s.add(i);
+		}
+		for (int i = 0; i < 2000; i += 2) {
+			assertTrue(s.remove(i));
+		}
+		assertFalse(s.remove(0));
+		assertFalse(s.contains(10));
+		assertTrue(s.contains(11));
+		assertEquals(Arrays.asList(11, 13, 15), toList(s.range(10, 15)));
+		assertFalse(s.isEmpty());
+		for (int i = 1; i < 2000; i += 2) {
+			assertTrue(s.remove(i));
+		}
+		assertTrue(s.isEmpty());
+		assertEquals(0, s.size());
+		assertFalse(s.iterator().hasNext());
+		s.add(42);
+		assertFalse(s.isEmpty());
+		s.clear();
+		assertTrue(s.isEmpty());
+	}
+
+}
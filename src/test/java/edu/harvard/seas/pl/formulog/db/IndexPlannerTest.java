@@ -0,0 +1,123 @@
+package edu.harvard.seas.pl.formulog.db;
+
+/*-
+ * #%L
+ * FormuLog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import edu.harvard.seas.pl.formulog.ast.BindingType;
+
+public class IndexPlannerTest {
+
+	private static BindingType[] pat(String s) {
+		BindingType[] pat = new BindingType[s.length()];
+		for (int i = 0; i < pat.length; ++i) {
+			switch (s.charAt(i)) {
+			case 'b':
+				pat[i] = BindingType.BOUND;
+				break;
+			case 'f':
+				pat[i] = BindingType.FREE;
+				break;
+			default:
+				pat[i] = BindingType.IGNORED;
+			}
+		}
+		return pat;
+	}
+
+	private static List<IndexPlanner.Plan> plan(String... pats) {
+		List<BindingType[]> l = new ArrayList<>();
+		for (String s : pats) {
+			l.add(pat(s));
+		}
+		return IndexPlanner.plan(l);
+	}
+
+	/*
+	 * Checks that every pattern is served by exactly one plan, and that the bound
+	 * columns of each pattern are a prefix of that plan's comparator order.
+	 */
+	private static void checkCover(List<IndexPlanner.Plan> plans, String... pats) {
+		int[] served = new int[pats.length];
+		for (IndexPlanner.Plan p : plans) {
+			for (int i : p.getPatterns()) {
+				served[i]++;
+				BindingType[] pat = pat(pats[i]);
+				int nbound = 0;
+				for (BindingType b : pat) {
+					if (b.isBound()) {
+						nbound++;
+					}
+				}
+				for (int j = 0; j < nbound; ++j) {
+					assertTrue(pat[p.getComparatorOrder().get(j)].isBound());
+				}
+			}
+		}
+		for (int n : served) {
+			assertEquals(1, n);
+		}
+	}
+
+	@Test
+	public void testChain() {
+		String[] pats = { "bff", "bbf", "bbb" };
+		List<IndexPlanner.Plan> plans = plan(pats);
+		assertEquals(1, plans.size());
+		assertEquals(Arrays.asList(0, 1, 2), plans.get(0).getComparatorOrder());
+		checkCover(plans, pats);
+	}
+
+	@Test
+	public void testMinimumCover() {
+		// {0} < {0,1} < {0,1,2} and {1} < {1,2}: two chains suffice, but a greedy
+		// choice of {1} < {0,1} would need three.
+		String[] pats = { "bff", "fbf", "bbf", "fbb", "bbb" };
+		List<IndexPlanner.Plan> plans = plan(pats);
+		assertEquals(2, plans.size());
+		checkCover(plans, pats);
+	}
+
+	@Test
+	public void testIncomparable() {
+		String[] pats = { "bff", "fbf", "ffb" };
+		List<IndexPlanner.Plan> plans = plan(pats);
+		assertEquals(3, plans.size());
+		checkCover(plans, pats);
+	}
+
+	@Test
+	public void testIgnoredColumnsKeptApart() {
+		String[] pats = { "bfi", "bbf" };
+		List<IndexPlanner.Plan> plans = plan(pats);
+		assertEquals(2, plans.size());
+		checkCover(plans, pats);
+	}
+
+}
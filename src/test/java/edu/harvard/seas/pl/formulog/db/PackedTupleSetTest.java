@@ -0,0 +1,136 @@
+package edu.harvard.seas.pl.formulog.db;
+
+/*-
+ * #%L
+ * FormuLog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PackedTupleSetTest {
+
+	private static final PackedTupleSet.RowDecoder<int[]> decoder = (block, off) -> new int[] { block[off],
+			block[off + 1] };
+
+	private static List<int[]> toList(Iterable<int[]> rows) {
+		List<int[]> l = new ArrayList<>();
+		for (int[] row : rows) {
+			l.add(row);
+		}
+		return l;
+	}
+
+	@Test
+	public void testAddAndLookupAcrossSplits() {
+		PackedTupleSet s = new PackedTupleSet(2, 2);
+		Random r = new Random(0);
+		int n = 0;
+		for (int i = 0; i < 5000; ++i) {
+			int x = r.nextInt(50);
+			int y = r.nextInt(200);
+			if (!s.contains(new int[] { x, y })) {
+				n++;
+			}
+			s.add(new int[] { x, y });
+		}
+		assertEquals(n, s.size());
+		List<int[]> all = toList(s.getAll(decoder));
+		assertEquals(n, all.size());
+		for (int i = 1; i < all.size(); ++i) {
+			int[] a = all.get(i - 1);
+			int[] b = all.get(i);
+			assertTrue(a[0] < b[0] || (a[0] == b[0] && a[1] < b[1]));
+		}
+		for (int x = 0; x < 50; ++x) {
+			int count = 0;
+			for (int[] row : all) {
+				if (row[0] == x) {
+					count++;
+				}
+			}
+			List<int[]> l = toList(s.lookup(new int[] { x }, 1, decoder));
+			assertEquals(count, l.size());
+			for (int[] row : l) {
+				assertEquals(x, row[0]);
+			}
+		}
+	}
+
+	@Test
+	public void testRemove() {
+		PackedTupleSet s = new PackedTupleSet(2, 2);
+		for (int i = 0; i < 1000; ++i) {
+			s.add(new int[] { i % 10, i });
+		}
+		for (int i = 0; i < 1000; i += 2) {
+			assertTrue(s.remove(new int[] { i % 10, i }));
+		}
+		assertFalse(s.remove(new int[] { 0, 0 }));
+		assertEquals(500, s.size());
+		assertFalse(s.contains(new int[] { 2, 2 }));
+		assertTrue(s.contains(new int[] { 3, 3 }));
+		assertEquals(100, toList(s.lookup(new int[] { 1 }, 1, decoder)).size());
+		assertEquals(0, toList(s.lookup(new int[] { 2 }, 1, decoder)).size());
+		for (int i = 1; i < 1000; i += 2) {
+			assertTrue(s.remove(new int[] { i % 10, i }));
+		}
+		assertTrue(s.isEmpty());
+		assertFalse(s.getAll(decoder).iterator().hasNext());
+	}
+
+	@Test
+	public void testConcurrentAdd() throws InterruptedException {
+		PackedTupleSet s = new PackedTupleSet(2, 1);
+		int nthreads = 4;
+		int perThread = 20000;
+		Thread[] ts = new Thread[nthreads];
+		for (int t = 0; t < nthreads; ++t) {
+			int id = t;
+			ts[t] = new Thread(() -> {
+				// The threads overlap, so that some rows are added more than once.
+				for (int i = 0; i < perThread; ++i) {
+					int x = i * nthreads + id;
+					s.add(new int[] { x / 2, id });
+				}
+			});
+			ts[t].start();
+		}
+		for (Thread t : ts) {
+			t.join();
+		}
+		int expected = nthreads * perThread / 2;
+		assertEquals(expected, s.size());
+		List<int[]> all = toList(s.getAll(decoder));
+		assertEquals(expected, all.size());
+		for (int i = 0; i < expected; ++i) {
+			assertEquals(i, all.get(i)[0]);
+			assertTrue(s.contains(new int[] { i, -1 }));
+		}
+		assertEquals(1, toList(s.lookup(new int[] { 7 }, 1, decoder)).size());
+	}
+
+}
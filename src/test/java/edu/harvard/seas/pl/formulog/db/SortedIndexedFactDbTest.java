@@ -0,0 +1,164 @@
+package edu.harvard.seas.pl.formulog.db;
+
+/*-
+ * #%L
+ * FormuLog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import edu.harvard.seas.pl.formulog.ast.BindingType;
+import edu.harvard.seas.pl.formulog.ast.I32;
+import edu.harvard.seas.pl.formulog.ast.Term;
+import edu.harvard.seas.pl.formulog.db.SortedIndexedFactDb.SortedIndexedFactDbBuilder;
+import edu.harvard.seas.pl.formulog.symbols.RelationSymbol;
+import edu.harvard.seas.pl.formulog.symbols.SymbolManager;
+import edu.harvard.seas.pl.formulog.types.BuiltInTypes;
+import edu.harvard.seas.pl.formulog.types.FunctorType;
+
+public class SortedIndexedFactDbTest {
+
+	private static final BindingType[] bf = { BindingType.BOUND, BindingType.FREE };
+	private static final BindingType[] fb = { BindingType.FREE, BindingType.BOUND };
+
+	private final RelationSymbol edge = new SymbolManager().createRelationSymbol("edge", 2, false,
+			new FunctorType(BuiltInTypes.i32, BuiltInTypes.i32, BuiltInTypes.bool));
+
+	private static Term[] tup(int x, int y) {
+		return new Term[] { I32.make(x), I32.make(y) };
+	}
+
+	private static Set<List<Term>> toSet(Iterable<Term[]> tups) {
+		Set<List<Term>> s = new HashSet<>();
+		for (Term[] tup : tups) {
+			assertTrue("duplicate tuple", s.add(Arrays.asList(tup)));
+		}
+		return s;
+	}
+
+	private static Set<List<Term>> expected(int x, int ys, int except) {
+		Set<List<Term>> s = new HashSet<>();
+		for (int y = 0; y < ys; ++y) {
+			if (y % except != 0) {
+				s.add(Arrays.asList(tup(x, y)));
+			}
+		}
+		return s;
+	}
+
+	private SortedIndexedFactDb db(boolean hashIndexes, int[] idxs) {
+		SortedIndexedFactDbBuilder b = new SortedIndexedFactDbBuilder(Collections.singleton(edge), hashIndexes);
+		idxs[0] = b.makeIndex(edge, bf);
+		idxs[1] = b.makeIndex(edge, fb);
+		return b.build();
+	}
+
+	private void checkLookups(boolean hashIndexes) {
+		int[] idxs = new int[2];
+		SortedIndexedFactDb db = db(hashIndexes, idxs);
+		List<Term[]> all = new ArrayList<>();
+		for (int x = 0; x < 10; ++x) {
+			for (int y = 0; y < 20; ++y) {
+				all.add(tup(x, y));
+			}
+		}
+		assertTrue(db.addAll(edge, all));
+		assertTrue(!db.add(edge, tup(3, 4)));
+		List<Term[]> removed = new ArrayList<>();
+		for (Term[] t : all) {
+			if (((I32) t[1]).getVal() % 3 == 0) {
+				removed.add(t);
+			}
+		}
+		assertTrue(db.removeAll(edge, removed));
+
+		assertEquals(10 * 13, db.countDistinct(edge));
+		assertEquals(10 * 13, toSet(db.getAll(edge)).size());
+		assertTrue(db.hasFact(edge, tup(3, 4)));
+		assertTrue(!db.hasFact(edge, tup(3, 3)));
+		for (int x = 0; x < 10; ++x) {
+			assertEquals(expected(x, 20, 3), toSet(db.get(edge, tup(x, 0), idxs[0])));
+		}
+		for (int y = 0; y < 20; ++y) {
+			Set<List<Term>> s = toSet(db.get(edge, tup(0, y), idxs[1]));
+			assertEquals(y % 3 == 0 ? 0 : 10, s.size());
+		}
+		assertTrue(toSet(db.get(edge, tup(42, 0), idxs[0])).isEmpty());
+	}
+
+	@Test
+	public void testOrderedIndexes() {
+		checkLookups(false);
+	}
+
+	@Test
+	public void testHashIndexes() {
+		checkLookups(true);
+	}
+
+	@Test
+	public void testHashIndexesUnderConcurrentUpdates() throws InterruptedException {
+		int[] idxs = new int[2];
+		SortedIndexedFactDb db = db(true, idxs);
+		int nthreads = 4;
+		int n = 2000;
+		List<Term[]> doomed = new ArrayList<>();
+		for (int y = 0; y < n; ++y) {
+			doomed.add(tup(y % 5, -y - 1));
+		}
+		db.addAll(edge, doomed);
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < nthreads; ++i) {
+			int id = i;
+			threads.add(new Thread(() -> {
+				for (int y = id; y < n; y += nthreads) {
+					db.add(edge, tup(y % 5, y));
+				}
+			}));
+		}
+		threads.add(new Thread(() -> db.removeAll(edge, doomed)));
+		for (Thread t : threads) {
+			t.start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		assertEquals(n, db.countDistinct(edge));
+		int total = 0;
+		for (int x = 0; x < 5; ++x) {
+			for (List<Term> t : toSet(db.get(edge, tup(x, 0), idxs[0]))) {
+				assertEquals(I32.make(x), t.get(0));
+				assertTrue(((I32) t.get(1)).getVal() >= 0);
+				total++;
+			}
+		}
+		assertEquals(n, total);
+	}
+
+}
@@ -795,4 +795,19 @@ public abstract class CommonEvaluationTest<T extends Evaluation> extends Abstrac
 		test("test306_ok.flg");
 	}
 	
+	@Test
+	public void test307() {
+		test("test307_ok.flg");
+	}
+
+	@Test
+	public void test308() {
+		test("test308_ok.flg");
+	}
+
+	@Test
+	public void test309() {
+		test("test309_ok.flg");
+	}
+	
 }
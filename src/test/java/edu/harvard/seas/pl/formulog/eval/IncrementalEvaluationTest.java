@@ -0,0 +1,293 @@
+package edu.harvard.seas.pl.formulog.eval;
+
+/*-
+ * #%L
+ * FormuLog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+import edu.harvard.seas.pl.formulog.ast.I32;
+import edu.harvard.seas.pl.formulog.ast.Term;
+import edu.harvard.seas.pl.formulog.ast.UserPredicate;
+import edu.harvard.seas.pl.formulog.parsing.Parser;
+import edu.harvard.seas.pl.formulog.symbols.RelationSymbol;
+import edu.harvard.seas.pl.formulog.types.TypeChecker;
+import edu.harvard.seas.pl.formulog.types.WellTypedProgram;
+
+/**
+ * Checks that incrementally updated evaluations agree with evaluations of the
+ * updated input from scratch.
+ */
+public class IncrementalEvaluationTest {
+
+	private static final int NODES = 8;
+
+	// Covers a linear and a non-linear recursive stratum, a stratum that negates a
+	// recursive relation, and one that aggregates over it.
+	private static final String RULES = String.join("\n", //
+			"input node(i32).", //
+			"input edge(i32, i32).", //
+			"input start(i32).", //
+			"output path(i32, i32).", //
+			"output path2(i32, i32).", //
+			"output reach(i32).", //
+			"output unreach(i32, i32).", //
+			"output reached(i32).", //
+			"fun len(Xs: i32 list) : i32 =", //
+			"  match Xs with", //
+			"  | [] => 0", //
+			"  | _ :: Xs => 1 + len(Xs)", //
+			"  end", //
+			"path(X, Y) :- edge(X, Y).", //
+			"path(X, Z) :- path(X, Y), edge(Y, Z).", //
+			"path2(X, Y) :- edge(X, Y).", //
+			"path2(X, Z) :- path2(X, Y), path2(Y, Z).", //
+			"reach(X) :- start(X).", //
+			"reach(Y) :- reach(X), edge(X, Y).", //
+			"unreach(X, Y) :- node(X), node(Y), !path(X, Y).", //
+			"reached(N) :- N = len(reach(??)).", //
+			"");
+
+	private static String program(Set<List<Integer>> edges, Set<Integer> starts) {
+		StringBuilder sb = new StringBuilder(RULES);
+		for (int i = 0; i < NODES; ++i) {
+			sb.append("node(" + i + ").\n");
+		}
+		for (List<Integer> e : edges) {
+			sb.append("edge(" + e.get(0) + ", " + e.get(1) + ").\n");
+		}
+		for (Integer s : starts) {
+			sb.append("start(" + s + ").\n");
+		}
+		return sb.toString();
+	}
+
+	private static SemiNaiveEvaluation evaluate(String text, boolean eager, boolean incremental) throws Exception {
+		WellTypedProgram prog = new TypeChecker(new Parser().parse(new StringReader(text))).typeCheck();
+		SemiNaiveEvaluation eval = SemiNaiveEvaluation.setup(prog, 2, eager, incremental);
+		eval.run();
+		return eval;
+	}
+
+	private static Map<String, Set<String>> facts(SemiNaiveEvaluation eval) {
+		Map<String, Set<String>> m = new TreeMap<>();
+		EvaluationResult res = eval.getResult();
+		for (RelationSymbol sym : res.getSymbols()) {
+			Set<String> s = new TreeSet<>();
+			for (UserPredicate fact : res.getAll(sym)) {
+				s.add(fact.toString());
+			}
+			m.put(sym.toString(), s);
+		}
+		return m;
+	}
+
+	private static RelationSymbol lookup(SemiNaiveEvaluation eval, String name) {
+		return (RelationSymbol) eval.getInputProgram().getSymbolManager().lookupSymbol(name);
+	}
+
+	private static Term[] tuple(int... xs) {
+		Term[] tup = new Term[xs.length];
+		for (int i = 0; i < xs.length; ++i) {
+			tup[i] = I32.make(xs[i]);
+		}
+		return tup;
+	}
+
+	private static Set<List<Integer>> edges(int... xs) {
+		Set<List<Integer>> s = new LinkedHashSet<>();
+		for (int i = 0; i < xs.length; i += 2) {
+			s.add(Arrays.asList(xs[i], xs[i + 1]));
+		}
+		return s;
+	}
+
+	/*
+	 * Applies the changes to an incremental evaluation of the original input, and
+	 * checks the result against an evaluation of the updated input.
+	 */
+	private static SemiNaiveEvaluation check(Set<List<Integer>> edges, Set<Integer> starts,
+			Map<String, List<Term[]>> additions, Map<String, List<Term[]>> retractions,
+			Set<List<Integer>> newEdges, Set<Integer> newStarts, boolean eager) throws Exception {
+		SemiNaiveEvaluation inc = evaluate(program(edges, starts), eager, true);
+		inc.update(bySymbol(inc, additions), bySymbol(inc, retractions));
+		SemiNaiveEvaluation fresh = evaluate(program(newEdges, newStarts), eager, false);
+		assertEquals(facts(fresh), facts(inc));
+		return inc;
+	}
+
+	private static Map<RelationSymbol, List<Term[]>> bySymbol(SemiNaiveEvaluation eval, Map<String, List<Term[]>> m) {
+		Map<RelationSymbol, List<Term[]>> m2 = new HashMap<>();
+		for (Map.Entry<String, List<Term[]>> e : m.entrySet()) {
+			m2.put(lookup(eval, e.getKey()), e.getValue());
+		}
+		return m2;
+	}
+
+	private static Map<String, List<Term[]>> changes(String sym, Term[]... tups) {
+		return Collections.singletonMap(sym, Arrays.asList(tups));
+	}
+
+	private static boolean holds(SemiNaiveEvaluation eval, String fact) {
+		for (Set<String> s : facts(eval).values()) {
+			if (s.contains(fact)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void testAdditions(boolean eager) throws Exception {
+		check(edges(0, 1, 2, 3), Collections.singleton(0), changes("edge", tuple(1, 2), tuple(3, 0)),
+				Collections.emptyMap(), edges(0, 1, 2, 3, 1, 2, 3, 0), Collections.singleton(0), eager);
+	}
+
+	private void testRetractions(boolean eager) throws Exception {
+		SemiNaiveEvaluation inc = check(edges(0, 1, 1, 2, 2, 3, 3, 0), Collections.singleton(0),
+				Collections.emptyMap(), changes("edge", tuple(1, 2)), edges(0, 1, 2, 3, 3, 0),
+				Collections.singleton(0), eager);
+		assertFalse(holds(inc, "path(0, 2)"));
+		assertTrue(holds(inc, "unreach(0, 2)"));
+		assertTrue(holds(inc, "reached(2)"));
+	}
+
+	private void testAddedAndRetracted(boolean eager) throws Exception {
+		// Retractions are applied first, so the edge is present afterwards whether
+		// or not it was to begin with.
+		Map<String, List<Term[]>> both = changes("edge", tuple(1, 2));
+		SemiNaiveEvaluation inc = check(edges(0, 1, 1, 2), Collections.singleton(0), both, both,
+				edges(0, 1, 1, 2), Collections.singleton(0), eager);
+		assertTrue(holds(inc, "path(0, 2)"));
+		inc = check(edges(0, 1), Collections.singleton(0), both, both, edges(0, 1, 1, 2),
+				Collections.singleton(0), eager);
+		assertTrue(holds(inc, "reached(3)"));
+	}
+
+	/*
+	 * Applies a long sequence of random changes to a single incremental
+	 * evaluation, comparing it to a fresh evaluation after each one.
+	 */
+	private void testRandomUpdates(boolean eager, long seed) throws Exception {
+		Random rand = new Random(seed);
+		Set<List<Integer>> edges = new LinkedHashSet<>();
+		for (int i = 0; i < NODES; ++i) {
+			edges.add(Arrays.asList(rand.nextInt(NODES), rand.nextInt(NODES)));
+		}
+		Set<Integer> starts = new LinkedHashSet<>(Collections.singleton(0));
+		SemiNaiveEvaluation inc = evaluate(program(edges, starts), eager, true);
+		RelationSymbol edge = lookup(inc, "edge");
+		RelationSymbol start = lookup(inc, "start");
+		for (int round = 0; round < 25; ++round) {
+			Map<RelationSymbol, List<Term[]>> additions = new HashMap<>();
+			Map<RelationSymbol, List<Term[]>> retractions = new HashMap<>();
+			List<Term[]> addedEdges = new ArrayList<>();
+			List<Term[]> retractedEdges = new ArrayList<>();
+			Set<List<Integer>> added = new LinkedHashSet<>();
+			int n = rand.nextInt(4);
+			for (int i = 0; i < n; ++i) {
+				int x = rand.nextInt(NODES);
+				int y = rand.nextInt(NODES);
+				if (rand.nextBoolean()) {
+					addedEdges.add(tuple(x, y));
+					added.add(Arrays.asList(x, y));
+				} else {
+					retractedEdges.add(tuple(x, y));
+					edges.remove(Arrays.asList(x, y));
+				}
+			}
+			edges.addAll(added);
+			additions.put(edge, addedEdges);
+			retractions.put(edge, retractedEdges);
+			if (rand.nextInt(4) == 0) {
+				int x = rand.nextInt(NODES);
+				if (rand.nextBoolean()) {
+					additions.put(start, Collections.singletonList(tuple(x)));
+					starts.add(x);
+				} else {
+					retractions.put(start, Collections.singletonList(tuple(x)));
+					starts.remove(x);
+				}
+			}
+			inc.update(additions, retractions);
+			SemiNaiveEvaluation fresh = evaluate(program(edges, starts), eager, false);
+			assertEquals("after update " + round, facts(fresh), facts(inc));
+		}
+	}
+
+	@Test
+	public void testAdditions() throws Exception {
+		testAdditions(false);
+	}
+
+	@Test
+	public void testRetractions() throws Exception {
+		testRetractions(false);
+	}
+
+	@Test
+	public void testAddedAndRetracted() throws Exception {
+		testAddedAndRetracted(false);
+	}
+
+	@Test
+	public void testRandomUpdates() throws Exception {
+		testRandomUpdates(false, 0);
+		testRandomUpdates(false, 1);
+	}
+
+	@Test
+	public void testEagerAdditions() throws Exception {
+		testAdditions(true);
+	}
+
+	@Test
+	public void testEagerRetractions() throws Exception {
+		testRetractions(true);
+	}
+
+	@Test
+	public void testEagerAddedAndRetracted() throws Exception {
+		testAddedAndRetracted(true);
+	}
+
+	@Test
+	public void testEagerRandomUpdates() throws Exception {
+		testRandomUpdates(true, 0);
+		testRandomUpdates(true, 1);
+	}
+
+}
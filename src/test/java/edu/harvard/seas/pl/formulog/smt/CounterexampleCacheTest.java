@@ -0,0 +1,204 @@
+package edu.harvard.seas.pl.formulog.smt;
+
+/*-
+ * #%L
+ * FormuLog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import edu.harvard.seas.pl.formulog.ast.Constructor;
+import edu.harvard.seas.pl.formulog.ast.Constructors;
+import edu.harvard.seas.pl.formulog.ast.Constructors.SolverVariable;
+import edu.harvard.seas.pl.formulog.ast.I32;
+import edu.harvard.seas.pl.formulog.ast.I64;
+import edu.harvard.seas.pl.formulog.ast.Model;
+import edu.harvard.seas.pl.formulog.ast.Program;
+import edu.harvard.seas.pl.formulog.ast.SmtLibTerm;
+import edu.harvard.seas.pl.formulog.ast.Term;
+import edu.harvard.seas.pl.formulog.ast.Terms;
+import edu.harvard.seas.pl.formulog.ast.UserPredicate;
+import edu.harvard.seas.pl.formulog.eval.SemiNaiveEvaluation;
+import edu.harvard.seas.pl.formulog.parsing.Parser;
+import edu.harvard.seas.pl.formulog.smt.SmtLibShim.SmtStatus;
+import edu.harvard.seas.pl.formulog.symbols.ConstructorSymbol;
+import edu.harvard.seas.pl.formulog.symbols.RelationSymbol;
+import edu.harvard.seas.pl.formulog.types.TypeChecker;
+import edu.harvard.seas.pl.formulog.types.WellTypedProgram;
+import edu.harvard.seas.pl.formulog.util.Pair;
+
+public class CounterexampleCacheTest {
+
+	private static final Map<String, SmtLibTerm> formulas = new HashMap<>();
+	private static SolverVariable x;
+	private static SolverVariable y;
+	private static SolverVariable z;
+	private static SolverVariable s;
+	private static Term circle3;
+	private static Term dot;
+
+	@BeforeClass
+	public static void setup() throws Exception {
+		String text = String.join("\n", //
+				"type shape = circle(i32) | dot.", //
+				"output phi(string, bool smt).", //
+				"phi(\"x\", `#{\"x\"}[bv[32]] #= 5`).", //
+				"phi(\"x_wraps\", `bv_ult(bv_add(#{\"x\"}[bv[32]], 1), #{\"x\"}[bv[32]])`).", //
+				"phi(\"y\", `bv_slt(#{\"y\"}[bv[64]], 0L)`).", //
+				"phi(\"z\", `#{\"z\"}[bv[16]] #= bv_const[16](5)`).", //
+				"phi(\"z_wraps\", `~bv_ult(bv_add(#{\"z\"}[bv[16]], #{\"z\"}[bv[16]]), #{\"z\"}[bv[16]])`).", //
+				"phi(\"s\", `#{\"s\"}[shape] #= circle(3)`).", //
+				"phi(\"q\", `#{\"q\"}[bv[32]] #= 1`).");
+		WellTypedProgram p = new TypeChecker(new Parser().parse(new StringReader(text))).typeCheck();
+		SemiNaiveEvaluation eval = SemiNaiveEvaluation.setup(p, 1, false);
+		eval.run();
+		Program<?, ?> prog = eval.getInputProgram();
+		RelationSymbol phi = (RelationSymbol) prog.getSymbolManager().lookupSymbol("phi");
+		for (UserPredicate fact : eval.getResult().getAll(phi)) {
+			String name = fact.getArgs()[0].toString().replace("\"", "");
+			formulas.put(name, (SmtLibTerm) fact.getArgs()[1]);
+		}
+		assertEquals(7, formulas.size());
+		x = var("x");
+		y = var("y");
+		z = var("z");
+		s = var("s");
+		circle3 = ((Constructor) formulas.get("s")).getArgs()[1];
+		dot = Constructors.make((ConstructorSymbol) prog.getSymbolManager().lookupSymbol("dot"), Terms.emptyArray());
+	}
+
+	private static SolverVariable var(String name) {
+		return (SolverVariable) ((Constructor) formulas.get(name)).getArgs()[0];
+	}
+
+	private static List<SmtLibTerm> query(String... names) {
+		SmtLibTerm[] conjuncts = new SmtLibTerm[names.length];
+		for (int i = 0; i < names.length; ++i) {
+			conjuncts[i] = formulas.get(names[i]);
+		}
+		return Arrays.asList(conjuncts);
+	}
+
+	private static Pair<SmtStatus, Model> sat(SolverVariable v, Term val) {
+		return new Pair<>(SmtStatus.SATISFIABLE, Model.make(Collections.singletonMap(v, val)));
+	}
+
+	private static void assertHit(SmtStatus status, Pair<SmtStatus, Model> res) {
+		assertEquals(status, res.fst());
+	}
+
+	@Test
+	public void testModelHits() {
+		CounterexampleCache cache = new CounterexampleCache(8, 8);
+		Pair<SmtStatus, Model> res = sat(x, I32.make(5));
+		cache.record(query("x"), res);
+		assertHit(SmtStatus.SATISFIABLE, cache.lookup(query("x")));
+		assertSame(res.snd(), cache.lookup(query("x")).snd());
+	}
+
+	@Test
+	public void testModelMisses() {
+		CounterexampleCache cache = new CounterexampleCache(8, 8);
+		assertNull(cache.lookup(query("x")));
+		cache.record(query("x"), sat(x, I32.make(5)));
+		assertNull(cache.lookup(query("x_wraps")));
+		assertNull(cache.lookup(query("x", "x_wraps")));
+	}
+
+	@Test
+	public void testBitVectorsWrapAround() {
+		CounterexampleCache cache = new CounterexampleCache(8, 8);
+		cache.record(query("x_wraps"), sat(x, I32.make(-1)));
+		assertHit(SmtStatus.SATISFIABLE, cache.lookup(query("x_wraps")));
+		cache.record(query("y"), sat(y, I64.make(-1L)));
+		assertHit(SmtStatus.SATISFIABLE, cache.lookup(query("y")));
+		assertNull(cache.lookup(query("x", "y")));
+	}
+
+	@Test
+	public void testAlgebraicDataTypes() {
+		CounterexampleCache cache = new CounterexampleCache(8, 8);
+		cache.record(query("s"), sat(s, dot));
+		assertNull(cache.lookup(query("s")));
+		cache.record(query("s"), sat(s, circle3));
+		assertHit(SmtStatus.SATISFIABLE, cache.lookup(query("s")));
+	}
+
+	@Test
+	public void testUnassignedVariablesMiss() {
+		CounterexampleCache cache = new CounterexampleCache(8, 8);
+		cache.record(query("x"), sat(x, I32.make(5)));
+		assertNull(cache.lookup(query("q")));
+		assertNull(cache.lookup(query("x", "q")));
+	}
+
+	@Test
+	public void testUnsupportedWidthsMiss() {
+		CounterexampleCache cache = new CounterexampleCache(8, 8);
+		// As a 32-bit value, z + z does not wrap around, which would make the
+		// negated comparison hold; as a 16-bit value it wraps around to 0.
+		cache.record(query("z_wraps"), sat(z, I32.make(0x8000)));
+		assertNull(cache.lookup(query("z_wraps")));
+		cache.record(query("z"), sat(z, I32.make(5)));
+		assertNull(cache.lookup(query("z")));
+	}
+
+	@Test
+	public void testUnsatHits() {
+		CounterexampleCache cache = new CounterexampleCache(8, 8);
+		cache.record(query("x", "y"), new Pair<>(SmtStatus.UNSATISFIABLE, null));
+		assertHit(SmtStatus.UNSATISFIABLE, cache.lookup(query("x", "y")));
+		assertHit(SmtStatus.UNSATISFIABLE, cache.lookup(query("s", "y", "x")));
+		assertNull(cache.lookup(query("x")));
+		assertNull(cache.lookup(query("y", "s")));
+	}
+
+	@Test
+	public void testUnknownIsNotRecorded() {
+		CounterexampleCache cache = new CounterexampleCache(8, 8);
+		cache.record(query("x"), new Pair<>(SmtStatus.UNKNOWN, null));
+		assertNull(cache.lookup(query("x")));
+	}
+
+	@Test
+	public void testCapacity() {
+		CounterexampleCache cache = new CounterexampleCache(1, 1);
+		cache.record(query("x"), sat(x, I32.make(5)));
+		cache.record(query("s"), sat(s, circle3));
+		assertNull(cache.lookup(query("x")));
+		assertHit(SmtStatus.SATISFIABLE, cache.lookup(query("s")));
+		cache.record(query("x", "y"), new Pair<>(SmtStatus.UNSATISFIABLE, null));
+		cache.record(query("q"), new Pair<>(SmtStatus.UNSATISFIABLE, null));
+		assertNull(cache.lookup(query("x", "y")));
+		assertHit(SmtStatus.UNSATISFIABLE, cache.lookup(query("q")));
+	}
+
+}
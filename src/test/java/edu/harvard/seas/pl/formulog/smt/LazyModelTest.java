@@ -0,0 +1,86 @@
+package edu.harvard.seas.pl.formulog.smt;
+
+/*-
+ * #%L
+ * FormuLog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import edu.harvard.seas.pl.formulog.ast.BoolTerm;
+import edu.harvard.seas.pl.formulog.ast.Constructors;
+import edu.harvard.seas.pl.formulog.ast.Constructors.SolverVariable;
+import edu.harvard.seas.pl.formulog.ast.Term;
+import edu.harvard.seas.pl.formulog.ast.Terms;
+import edu.harvard.seas.pl.formulog.eval.UncheckedEvaluationException;
+import edu.harvard.seas.pl.formulog.symbols.GlobalSymbolManager;
+import edu.harvard.seas.pl.formulog.symbols.SymbolManager;
+import edu.harvard.seas.pl.formulog.symbols.parameterized.BuiltInConstructorSymbolBase;
+import edu.harvard.seas.pl.formulog.symbols.parameterized.Param;
+import edu.harvard.seas.pl.formulog.symbols.parameterized.ParamKind;
+import edu.harvard.seas.pl.formulog.symbols.parameterized.ParameterizedConstructorSymbol;
+import edu.harvard.seas.pl.formulog.types.BuiltInTypes;
+
+public class LazyModelTest {
+
+	private static SolverVariable boolVar(int id) {
+		ParameterizedConstructorSymbol sym = GlobalSymbolManager
+				.getParameterizedSymbol(BuiltInConstructorSymbolBase.SMT_VAR);
+		sym = sym.copyWithNewArgs(Param.wildCard(), new Param(BuiltInTypes.bool, ParamKind.PRE_SMT_TYPE));
+		return (SolverVariable) Constructors.make(sym, Terms.singletonArray(Terms.makeDummyTerm(id)));
+	}
+
+	private static LazyModel model(Map<SolverVariable, String> defs) {
+		return new LazyModel(new SmtLibParser(new SymbolManager(), Collections.emptyMap()), defs);
+	}
+
+	@Test
+	public void testParsesOnLookup() {
+		SolverVariable x = boolVar(0);
+		Map<SolverVariable, String> defs = new HashMap<>();
+		defs.put(x, "(define-fun x () Bool true)");
+		LazyModel m = model(defs);
+		assertTrue(m.containsKey(x));
+		assertEquals(BoolTerm.mkTrue(), m.get(x));
+		assertEquals(null, m.get(boolVar(1)));
+	}
+
+	@Test
+	public void testParseFailureIsAnEvaluationError() {
+		SolverVariable x = boolVar(0);
+		Map<SolverVariable, String> defs = new HashMap<>();
+		defs.put(x, "(define-fun x () Bool (");
+		LazyModel m = model(defs);
+		try {
+			Term t = m.get(x);
+			fail("Parsed malformed value as " + t);
+		} catch (UncheckedEvaluationException e) {
+			assertTrue(e.getMessage().startsWith("Problem parsing Z3 output"));
+		}
+	}
+
+}
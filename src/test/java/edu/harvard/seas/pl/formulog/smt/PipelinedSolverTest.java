@@ -0,0 +1,208 @@
+package edu.harvard.seas.pl.formulog.smt;
+
+/*-
+ * #%L
+ * FormuLog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import edu.harvard.seas.pl.formulog.ast.Program;
+import edu.harvard.seas.pl.formulog.eval.EvaluationException;
+import edu.harvard.seas.pl.formulog.eval.SemiNaiveEvaluation;
+import edu.harvard.seas.pl.formulog.parsing.Parser;
+import edu.harvard.seas.pl.formulog.smt.SmtLibShim.SmtStatus;
+import edu.harvard.seas.pl.formulog.types.TypeChecker;
+import edu.harvard.seas.pl.formulog.types.WellTypedProgram;
+
+public class PipelinedSolverTest {
+
+	private static Program<?, ?> prog;
+
+	@BeforeClass
+	public static void setup() throws Exception {
+		WellTypedProgram p = new TypeChecker(new Parser().parse(new StringReader("output ok. ok."))).typeCheck();
+		prog = SemiNaiveEvaluation.setup(p, 1, false).getInputProgram();
+	}
+
+	/*
+	 * Stands in for a solver process: it prints the given responses, but only
+	 * once the gate is opened.
+	 */
+	private static class FakeProcess extends Process {
+
+		final ByteArrayOutputStream commands = new ByteArrayOutputStream();
+		final CountDownLatch gate = new CountDownLatch(1);
+		final InputStream responses;
+		volatile boolean alive = true;
+
+		FakeProcess(String responses) {
+			ByteArrayInputStream data = new ByteArrayInputStream(responses.getBytes(StandardCharsets.UTF_8));
+			this.responses = new InputStream() {
+
+				@Override
+				public int read() throws IOException {
+					await();
+					return data.read();
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					await();
+					return data.read(b, off, len);
+				}
+
+			};
+		}
+
+		void await() throws IOException {
+			try {
+				gate.await();
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+		}
+
+		synchronized int countChecks() {
+			String s = new String(commands.toByteArray(), StandardCharsets.UTF_8);
+			int n = 0;
+			for (int i = s.indexOf("check-sat-assuming"); i >= 0; i = s.indexOf("check-sat-assuming", i + 1)) {
+				n++;
+			}
+			return n;
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return new OutputStream() {
+
+				@Override
+				public void write(int b) {
+					synchronized (FakeProcess.this) {
+						commands.write(b);
+					}
+				}
+
+			};
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return responses;
+		}
+
+		@Override
+		public InputStream getErrorStream() {
+			return new ByteArrayInputStream(new byte[0]);
+		}
+
+		@Override
+		public int waitFor() {
+			return 0;
+		}
+
+		@Override
+		public int exitValue() {
+			return 0;
+		}
+
+		@Override
+		public void destroy() {
+			alive = false;
+		}
+
+		@Override
+		public boolean isAlive() {
+			return alive;
+		}
+
+	}
+
+	@Test
+	public void testResultsMatchQueries() throws Exception {
+		FakeProcess proc = new FakeProcess("sat\nunsat\n");
+		PipelinedSolver solver = new PipelinedSolver();
+		solver.start(prog, () -> proc);
+		proc.gate.countDown();
+		assertEquals(SmtStatus.SATISFIABLE, solver.check(Collections.emptyList(), false, 100).fst());
+		assertEquals(SmtStatus.UNSATISFIABLE, solver.check(Collections.emptyList(), false, 100).fst());
+		assertFalse(solver.hasFailed());
+	}
+
+	@Test
+	public void testBadResponseFailsWholePipeline() throws Exception {
+		FakeProcess proc = new FakeProcess("bogus\nsat\nunsat\n");
+		PipelinedSolver solver = new PipelinedSolver();
+		solver.start(prog, () -> proc);
+		int n = 3;
+		Object[] results = new Object[n];
+		Thread[] threads = new Thread[n];
+		for (int i = 0; i < n; ++i) {
+			int j = i;
+			threads[i] = new Thread(() -> {
+				try {
+					results[j] = solver.check(Collections.emptyList(), false, 100).fst();
+				} catch (EvaluationException e) {
+					results[j] = e;
+				}
+			});
+			threads[i].start();
+		}
+		long deadline = System.currentTimeMillis() + 10000;
+		while (proc.countChecks() < n) {
+			assertTrue("queries were not all sent", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+		// All three queries are in the pipeline; the first response is garbage, so
+		// the other two cannot be trusted either.
+		proc.gate.countDown();
+		for (Thread t : threads) {
+			t.join(10000);
+			assertFalse(t.isAlive());
+		}
+		for (Object res : results) {
+			assertTrue("expected a failure, but got " + res, res instanceof EvaluationException);
+		}
+		assertTrue(solver.hasFailed());
+		assertFalse(proc.isAlive());
+		try {
+			solver.check(Collections.emptyList(), false, 100);
+			fail("a failed solver accepted a query");
+		} catch (EvaluationException e) {
+			// expected
+		}
+	}
+
+}
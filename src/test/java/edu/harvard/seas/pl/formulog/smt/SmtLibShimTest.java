@@ -0,0 +1,183 @@
+package edu.harvard.seas.pl.formulog.smt;
+
+/*-
+ * #%L
+ * FormuLog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import edu.harvard.seas.pl.formulog.ast.I32;
+import edu.harvard.seas.pl.formulog.ast.Program;
+import edu.harvard.seas.pl.formulog.ast.SmtLibTerm;
+import edu.harvard.seas.pl.formulog.ast.UserPredicate;
+import edu.harvard.seas.pl.formulog.eval.SemiNaiveEvaluation;
+import edu.harvard.seas.pl.formulog.parsing.Parser;
+import edu.harvard.seas.pl.formulog.symbols.RelationSymbol;
+import edu.harvard.seas.pl.formulog.types.TypeChecker;
+import edu.harvard.seas.pl.formulog.types.WellTypedProgram;
+
+public class SmtLibShimTest {
+
+	private static final String BAR = "(declare-datatypes ( (|bar| 0) )";
+	private static final String FOO = "(declare-datatypes ( (|foo| 0) )";
+	private static final String BAZ = "(declare-datatypes ( (|baz| 0) )";
+	private static final String U = "(declare-fun |u| ";
+
+	private static Program<?, ?> prog;
+	private static final Map<String, SmtLibTerm> formulas = new HashMap<>();
+
+	@BeforeClass
+	public static void setup() throws Exception {
+		String text = String.join("\n", //
+				"type bar = c | d.", //
+				"type foo = e | f(bar).", //
+				"type baz = g | h(baz).", //
+				"uninterpreted fun u(bv[32] smt) : bool smt.", //
+				"output phi(string, bool smt).", //
+				"phi(\"bv\", `#{\"y\"}[bv[32]] #= 1`).", //
+				"phi(\"foo\", `#{\"x\"}[foo] #= f(c)`).", //
+				"phi(\"u\", `u(#{\"y\"}[bv[32]])`).", //
+				"phi(\"shared\", `bv_add(bv_add(#{\"y\"}[bv[32]], 1), bv_add(#{\"y\"}[bv[32]], 1)) #= 4`).", //
+				"phi(\"mixed\", `#{\"z\"}[bv[32]] #= 1 /\\ u(#{\"z\"}[bv[32]])`).");
+		WellTypedProgram p = new TypeChecker(new Parser().parse(new StringReader(text))).typeCheck();
+		SemiNaiveEvaluation eval = SemiNaiveEvaluation.setup(p, 1, false);
+		eval.run();
+		prog = eval.getInputProgram();
+		RelationSymbol phi = (RelationSymbol) prog.getSymbolManager().lookupSymbol("phi");
+		for (UserPredicate fact : eval.getResult().getAll(phi)) {
+			String name = fact.getArgs()[0].toString().replace("\"", "");
+			formulas.put(name, (SmtLibTerm) fact.getArgs()[1]);
+		}
+		assertEquals(5, formulas.size());
+	}
+
+	private static int count(StringWriter sw, String s) {
+		String text = sw.toString();
+		int n = 0;
+		for (int i = text.indexOf(s); i >= 0; i = text.indexOf(s, i + 1)) {
+			n++;
+		}
+		return n;
+	}
+
+	@Test
+	public void testEagerDeclarationsComeFirst() {
+		StringWriter sw = new StringWriter();
+		SmtLibShim shim = new SmtLibShim(null, sw, prog, false);
+		assertEquals(SmtLibShim.getDeclarations(prog), sw.toString());
+		int before = sw.toString().length();
+		shim.makeAssertion(formulas.get("foo"));
+		shim.makeAssertion(formulas.get("u"));
+		assertTrue(!sw.toString().substring(before).contains("(declare-datatypes"));
+		assertTrue(!sw.toString().substring(before).contains(U));
+	}
+
+	@Test
+	public void testLazyDeclarationsOnlyWhenNeeded() {
+		StringWriter sw = new StringWriter();
+		SmtLibShim shim = new SmtLibShim(null, sw, prog, true);
+		assertEquals("", sw.toString());
+		shim.makeAssertion(formulas.get("bv"));
+		assertEquals(0, count(sw, "(declare-datatypes"));
+		assertEquals(0, count(sw, U));
+		shim.makeAssertion(formulas.get("foo"));
+		assertEquals(1, count(sw, FOO));
+		// A sort is declared after the sorts it refers to.
+		assertEquals(1, count(sw, BAR));
+		assertTrue(sw.toString().indexOf(BAR) < sw.toString().indexOf(FOO));
+		shim.makeAssertion(formulas.get("u"));
+		assertEquals(1, count(sw, U));
+		shim.makeAssertion(formulas.get("foo"));
+		shim.makeAssertion(formulas.get("u"));
+		assertEquals(1, count(sw, FOO));
+		assertEquals(1, count(sw, BAR));
+		assertEquals(1, count(sw, U));
+		assertEquals(0, count(sw, BAZ));
+	}
+
+	@Test
+	public void testLazyDeclarationsMadeAgainAfterPop() {
+		StringWriter sw = new StringWriter();
+		SmtLibShim shim = new SmtLibShim(null, sw, prog, true);
+		shim.push();
+		shim.makeAssertion(formulas.get("foo"));
+		shim.pop();
+		assertEquals(1, count(sw, FOO));
+		shim.makeAssertion(formulas.get("foo"));
+		assertEquals(2, count(sw, FOO));
+		assertEquals(2, count(sw, BAR));
+		// Declarations made outside a frame survive it.
+		shim.push();
+		shim.makeAssertion(formulas.get("foo"));
+		shim.pop();
+		shim.makeAssertion(formulas.get("foo"));
+		assertEquals(2, count(sw, FOO));
+	}
+
+	@Test
+	public void testCanonicalizeDoesNotDependOnSerialCache() {
+		for (boolean lazy : new boolean[] { true, false }) {
+			SmtLibShim shim = new SmtLibShim(null, new StringWriter(), prog, lazy, true, 16);
+			List<SmtLibTerm> conjuncts = Arrays.asList(formulas.get("mixed"), formulas.get("foo"));
+			String first = shim.canonicalize(conjuncts);
+			// The second time around, both serializations come from the cache.
+			String second = shim.canonicalize(conjuncts);
+			assertEquals(first, second);
+			SmtLibShim uncached = new SmtLibShim(null, new StringWriter(), prog, lazy, true, 0);
+			assertEquals(first, uncached.canonicalize(conjuncts));
+		}
+	}
+
+	@Test
+	public void testSharedSubtermsPrintedOnce() {
+		StringWriter sw = new StringWriter();
+		SmtLibShim shim = new SmtLibShim(null, sw, prog, true, true, 0);
+		shim.makeAssertion(formulas.get("shared"));
+		assertEquals(1, count(sw, "(let ("));
+		assertEquals(2, count(sw, "bvadd"));
+		sw = new StringWriter();
+		shim = new SmtLibShim(null, sw, prog, true, false, 0);
+		shim.makeAssertion(formulas.get("shared"));
+		assertEquals(0, count(sw, "(let ("));
+		assertEquals(3, count(sw, "bvadd"));
+	}
+
+	@Test
+	public void testLazyDeclarationsMadeAgainAfterReset() {
+		StringWriter sw = new StringWriter();
+		SmtLibShim shim = new SmtLibShim(null, sw, prog, true);
+		shim.makeAssertion(formulas.get("u"));
+		shim.reset();
+		shim.makeAssertion(formulas.get("u"));
+		assertEquals(2, count(sw, U));
+	}
+
+}
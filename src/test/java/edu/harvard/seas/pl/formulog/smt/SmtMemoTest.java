@@ -0,0 +1,216 @@
+package edu.harvard.seas.pl.formulog.smt;
+
+/*-
+ * #%L
+ * FormuLog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import edu.harvard.seas.pl.formulog.ast.BoolTerm;
+import edu.harvard.seas.pl.formulog.ast.Constructors;
+import edu.harvard.seas.pl.formulog.ast.Constructors.SolverVariable;
+import edu.harvard.seas.pl.formulog.ast.Model;
+import edu.harvard.seas.pl.formulog.ast.SmtLibTerm;
+import edu.harvard.seas.pl.formulog.ast.Term;
+import edu.harvard.seas.pl.formulog.ast.Terms;
+import edu.harvard.seas.pl.formulog.eval.EvaluationException;
+import edu.harvard.seas.pl.formulog.smt.SmtLibShim.SmtStatus;
+import edu.harvard.seas.pl.formulog.symbols.BuiltInConstructorSymbol;
+import edu.harvard.seas.pl.formulog.symbols.GlobalSymbolManager;
+import edu.harvard.seas.pl.formulog.symbols.parameterized.BuiltInConstructorSymbolBase;
+import edu.harvard.seas.pl.formulog.symbols.parameterized.Param;
+import edu.harvard.seas.pl.formulog.symbols.parameterized.ParamKind;
+import edu.harvard.seas.pl.formulog.symbols.parameterized.ParameterizedConstructorSymbol;
+import edu.harvard.seas.pl.formulog.types.BuiltInTypes;
+import edu.harvard.seas.pl.formulog.util.Pair;
+
+public class SmtMemoTest {
+
+	/*
+	 * Stands in for the solver: every query is satisfiable (with every variable
+	 * true) unless it mentions one of the unsatisfiable terms.
+	 */
+	private static class FakeSmtManager extends AbstractSmtManager {
+
+		final List<Set<SmtLibTerm>> queries = new ArrayList<>();
+		final List<Integer> timeouts = new ArrayList<>();
+		final Set<SmtLibTerm> unsat = new HashSet<>();
+		long delay;
+
+		@Override
+		public synchronized Pair<SmtStatus, Map<SolverVariable, Term>> check(List<SmtLibTerm> conjuncts,
+				boolean getModel, int timeout) throws EvaluationException {
+			queries.add(new HashSet<>(conjuncts));
+			timeouts.add(timeout);
+			if (delay > 0) {
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException e) {
+					throw new EvaluationException(e);
+				}
+			}
+			if (!Collections.disjoint(conjuncts, unsat)) {
+				return new Pair<>(SmtStatus.UNSATISFIABLE, null);
+			}
+			Map<SolverVariable, Term> m = null;
+			if (getModel) {
+				m = new HashMap<>();
+				for (SmtLibTerm t : conjuncts) {
+					for (SolverVariable x : t.freeVars()) {
+						m.put(x, BoolTerm.mkTrue());
+					}
+				}
+			}
+			return new Pair<>(SmtStatus.SATISFIABLE, m);
+		}
+
+	}
+
+	private static int nextId = 0;
+
+	private static synchronized SolverVariable var() {
+		ParameterizedConstructorSymbol sym = GlobalSymbolManager
+				.getParameterizedSymbol(BuiltInConstructorSymbolBase.SMT_VAR);
+		sym = sym.copyWithNewArgs(Param.wildCard(), new Param(BuiltInTypes.bool, ParamKind.PRE_SMT_TYPE));
+		return (SolverVariable) Constructors.make(sym, Terms.singletonArray(Terms.makeDummyTerm(nextId++)));
+	}
+
+	private static SmtLibTerm and(SmtLibTerm a, SmtLibTerm b) {
+		return (SmtLibTerm) Constructors.make(BuiltInConstructorSymbol.SMT_AND, new Term[] { a, b });
+	}
+
+	private static SmtLibTerm imp(SmtLibTerm a, SmtLibTerm b) {
+		return (SmtLibTerm) Constructors.make(BuiltInConstructorSymbol.SMT_IMP, new Term[] { a, b });
+	}
+
+	private static Set<SmtLibTerm> set(SmtLibTerm... ts) {
+		return new HashSet<>(Arrays.asList(ts));
+	}
+
+	@Test
+	public void testSameConjunctsShareAnEntry() throws EvaluationException {
+		SmtMemo memo = new SmtMemo(1 << 10, true, 0, 0);
+		FakeSmtManager smt = new FakeSmtManager();
+		SolverVariable x = var();
+		SolverVariable y = var();
+		SmtLibTerm c = imp(x, y);
+		assertEquals(SmtStatus.SATISFIABLE, memo.query(and(x, c), false, -1, smt).fst());
+		// Reordered, nested differently, and with a repeated conjunct.
+		assertEquals(SmtStatus.SATISFIABLE, memo.query(Arrays.asList(c, x), false, -1, smt).fst());
+		assertEquals(SmtStatus.SATISFIABLE, memo.query(and(c, and(x, x)), false, -1, smt).fst());
+		assertEquals(Collections.singletonList(set(x, c)), smt.queries);
+	}
+
+	@Test
+	public void testModelQueryAnswersQueryWithoutModel() throws EvaluationException {
+		SmtMemo memo = new SmtMemo(1 << 10, true, 0, 0);
+		FakeSmtManager smt = new FakeSmtManager();
+		SolverVariable x = var();
+		memo.query(x, true, -1, smt);
+		memo.query(x, false, -1, smt);
+		assertEquals(1, smt.queries.size());
+	}
+
+	@Test
+	public void testCounterexampleCacheAnswersNewQueries() throws EvaluationException {
+		SmtMemo memo = new SmtMemo(1 << 10, false, 8, 8);
+		FakeSmtManager smt = new FakeSmtManager();
+		SolverVariable x = var();
+		SolverVariable y = var();
+		smt.unsat.add(y);
+		memo.query(x, true, -1, smt);
+		memo.query(y, false, -1, smt);
+		assertEquals(2, smt.queries.size());
+		// Satisfied by the model of the first query.
+		assertEquals(SmtStatus.SATISFIABLE, memo.query(and(x, imp(x, x)), false, -1, smt).fst());
+		// Includes the conjuncts of the second query.
+		assertEquals(SmtStatus.UNSATISFIABLE, memo.query(and(x, y), false, -1, smt).fst());
+		assertEquals(2, smt.queries.size());
+	}
+
+	@Test
+	public void testIndependentConjunctsAreSliced() throws EvaluationException {
+		SmtMemo memo = new SmtMemo(1 << 10, true, 0, 0);
+		FakeSmtManager smt = new FakeSmtManager();
+		SolverVariable x = var();
+		SolverVariable y = var();
+		SolverVariable z = var();
+		SmtLibTerm c = imp(y, z);
+		Pair<SmtStatus, Model> res = memo.query(and(x, and(y, c)), true, -1, smt);
+		assertEquals(SmtStatus.SATISFIABLE, res.fst());
+		assertEquals(new HashSet<>(Arrays.asList(set(x), set(y, c))), new HashSet<>(smt.queries));
+		// The model combines the models of the slices.
+		Map<SolverVariable, Term> m = res.snd().getVal();
+		assertEquals(set(x, y, z), new HashSet<>(m.keySet()));
+		// Each slice is memoized on its own.
+		memo.query(and(y, c), true, -1, smt);
+		assertEquals(2, smt.queries.size());
+	}
+
+	@Test
+	public void testUnsatisfiableSliceAnswersQuery() throws EvaluationException {
+		SmtMemo memo = new SmtMemo(1 << 10, true, 0, 0);
+		FakeSmtManager smt = new FakeSmtManager();
+		SolverVariable x = var();
+		SolverVariable y = var();
+		smt.unsat.add(y);
+		Pair<SmtStatus, Model> res = memo.query(and(x, y), true, -1, smt);
+		assertEquals(SmtStatus.UNSATISFIABLE, res.fst());
+		assertEquals(null, res.snd());
+	}
+
+	@Test
+	public void testSlicesShareTimeout() throws EvaluationException {
+		SmtMemo memo = new SmtMemo(1 << 10, true, 0, 0);
+		FakeSmtManager smt = new FakeSmtManager();
+		smt.delay = 100;
+		SolverVariable x = var();
+		SolverVariable y = var();
+		memo.query(and(x, y), false, 1000, smt);
+		assertEquals(2, smt.timeouts.size());
+		assertTrue(smt.timeouts.get(0) <= 1000);
+		assertTrue(smt.timeouts.get(1) <= 1000 - smt.delay);
+	}
+
+	@Test
+	public void testSlicesLeftAfterTimeoutAreUnknown() throws EvaluationException {
+		SmtMemo memo = new SmtMemo(1 << 10, true, 0, 0);
+		FakeSmtManager smt = new FakeSmtManager();
+		smt.delay = 100;
+		SolverVariable x = var();
+		SolverVariable y = var();
+		Pair<SmtStatus, Model> res = memo.query(and(x, y), false, 50, smt);
+		assertEquals(SmtStatus.UNKNOWN, res.fst());
+		assertEquals(1, smt.queries.size());
+	}
+
+}
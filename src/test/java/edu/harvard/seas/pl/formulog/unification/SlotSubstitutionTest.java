@@ -0,0 +1,124 @@
+package edu.harvard.seas.pl.formulog.unification;
+
+/*-
+ * #%L
+ * FormuLog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import edu.harvard.seas.pl.formulog.ast.I32;
+import edu.harvard.seas.pl.formulog.ast.Term;
+import edu.harvard.seas.pl.formulog.ast.Var;
+import edu.harvard.seas.pl.formulog.eval.EvaluationException;
+
+public class SlotSubstitutionTest {
+
+	private final Var x = Var.make("X");
+	private final Var y = Var.make("Y");
+	private final Var z = Var.make("Z");
+
+	private SlotSubstitution make() {
+		Map<Var, Integer> slots = new HashMap<>();
+		slots.put(x, 0);
+		slots.put(y, 1);
+		return new SlotSubstitution(slots);
+	}
+
+	@Test
+	public void testSlotsAndVarsAgree() {
+		SlotSubstitution s = make();
+		Term one = I32.make(1);
+		Term two = I32.make(2);
+		s.put(0, one);
+		s.put(y, two);
+		assertSame(one, s.get(x));
+		assertSame(two, s.get(1));
+		assertTrue(s.containsKey(x));
+		assertTrue(s.containsKey(y));
+		assertFalse(s.containsKey(z));
+	}
+
+	@Test
+	public void testVarsWithoutSlots() {
+		SlotSubstitution s = make();
+		Term three = I32.make(3);
+		s.put(z, three);
+		assertTrue(s.containsKey(z));
+		assertFalse(s.containsKey(x));
+		assertSame(three, s.get(z));
+		Set<Var> keys = new HashSet<>();
+		for (Var v : s.iterateKeys()) {
+			keys.add(v);
+		}
+		assertEquals(Collections.singleton(z), keys);
+	}
+
+	@Test
+	public void testOverwrite() {
+		SlotSubstitution s = make();
+		s.put(x, I32.make(1));
+		s.put(0, I32.make(2));
+		assertEquals(I32.make(2), s.get(x));
+	}
+
+	@Test
+	public void testNormalize() throws EvaluationException {
+		SlotSubstitution s = make();
+		s.put(x, I32.make(1));
+		s.put(z, I32.make(3));
+		assertEquals(I32.make(1), s.normalize(x, 0));
+		// Without a slot, the term is normalized against the substitution.
+		assertEquals(I32.make(3), s.normalize(z, -1));
+		assertEquals(I32.make(1), s.normalize(x, -1));
+	}
+
+	@Test(expected = EvaluationException.class)
+	public void testNormalizeUnbound() throws EvaluationException {
+		make().normalize(y, 1);
+	}
+
+	@Test
+	public void testCopyIsIndependent() {
+		SlotSubstitution s = make();
+		s.put(x, I32.make(1));
+		s.put(z, I32.make(3));
+		SlotSubstitution t = s.copy();
+		t.put(x, I32.make(2));
+		t.put(y, I32.make(4));
+		t.put(z, I32.make(5));
+		assertEquals(I32.make(1), s.get(x));
+		assertFalse(s.containsKey(y));
+		assertEquals(I32.make(3), s.get(z));
+		assertEquals(I32.make(2), t.get(x));
+		assertEquals(I32.make(5), t.get(z));
+	}
+
+}